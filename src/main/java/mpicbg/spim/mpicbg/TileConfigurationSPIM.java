@@ -51,6 +51,7 @@ import mpicbg.spim.registration.bead.Bead;
 import mpicbg.spim.registration.segmentation.Nucleus;
 import mpicbg.spim.vis3d.VisualizationSketchTikZ;
 import mpicbg.util.TransformUtils;
+import spim.process.interestpointregistration.ParallelTileOptimizer;
 import spim.vecmath.Transform3D;
 import spim.vecmath.Vector3d;
 
@@ -75,6 +76,11 @@ public class TileConfigurationSPIM
 	final public double getError() { return error; }
 
 	protected int debugLevel;
+
+	/**
+	 * Update all tiles concurrently in optimize() (see {@link ParallelTileOptimizer})
+	 */
+	public static boolean multiThreaded = false;
 	
 	public TileConfigurationSPIM( final int debugLevel )
 	{
@@ -191,6 +197,17 @@ public class TileConfigurationSPIM
 		int i = 0;
 		
 		boolean proceed = i < maxIterations;
+
+		if ( multiThreaded )
+		{
+			final double[] errors = ParallelTileOptimizer.optimize( tiles, fixedTiles, maxAllowedError, maxIterations, maxPlateauwidth );
+
+			error = errors[ 0 ];
+			minError = errors[ 1 ];
+			maxError = errors[ 2 ];
+			i = (int)errors[ 3 ];
+			proceed = false;
+		}
 		
 		while ( proceed )
 		{
@@ -25,4 +25,5 @@ public class SegmentationBenchmark
 {
 	public long openFiles = 0;
 	public long computation = 0;
+	public long waitingForFiles = 0;
 }
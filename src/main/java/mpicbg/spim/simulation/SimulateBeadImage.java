@@ -20,6 +20,14 @@
  * #L%
  */
 package mpicbg.spim.simulation;
+
+import java.util.Random;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
 /*
 import java.util.ArrayList;
 import java.util.Random;
@@ -33,6 +41,62 @@ import mpicbg.spim.registration.ViewDataBeads;
 */
 public class SimulateBeadImage
 {
+	/**
+	 * Renders a synthetic bead volume, e.g. to test or benchmark interest point detection
+	 *
+	 * @param size - the size of the volume
+	 * @param numBeads - the number of beads, placed randomly (at least 3 sigma away from the border)
+	 * @param sigma - the sigma of the (gaussian) beads per dimension
+	 * @param background - the background intensity
+	 * @param noise - the standard deviation of the additive gaussian noise
+	 * @param seed - the random seed
+	 * @return - the volume
+	 */
+	public static ArrayImg< FloatType, FloatArray > simulateBeads( final int[] size, final int numBeads, final double[] sigma, final float background, final float noise, final long seed )
+	{
+		final int sx = size[ 0 ], sy = size[ 1 ], sz = size[ 2 ];
+		final float[] img = new float[ sx * sy * sz ];
+		final Random rnd = new Random( seed );
+
+		for ( int b = 0; b < numBeads; ++b )
+		{
+			final double[] l = new double[ 3 ];
+			final int[] min = new int[ 3 ];
+			final int[] max = new int[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double r = 3 * sigma[ d ];
+				l[ d ] = r + rnd.nextDouble() * ( size[ d ] - 1 - 2 * r );
+				min[ d ] = Math.max( 0, (int)Math.floor( l[ d ] - r ) );
+				max[ d ] = Math.min( size[ d ] - 1, (int)Math.ceil( l[ d ] + r ) );
+			}
+
+			final double intensity = 500 + rnd.nextDouble() * 1500;
+
+			for ( int z = min[ 2 ]; z <= max[ 2 ]; ++z )
+			{
+				final double dz = ( z - l[ 2 ] ) / sigma[ 2 ];
+
+				for ( int y = min[ 1 ]; y <= max[ 1 ]; ++y )
+				{
+					final double dy = ( y - l[ 1 ] ) / sigma[ 1 ];
+
+					for ( int x = min[ 0 ]; x <= max[ 0 ]; ++x )
+					{
+						final double dx = ( x - l[ 0 ] ) / sigma[ 0 ];
+						img[ ( z * sy + y ) * sx + x ] += (float)( intensity * Math.exp( -0.5 * ( dx * dx + dy * dy + dz * dz ) ) );
+					}
+				}
+			}
+		}
+
+		for ( int i = 0; i < img.length; ++i )
+			img[ i ] += background + (float)rnd.nextGaussian() * noise;
+
+		return ArrayImgs.floats( img, sx, sy, sz );
+	}
+
 	/*
 	final ArrayList<ViewDataBeads> views;
 	final int numViews;
@@ -23,7 +23,283 @@ package spim;
 
 import ij.Prefs;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Threads
 {
+	private static ForkJoinPool computePool = null;
+
 	public static int numThreads() { return Math.max( 1, Prefs.getThreads() ); }
+
+	/**
+	 * @return the process-wide work-stealing pool that executes all multithreaded computations,
+	 * it is created once and never shut down
+	 */
+	public static synchronized ForkJoinPool computePool()
+	{
+		if ( computePool == null )
+		{
+			final ClassLoader cl = Threads.class.getClassLoader();
+
+			computePool = new ForkJoinPool(
+					Math.max( numThreads(), Runtime.getRuntime().availableProcessors() ),
+					new ForkJoinWorkerThreadFactory()
+					{
+						@Override
+						public ForkJoinWorkerThread newThread( final ForkJoinPool pool )
+						{
+							final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+							thread.setName( "spim-compute-" + thread.getPoolIndex() );
+							thread.setContextClassLoader( cl );
+							return thread;
+						}
+					},
+					null, false );
+		}
+
+		return computePool;
+	}
+
+	/**
+	 * Replaces Executors.newFixedThreadPool( maxParallelism ) for one stage of a computation. The returned
+	 * ExecutorService owns no threads, it runs at most maxParallelism of its tasks at a time on the
+	 * shared {@link #computePool()}. Creating it is therefore cheap and calling shutdown() is optional.
+	 * 
+	 * invokeAll() may also be called from within a task running on the compute pool, the pool then
+	 * compensates for the blocked thread.
+	 * 
+	 * @param maxParallelism - how many tasks of this stage can run at the same time
+	 * @return a new ExecutorService backed by the shared compute pool
+	 */
+	public static ExecutorService createExecutor( final int maxParallelism )
+	{
+		return new LimitedExecutorService( computePool(), Math.max( 1, maxParallelism ) );
+	}
+
+	/**
+	 * @return a new ExecutorService backed by the shared compute pool using {@link #numThreads()}
+	 */
+	public static ExecutorService createExecutor()
+	{
+		return createExecutor( numThreads() );
+	}
+
+	/**
+	 * @return an ExecutorService that runs every task directly in the calling thread, e.g. to make
+	 * an algorithm that takes an ExecutorService single-threaded when it is itself run in parallel
+	 */
+	public static ExecutorService createCallerRunsExecutor()
+	{
+		return new AbstractExecutorService()
+		{
+			volatile boolean isShutdown = false;
+
+			@Override
+			public void execute( final Runnable command )
+			{
+				if ( isShutdown )
+					throw new RejectedExecutionException( "Executor was shut down." );
+
+				command.run();
+			}
+
+			@Override
+			public void shutdown() { isShutdown = true; }
+
+			@Override
+			public List< Runnable > shutdownNow()
+			{
+				isShutdown = true;
+				return new ArrayList< Runnable >();
+			}
+
+			@Override
+			public boolean isShutdown() { return isShutdown; }
+
+			@Override
+			public boolean isTerminated() { return isShutdown; }
+
+			@Override
+			public boolean awaitTermination( final long timeout, final TimeUnit unit ) { return isShutdown; }
+		};
+	}
+
+	private static class LimitedExecutorService extends AbstractExecutorService
+	{
+		final ExecutorService pool;
+		final int maxParallelism;
+		final ConcurrentLinkedQueue< Runnable > queue = new ConcurrentLinkedQueue< Runnable >();
+		final AtomicInteger active = new AtomicInteger( 0 );
+		volatile boolean isShutdown = false;
+
+		final Runnable drainer = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Runnable r;
+
+					while ( ( r = queue.poll() ) != null )
+						r.run();
+				}
+				finally
+				{
+					active.decrementAndGet();
+
+					// a task might have been added after the last poll()
+					if ( !queue.isEmpty() )
+						startDrainer();
+					else
+						signalIfTerminated();
+				}
+			}
+		};
+
+		public LimitedExecutorService( final ExecutorService pool, final int maxParallelism )
+		{
+			this.pool = pool;
+			this.maxParallelism = maxParallelism;
+		}
+
+		protected void startDrainer()
+		{
+			while ( true )
+			{
+				final int a = active.get();
+
+				if ( a >= maxParallelism || queue.isEmpty() )
+					return;
+
+				if ( active.compareAndSet( a, a + 1 ) )
+				{
+					pool.execute( drainer );
+					return;
+				}
+			}
+		}
+
+		protected synchronized void signalIfTerminated()
+		{
+			if ( isTerminated() )
+				notifyAll();
+		}
+
+		@Override
+		public void execute( final Runnable command )
+		{
+			if ( isShutdown )
+				throw new RejectedExecutionException( "Executor was shut down." );
+
+			queue.add( command );
+			startDrainer();
+		}
+
+		@Override
+		public < T > List< Future< T > > invokeAll( final Collection< ? extends Callable< T > > tasks ) throws InterruptedException
+		{
+			final ArrayList< Future< T > > futures = new ArrayList< Future< T > >( tasks.size() );
+
+			for ( final Callable< T > task : tasks )
+			{
+				final FutureTask< T > future = new FutureTask< T >( task );
+				futures.add( future );
+				execute( future );
+			}
+
+			for ( final Future< T > future : futures )
+				awaitDone( future );
+
+			return futures;
+		}
+
+		@Override
+		public void shutdown()
+		{
+			isShutdown = true;
+			signalIfTerminated();
+		}
+
+		@Override
+		public List< Runnable > shutdownNow()
+		{
+			isShutdown = true;
+
+			final ArrayList< Runnable > remaining = new ArrayList< Runnable >();
+			Runnable r;
+
+			while ( ( r = queue.poll() ) != null )
+				remaining.add( r );
+
+			signalIfTerminated();
+
+			return remaining;
+		}
+
+		@Override
+		public boolean isShutdown() { return isShutdown; }
+
+		@Override
+		public boolean isTerminated() { return isShutdown && active.get() == 0 && queue.isEmpty(); }
+
+		@Override
+		public synchronized boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException
+		{
+			final long end = System.nanoTime() + unit.toNanos( timeout );
+
+			while ( !isTerminated() )
+			{
+				final long remaining = end - System.nanoTime();
+
+				if ( remaining <= 0 )
+					return false;
+
+				TimeUnit.NANOSECONDS.timedWait( this, remaining );
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Waits for a Future, if called from a thread of the compute pool the pool adds a thread while this one is blocked
+	 */
+	protected static void awaitDone( final Future< ? > future ) throws InterruptedException
+	{
+		ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+		{
+			@Override
+			public boolean block() throws InterruptedException
+			{
+				try
+				{
+					future.get();
+				}
+				catch ( final ExecutionException e ) {}
+				catch ( final CancellationException e ) {}
+
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() { return future.isDone(); }
+		} );
+	}
 }
@@ -47,6 +47,7 @@ import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.imgloaders.AbstractImgLoader;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointArray;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 
@@ -194,6 +195,7 @@ public class Interest_Point_Detection implements PlugIn
 			{
 				IOFunctions.println( "Opening of files took: " + ((DifferenceOf)ipd).getBenchmark().openFiles/1000 + " sec." );
 				IOFunctions.println( "Detecting interest points took: " + ((DifferenceOf)ipd).getBenchmark().computation/1000 + " sec." );
+				IOFunctions.println( "Detection waited for opening of files: " + ((DifferenceOf)ipd).getBenchmark().waitingForFiles/1000 + " sec." );
 			}
 			
 			// save the file and the path in the XML
@@ -209,7 +211,8 @@ public class Interest_Point_Detection implements PlugIn
 						new File( "interestpoints", "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + label ) );
 				
 				list.setParameters( ipd.getParameters( channelId ) );
-				list.setInterestPoints( points.get( viewId ) );
+				// keep the points as primitive arrays, the detection objects can be collected
+				list.setInterestPointArray( InterestPointArray.fromList( points.get( viewId ) ) );
 
 				if ( saveXML )
 				{
@@ -49,6 +49,7 @@ import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.GlobalOpt;
 import spim.process.interestpointregistration.centerofmass.CenterOfMass;
 import spim.process.interestpointregistration.geometricdescriptor.RGLDM;
 import spim.process.interestpointregistration.geometrichashing.GeometricHashing;
@@ -57,6 +58,7 @@ import spim.process.interestpointregistration.optimizationtypes.AllToAllRegistra
 import spim.process.interestpointregistration.optimizationtypes.AllToAllRegistrationWithRange;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
+import spim.process.interestpointregistration.optimizationtypes.IncrementalAllToAllRegistrationWithRange;
 import spim.process.interestpointregistration.optimizationtypes.IndividualTimepointRegistration;
 import spim.process.interestpointregistration.optimizationtypes.ReferenceTimepointRegistration;
 import spim.process.interestpointregistration.registrationstatistics.RegistrationStatistics;
@@ -95,10 +97,15 @@ public class Interest_Point_Registration implements PlugIn
 	public static int defaultRegistrationType = 0;
 	public static int[] defaultChannelLabels = null;
 	public static int defaultRange = 5;
+	public static boolean defaultIncremental = false;
 	public static int defaultReferenceTimepointIndex = -1;
 	public static boolean defaultConsiderTimepointAsUnit = false;
+	public static boolean defaultOnlyOverlappingViews = true;
+	public static double defaultOverlapMargin = 10;
 	public static int defaultFixTiles = 0;
 	public static int defaultMapBack = 0;
+	public static int defaultGlobalOptSolver = 0;
+	public static boolean defaultUseMatchCache = false;
 	public static boolean defaultSameFixedViews = true;
 	public static boolean defaultSameReferenceView = true;
 
@@ -305,6 +312,13 @@ public class Interest_Point_Registration implements PlugIn
 		else if ( registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
 		{
 			gd2.addSlider( "Range for all-to-all timepoint matching", 2, 10, defaultRange );
+			gd2.addCheckbox( "Only_register_new_timepoints (keeps previously registered timepoints)", defaultIncremental );
+		}
+
+		if ( registrationType == RegistrationType.ALL_TO_ALL || registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
+			gd2.addCheckbox( "Only_match_views_that_overlap (based on current transformations)", defaultOnlyOverlappingViews );
+			gd2.addNumericField( "Overlap_margin", defaultOverlapMargin, 0, 5, "px" );
 		}
 
 		// for all registrations that include multiple timepointss
@@ -322,6 +336,12 @@ public class Interest_Point_Registration implements PlugIn
 			gd2.addChoice( "Map_back_tiles", mapBackChoice, mapBackChoice[ defaultMapBack ] );
 		}
 
+		if ( defaultGlobalOptSolver >= GlobalOpt.solverChoice.length )
+			defaultGlobalOptSolver = 0;
+
+		gd2.addChoice( "Global_optimization", GlobalOpt.solverChoice, GlobalOpt.solverChoice[ defaultGlobalOptSolver ] );
+		gd2.addCheckbox( "Reuse_pairwise_matches of previous runs with identical parameters", defaultUseMatchCache );
+
 		gd2.addMessage( "" );
 		gd2.addMessage( "Algorithm parameters [" + ipr.getDescription() + "]", new Font( Font.SANS_SERIF, Font.BOLD, 12 ) );
 		gd2.addMessage( "" );
@@ -360,8 +380,27 @@ public class Interest_Point_Registration implements PlugIn
 			}
 		}
 
+		boolean incremental = false;
+
 		if ( registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
 			range = defaultRange = (int)Math.round( gd2.getNextNumber() );
+			incremental = defaultIncremental = gd2.getNextBoolean();
+		}
+
+		final boolean onlyOverlappingViews;
+		final double overlapMargin;
+
+		if ( registrationType == RegistrationType.ALL_TO_ALL || registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
+			onlyOverlappingViews = defaultOnlyOverlappingViews = gd2.getNextBoolean();
+			overlapMargin = defaultOverlapMargin = Math.max( 0, gd2.getNextNumber() );
+		}
+		else
+		{
+			onlyOverlappingViews = false;
+			overlapMargin = 0;
+		}
 
 		final boolean considerTimepointsAsUnit;
 		if ( registrationType != RegistrationType.TIMEPOINTS_INDIVIDUALLY )
@@ -381,6 +420,9 @@ public class Interest_Point_Registration implements PlugIn
 			fixTiles = mapBack = -1;
 		}
 
+		final int globalOptSolver = defaultGlobalOptSolver = gd2.getNextChoiceIndex();
+		final boolean useMatchCache = defaultUseMatchCache = gd2.getNextBoolean();
+
 		if ( !ipr.parseDialog( gd2, registrationType ) )
 			return false;
 
@@ -399,15 +441,24 @@ public class Interest_Point_Registration implements PlugIn
 			type = new ReferenceTimepointRegistration( data, viewIds, channelsToProcess, data.getSequenceDescription().getTimePoints().getTimePoints().get( referenceTimePoint ), considerTimepointsAsUnit );
 		else if ( registrationType == RegistrationType.ALL_TO_ALL )
 			type = new AllToAllRegistration( data, viewIds, channelsToProcess, considerTimepointsAsUnit );
+		else if ( registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE && incremental )
+			type = new IncrementalAllToAllRegistrationWithRange( data, viewIds, channelsToProcess, range, considerTimepointsAsUnit );
 		else if ( registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
 			type = new AllToAllRegistrationWithRange( data, viewIds, channelsToProcess, range, considerTimepointsAsUnit );
 		else
 			type = null;
 
+		if ( onlyOverlappingViews )
+			type.setOverlapMargin( overlapMargin );
+
+		type.setGlobalOptSolver( globalOptSolver );
+
 		// set the fixed tiles and the potential mapping back to some tile
 		if ( !setFixedTilesAndReference( fixTiles, mapBack, type ) )
 			return false;
 
+		ipr.setUseMatchCache( useMatchCache );
+
 		if ( !ipr.register( type, saveXML, showStatistics ) )
 			return false;
 
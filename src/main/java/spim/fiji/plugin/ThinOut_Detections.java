@@ -42,7 +42,7 @@ import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.thinout.ChannelProcessThinOut;
 import spim.fiji.plugin.thinout.Histogram;
 import spim.fiji.spimdata.SpimData2;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointArray;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
@@ -111,30 +111,28 @@ public class ThinOut_Detections implements PlugIn
 				final ViewInterestPointLists vipl = vip.getViewInterestPointLists( viewId );
 				final InterestPointList oldIpl = vipl.getInterestPointList( channel.getLabel() );
 
-				if ( oldIpl.getInterestPoints() == null )
+				if ( !oldIpl.hasInterestPoints() )
 					oldIpl.loadInterestPoints();
 
 				final VoxelDimensions voxelSize = vd.getViewSetup().getVoxelSize();
+				final InterestPointArray points = oldIpl.getInterestPointArray();
 
 				// assemble the list of points (we need two lists as the KDTree sorts the list)
 				// we assume that the order of list2 and points is preserved!
 				final List< RealPoint > list1 = new ArrayList< RealPoint >();
 				final List< RealPoint > list2 = new ArrayList< RealPoint >();
-				final List< double[] > points = new ArrayList< double[] >();
 
-				for ( final InterestPoint ip : oldIpl.getInterestPoints() )
+				for ( int i = 0; i < points.size(); ++i )
 				{
 					list1.add ( new RealPoint(
-							ip.getL()[ 0 ] * voxelSize.dimension( 0 ),
-							ip.getL()[ 1 ] * voxelSize.dimension( 1 ),
-							ip.getL()[ 2 ] * voxelSize.dimension( 2 ) ) );
+							points.getDoublePosition( i, 0 ) * voxelSize.dimension( 0 ),
+							points.getDoublePosition( i, 1 ) * voxelSize.dimension( 1 ),
+							points.getDoublePosition( i, 2 ) * voxelSize.dimension( 2 ) ) );
 
 					list2.add ( new RealPoint(
-							ip.getL()[ 0 ] * voxelSize.dimension( 0 ),
-							ip.getL()[ 1 ] * voxelSize.dimension( 1 ),
-							ip.getL()[ 2 ] * voxelSize.dimension( 2 ) ) );
-
-					points.add( ip.getL() );
+							points.getDoublePosition( i, 0 ) * voxelSize.dimension( 0 ),
+							points.getDoublePosition( i, 1 ) * voxelSize.dimension( 1 ),
+							points.getDoublePosition( i, 2 ) * voxelSize.dimension( 2 ) ) );
 				}
 
 				// make the KDTree
@@ -148,7 +146,8 @@ public class ThinOut_Detections implements PlugIn
 								oldIpl.getFile().getParentFile(),
 								"tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + channel.getNewLabel() ) );
 
-				newIpl.setInterestPoints( new ArrayList< InterestPoint >() );
+				final InterestPointArray newPoints = new InterestPointArray( points.numDimensions() );
+				final double[] l = new double[ points.numDimensions() ];
 
 				int id = 0;
 				for ( int j = 0; j < list2.size(); ++j )
@@ -161,10 +160,14 @@ public class ThinOut_Detections implements PlugIn
 					
 					if ( ( keepRange && d >= minDistance && d <= maxDistance ) || ( !keepRange && ( d < minDistance || d > maxDistance ) ) )
 					{
-						newIpl.getInterestPoints().add( new InterestPoint( id++, points.get( j ).clone() ) );
+						points.localize( j, l );
+						newPoints.add( id++, l );
 					}
 				}
 
+				newPoints.trim();
+				newIpl.setInterestPointArray( newPoints );
+
 				if ( keepRange )
 					newIpl.setParameters( "thinned-out '" + channel.getLabel() + "', kept range from " + minDistance + " to " + maxDistance );
 				else
@@ -173,7 +176,7 @@ public class ThinOut_Detections implements PlugIn
 				vipl.addInterestPointList( channel.getNewLabel(), newIpl );
 
 				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": TP=" + vd.getTimePointId() + " ViewSetup=" + vd.getViewSetupId() + 
-						", Detections: " + oldIpl.getInterestPoints().size() + " >>> " + newIpl.getInterestPoints().size() );
+						", Detections: " + points.size() + " >>> " + newPoints.size() );
 
 				if ( save && !newIpl.saveInterestPoints() )
 				{
@@ -277,21 +280,22 @@ public class ThinOut_Detections implements PlugIn
 
 			final VoxelDimensions voxelSize = vd.getViewSetup().getVoxelSize();
 
-			if ( ipl.getInterestPoints() == null )
+			if ( !ipl.hasInterestPoints() )
 				ipl.loadInterestPoints();
 
 			if ( unit == null )
 				unit = vd.getViewSetup().getVoxelSize().unit();
 
 			// assemble the list of points
+			final InterestPointArray points = ipl.getInterestPointArray();
 			final List< RealPoint > list = new ArrayList< RealPoint >();
 
-			for ( final InterestPoint ip : ipl.getInterestPoints() )
+			for ( int i = 0; i < points.size(); ++i )
 			{
 				list.add ( new RealPoint(
-						ip.getL()[ 0 ] * voxelSize.dimension( 0 ),
-						ip.getL()[ 1 ] * voxelSize.dimension( 1 ),
-						ip.getL()[ 2 ] * voxelSize.dimension( 2 ) ) );
+						points.getDoublePosition( i, 0 ) * voxelSize.dimension( 0 ),
+						points.getDoublePosition( i, 1 ) * voxelSize.dimension( 1 ),
+						points.getDoublePosition( i, 2 ) * voxelSize.dimension( 2 ) ) );
 			}
 
 			// make the KDTree
@@ -46,7 +46,7 @@ import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointArray;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.process.fusion.export.DisplayImage;
 import spim.process.interestpointregistration.ChannelProcess;
@@ -228,28 +228,30 @@ public class Visualize_Detections implements PlugIn
 	{		
 		final InterestPointList ipl = data.getViewInterestPoints().getViewInterestPointLists( viewId ).getInterestPointList( label );
 		
-		if ( ipl.getInterestPoints() == null )
+		if ( !ipl.hasInterestPoints() )
 			ipl.loadInterestPoints();
-			
+
+		final InterestPointArray points = ipl.getInterestPointArray();
+
 		if ( interval == null )
 		{
-			final int n = ipl.getInterestPoints().get( 0 ).getL().length;
+			final int n = points.numDimensions();
 			
 			final long[] min = new long[ n ];
 			final long[] max = new long[ n ];
 
 			for ( int d = 0; d < n; ++d )
 			{
-				min[ d ] = Math.round( ipl.getInterestPoints().get( 0 ).getL()[ d ] ) - 1;
-				max[ d ] = Math.round( ipl.getInterestPoints().get( 0 ).getL()[ d ] ) + 1;
+				min[ d ] = Math.round( points.getDoublePosition( 0, d ) ) - 1;
+				max[ d ] = Math.round( points.getDoublePosition( 0, d ) ) + 1;
 			}
 			
-			for ( final InterestPoint ip : ipl.getInterestPoints() )
+			for ( int i = 0; i < points.size(); ++i )
 			{
 				for ( int d = 0; d < n; ++d )
 				{
-					min[ d ] = Math.min( min[ d ], Math.round( ip.getL()[ d ] ) - 1 );
-					max[ d ] = Math.max( max[ d ], Math.round( ip.getL()[ d ] ) + 1 );
+					min[ d ] = Math.min( min[ d ], Math.round( points.getDoublePosition( i, d ) ) - 1 );
+					max[ d ] = Math.max( max[ d ], Math.round( points.getDoublePosition( i, d ) ) + 1 );
 				}
 			}
 			
@@ -276,12 +278,12 @@ public class Visualize_Detections implements PlugIn
 		
 		if ( detections == 0 )
 		{
-			IOFunctions.println( "Visualizing " + ipl.getInterestPoints().size() + " detections." );
+			IOFunctions.println( "Visualizing " + points.size() + " detections." );
 			
-			for ( final InterestPoint ip : ipl.getInterestPoints() )
+			for ( int i = 0; i < points.size(); ++i )
 			{
 				for ( int d = 0; d < n; ++d )
-					tmp[ d ] = Math.round( ip.getL()[ d ] / downsample );
+					tmp[ d ] = Math.round( points.getDoublePosition( i, d ) / downsample );
 	
 				r.setPosition( tmp );
 				r.get().set( 65535 );
@@ -289,10 +291,11 @@ public class Visualize_Detections implements PlugIn
 		}
 		else
 		{
-			final HashMap< Integer, InterestPoint > map = new HashMap< Integer, InterestPoint >();
+			// maps the detection id to the index in the array
+			final HashMap< Integer, Integer > map = new HashMap< Integer, Integer >();
 			
-			for ( final InterestPoint ip : ipl.getInterestPoints() )
-				map.put( ip.getId(), ip );
+			for ( int i = 0; i < points.size(); ++i )
+				map.put( points.getId( i ), i );
 			
 			if ( ipl.getCorrespondingInterestPoints() == null )
 			{
@@ -308,7 +311,7 @@ public class Visualize_Detections implements PlugIn
 			for ( final CorrespondingInterestPoints ip : ipl.getCorrespondingInterestPoints() )
 			{	
 				for ( int d = 0; d < n; ++d )
-					tmp[ d ] = Math.round( map.get( ip.getDetectionId() ).getL()[ d ] / downsample );
+					tmp[ d ] = Math.round( points.getDoublePosition( map.get( ip.getDetectionId() ), d ) / downsample );
 	
 				r.setPosition( tmp );
 				r.get().set( 65535 );
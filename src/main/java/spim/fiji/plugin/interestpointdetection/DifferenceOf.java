@@ -28,11 +28,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
@@ -83,6 +86,18 @@ public abstract class DifferenceOf extends InterestPointDetection
 	public static int defaultMaxDetections = 3000;
 	public static int defaultMaxDetectionsTypeIndex = 0;
 
+	/**
+	 * Load (and downsample) the next view while the interest points of the current view are detected (not for views
+	 * that are opened lazily and processed blockwise, as nothing would be loaded ahead of time)
+	 */
+	public static boolean prefetchViews = true;
+
+	/**
+	 * The fraction of the free memory that may be used for prefetched views and the maximal number of prefetched views
+	 */
+	public static double prefetchMemoryFraction = 0.25;
+	public static int maxPrefetchedViews = 2;
+
 	protected boolean limitDetections = false;
 	protected double imageSigmaX, imageSigmaY, imageSigmaZ;
 	protected double additionalSigmaX, additionalSigmaY, additionalSigmaZ;
@@ -105,6 +120,21 @@ public abstract class DifferenceOf extends InterestPointDetection
 			this.channelsToProcess = null;
 	}
 
+	/**
+	 * Detects the interest points of one view
+	 *
+	 * @param vd - the view
+	 * @param input - the image as returned by {@link #open(ViewDescription, AffineTransform3D, int[])}
+	 * @param downsampling - the downsampling per dimension that still has to be applied to the image
+	 * @param correctCoordinates - the transformation that maps the (downsampled) image to full resolution
+	 * @return - the interest points in full resolution coordinates
+	 */
+	protected abstract List< InterestPoint > detect(
+			final ViewDescription vd,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final int[] downsampling,
+			final AffineTransform3D correctCoordinates ) throws Exception;
+
 	protected abstract void addAddtionalParameters( final GenericDialog gd );
 	protected abstract boolean queryAdditionalParameters( final GenericDialog gd );
 	
@@ -287,6 +317,258 @@ public abstract class DifferenceOf extends InterestPointDetection
 			return true;
 	}
 	
+	/**
+	 * Opens the image of a view for {@link #detect(ViewDescription, RandomAccessibleInterval, int[], AffineTransform3D)},
+	 * called from the prefetching thread.
+	 *
+	 * @param vd - the view
+	 * @param downsampleXY - the downsampling in XY for this view, already resolved (see {@link #downsampleXY(ViewDescription)})
+	 * @param t - will be set to the transformation that maps the (downsampled) image to full resolution
+	 * @param downsampling - is { 1, 1, 1 }, can be set to the downsampling that still has to be applied to the returned image
+	 * @return - the image
+	 */
+	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > open( final ViewDescription vd, final int downsampleXY, final AffineTransform3D t, final int[] downsampling )
+	{
+		return openAndDownsample( spimData, vd, t, downsampleXY );
+	}
+
+	/**
+	 * @return - true if {@link #open(ViewDescription, int, AffineTransform3D, int[])} does not load the image, in which case
+	 * prefetching would not load anything ahead of time and the views are opened one after the other
+	 */
+	protected boolean opensLazily() { return false; }
+
+	/**
+	 * Detects the interest points in all views of a timepoint. If {@link #prefetchViews} is set and the memory is sufficient,
+	 * the views are opened in a separate thread and passed on through a bounded queue, so loading of the next view overlaps
+	 * with the detection in the current view. The downsampling of each view is resolved before, so the prefetching thread
+	 * only reads it. Views that are opened lazily are not prefetched (see {@link #opensLazily()}).
+	 *
+	 * @param t - the timepoint
+	 * @param name - name of the detection for error messages
+	 * @return - the interest points per view
+	 */
+	protected HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t, final String name )
+	{
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+		final ArrayList< ViewDescription > views = new ArrayList< ViewDescription >();
+
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+			if ( vd.isPresent() )
+				views.add( vd );
+
+		if ( views.size() == 0 )
+			return interestPoints;
+
+		// resolve the downsampling here and not while opening, which might happen in the prefetching thread
+		final int[] dsxy = new int[ views.size() ];
+
+		for ( int i = 0; i < views.size(); ++i )
+			dsxy[ i ] = downsampleXY( views.get( i ) );
+
+		final int numPrefetched = prefetchViews && views.size() > 1 && !opensLazily() ? numPrefetchedViews( views.get( 0 ), dsxy[ 0 ] ) : 0;
+
+		long openTime = 0, detectTime = 0, waitTime = 0;
+
+		if ( numPrefetched == 0 )
+		{
+			for ( int i = 0; i < views.size(); ++i )
+			{
+				final long time1 = System.currentTimeMillis();
+				final OpenedView view = openView( views.get( i ), dsxy[ i ], name );
+				final long time2 = System.currentTimeMillis();
+
+				openTime += time2 - time1;
+
+				if ( view.img != null )
+					detectView( view, name, interestPoints );
+
+				detectTime += System.currentTimeMillis() - time2;
+			}
+		}
+		else
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Prefetching up to " + numPrefetched + " view(s)." );
+
+			final ArrayBlockingQueue< OpenedView > queue = new ArrayBlockingQueue< OpenedView >( numPrefetched );
+			final long[] producerTime = new long[ 1 ];
+
+			final Thread producer = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					boolean done = false, interrupted = false;
+
+					try
+					{
+						for ( int i = 0; i < views.size(); ++i )
+						{
+							final long time = System.currentTimeMillis();
+							final OpenedView view = openView( views.get( i ), dsxy[ i ], name );
+							producerTime[ 0 ] += System.currentTimeMillis() - time;
+
+							queue.put( view );
+						}
+
+						done = true;
+					}
+					catch ( final InterruptedException e )
+					{
+						// the detection was interrupted and does not wait anymore
+						interrupted = true;
+					}
+					finally
+					{
+						// signal the end if loading failed unexpectedly, otherwise the detection waits forever
+						if ( !done && !interrupted )
+							try { queue.put( OpenedView.END ); } catch ( final InterruptedException e ) {}
+					}
+				}
+			}, "spim-prefetch-tp" + t.getId() );
+
+			producer.start();
+
+			try
+			{
+				for ( int i = 0; i < views.size(); ++i )
+				{
+					final long time1 = System.currentTimeMillis();
+					final OpenedView view = queue.take();
+					final long time2 = System.currentTimeMillis();
+
+					waitTime += time2 - time1;
+
+					if ( view == OpenedView.END )
+						break;
+
+					if ( view.img != null )
+						detectView( view, name, interestPoints );
+
+					detectTime += System.currentTimeMillis() - time2;
+				}
+
+				producer.join();
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "Interest point detection was interrupted: " + e );
+				producer.interrupt();
+				Thread.currentThread().interrupt();
+			}
+
+			openTime = producerTime[ 0 ];
+		}
+
+		benchmark.openFiles += openTime;
+		benchmark.computation += detectTime;
+		benchmark.waitingForFiles += waitTime;
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Timepoint " + t.getName() + ": opening files took " + openTime / 1000.0 + " sec, " +
+				"detection took " + detectTime / 1000.0 + " sec, detection waited " + waitTime / 1000.0 + " sec for files " +
+				"(" + ( openTime > detectTime ? "bound by opening files" : "bound by detection" ) + ")." );
+
+		return interestPoints;
+	}
+
+	/**
+	 * @return - how many opened views can be kept in the queue besides the one being processed, 0 means no prefetching
+	 */
+	protected int numPrefetchedViews( final ViewDescription vd, final int dsxy )
+	{
+		if ( !vd.getViewSetup().hasSize() )
+			return 1;
+
+		final double viewBytes = 4.0 *
+				Math.ceil( (double)vd.getViewSetup().getSize().dimension( 0 ) / dsxy ) *
+				Math.ceil( (double)vd.getViewSetup().getSize().dimension( 1 ) / dsxy ) *
+				Math.ceil( (double)vd.getViewSetup().getSize().dimension( 2 ) / downsampleZ );
+
+		final Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+
+		return (int)Math.max( 0, Math.min( maxPrefetchedViews, ( free * prefetchMemoryFraction ) / viewBytes ) );
+	}
+
+	/**
+	 * @return - the downsampling in XY for a view, {@link #downsampleXY} &lt; 1 means relative to the z-resolution of the view
+	 */
+	protected int downsampleXY( final ViewDescription vd )
+	{
+		// downsampleXY == 0 : a bit less then z-resolution
+		// downsampleXY == -1 : a bit more then z-resolution
+		if ( downsampleXY < 1 )
+			return downsampleFactor( downsampleXY, downsampleZ, vd.getViewSetup().getVoxelSize() );
+		else
+			return downsampleXY;
+	}
+
+	protected OpenedView openView( final ViewDescription vd, final int downsampleXY, final String name )
+	{
+		// make sure not everything crashes if one file is missing
+		try
+		{
+			final AffineTransform3D correctCoordinates = new AffineTransform3D();
+			final int[] downsampling = new int[]{ 1, 1, 1 };
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img = open( vd, downsampleXY, correctCoordinates, downsampling );
+
+			return new OpenedView( vd, img, downsampling, correctCoordinates );
+		}
+		catch ( Exception e )
+		{
+			printError( vd, name, e );
+			return new OpenedView( vd, null, null, null );
+		}
+	}
+
+	protected void detectView( final OpenedView view, final String name, final HashMap< ViewId, List< InterestPoint > > interestPoints )
+	{
+		try
+		{
+			final List< InterestPoint > ips = detect( view.vd, view.img, view.downsampling, view.t );
+
+			if ( ips != null )
+				interestPoints.put( view.vd, ips );
+		}
+		catch ( Exception e )
+		{
+			printError( view.vd, name, e );
+		}
+	}
+
+	protected static void printError( final ViewDescription vd, final String name, final Exception e )
+	{
+		IOFunctions.println( "An error occured (" + name + "): " + e ); 
+		IOFunctions.println( "Failed to segment angleId: " + 
+				vd.getViewSetup().getAngle().getId() + " channelId: " +
+				vd.getViewSetup().getChannel().getId() + " illumId: " +
+				vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
+		e.printStackTrace();
+	}
+
+	/**
+	 * An opened view, the downsampling that still has to be applied and the transformation that maps it to full resolution,
+	 * img is null if opening failed
+	 */
+	protected static class OpenedView
+	{
+		final static OpenedView END = new OpenedView( null, null, null, null );
+
+		final ViewDescription vd;
+		final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img;
+		final int[] downsampling;
+		final AffineTransform3D t;
+
+		public OpenedView( final ViewDescription vd, final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img, final int[] downsampling, final AffineTransform3D t )
+		{
+			this.vd = vd;
+			this.img = img;
+			this.downsampling = downsampling;
+			this.t = t;
+		}
+	}
+
 	protected < T extends RealType< T > > void preSmooth( final RandomAccessibleInterval< T > img )
 	{
 		if ( additionalSigmaX > 0.0 || additionalSigmaY > 0.0 || additionalSigmaZ > 0.0 )
@@ -422,7 +704,7 @@ public abstract class DifferenceOf extends InterestPointDetection
 
 	protected void correctForDownsampling( final List< InterestPoint > ips, final AffineTransform3D t )
 	{
-		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Correcting coordinates for downsampling (xy=" + downsampleXY + "x, z=" + downsampleZ + "x) using AffineTransform: " + t );
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Correcting coordinates for downsampling (xy=" + Math.round( t.get( 0, 0 ) ) + "x, z=" + Math.round( t.get( 2, 2 ) ) + "x) using AffineTransform: " + t );
 
 		if ( ips == null || ips.size() == 0 )
 		{
@@ -468,18 +750,20 @@ public abstract class DifferenceOf extends InterestPointDetection
 			final SpimData2 spimData,
 			final ViewDescription vd,
 			final AffineTransform3D t )
+	{
+		return openAndDownsample( spimData, vd, t, downsampleXY( vd ) );
+	}
+
+	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > openAndDownsample(
+			final SpimData2 spimData,
+			final ViewDescription vd,
+			final AffineTransform3D t,
+			final int downsampleXY )
 	{
 		IOFunctions.println(
 				"(" + new Date(System.currentTimeMillis()) + "): "
 				+ "Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
 
-		int downsampleXY = this.downsampleXY;
-
-		// downsampleXY == 0 : a bit less then z-resolution
-		// downsampleXY == -1 : a bit more then z-resolution
-		if ( downsampleXY < 1 )
-			this.downsampleXY = downsampleXY = downsampleFactor( downsampleXY, downsampleZ, vd.getViewSetup().getVoxelSize() );
-
 		if ( downsampleXY > 1 )
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() )  + "): Downsampling in XY " + downsampleXY + "x ..." );
 
@@ -500,19 +784,7 @@ public abstract class DifferenceOf extends InterestPointDetection
 
 			double[][] mipmapResolutions = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions();
 
-			int bestLevel = 0;
-			for ( int level = 0; level < mipmapResolutions.length; ++level )
-			{
-				double[] factors = mipmapResolutions[ level ];
-				
-				// this fails if factors are not ints
-				final int fx = (int)Math.round( factors[ 0 ] );
-				final int fy = (int)Math.round( factors[ 1 ] );
-				final int fz = (int)Math.round( factors[ 2 ] );
-				
-				if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) )
-					bestLevel = level;
-			}
+			final int bestLevel = bestMipmapLevel( mipmapResolutions, dsx, dsy, dsz );
 
 			final int fx = (int)Math.round( mipmapResolutions[ bestLevel ][ 0 ] );
 			final int fy = (int)Math.round( mipmapResolutions[ bestLevel ][ 1 ] );
@@ -555,6 +827,93 @@ public abstract class DifferenceOf extends InterestPointDetection
 		return input;
 	}
 
+	/**
+	 * Opens the image without loading it completely. The nearest precomputed resolution level (if available) is used
+	 * and the remaining downsampling is returned, so it can be applied block by block while processing (see
+	 * {@link spim.process.interestpointdetection.ProcessDOGBlockwise}) instead of downsampling the whole image.
+	 *
+	 * @param spimData
+	 * @param vd
+	 * @param downsampleXY - the downsampling in XY for this view (see {@link #downsampleXY(ViewDescription)})
+	 * @param t - will be set to the transformation that maps the downsampled image to full resolution
+	 * @param downsampling - will be set to the remaining downsampling per dimension that still needs to be applied
+	 * @return - the (lazily loaded) image, must not be modified
+	 */
+	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > openLazily(
+			final SpimData2 spimData,
+			final ViewDescription vd,
+			final int downsampleXY,
+			final AffineTransform3D t,
+			final int[] downsampling )
+	{
+		IOFunctions.println(
+				"(" + new Date(System.currentTimeMillis()) + "): "
+				+ "Requesting lazily loaded Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+
+		downsampling[ 0 ] = downsampleXY;
+		downsampling[ 1 ] = downsampleXY;
+		downsampling[ 2 ] = downsampleZ;
+
+		final ImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input;
+
+		if ( ( downsampleXY > 1 || downsampleZ > 1 ) && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionImgLoader mrImgLoader = ( MultiResolutionImgLoader ) imgLoader;
+			final int bestLevel = bestMipmapLevel( mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions(), downsampleXY, downsampleXY, downsampleZ );
+			final double[] factors = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions()[ bestLevel ];
+
+			for ( int d = 0; d < 3; ++d )
+				downsampling[ d ] /= (int)Math.round( factors[ d ] );
+
+			IOFunctions.println(
+					"(" + new Date(System.currentTimeMillis()) + "): " +
+					"Using precomputed Multiresolution Images [" + Math.round( factors[ 0 ] ) + "x" + Math.round( factors[ 1 ] ) + "x" + Math.round( factors[ 2 ] ) + "], " +
+					"Remaining downsampling (applied blockwise) [" + downsampling[ 0 ] + "x" + downsampling[ 1 ] + "x" + downsampling[ 2 ] + "]" );
+
+			t.set( mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapTransforms()[ bestLevel ] );
+			input = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false );
+		}
+		else
+		{
+			if ( downsampleXY > 1 || downsampleZ > 1 )
+				IOFunctions.println(
+						"(" + new Date(System.currentTimeMillis()) + "): " +
+						"Downsampling (applied blockwise) [" + downsampling[ 0 ] + "x" + downsampling[ 1 ] + "x" + downsampling[ 2 ] + "]" );
+
+			t.identity();
+			input = imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), false );
+		}
+
+		t.set( downsampleXY, 0, 0 );
+		t.set( downsampleXY, 1, 1 );
+		t.set( downsampleZ, 2, 2 );
+
+		return input;
+	}
+
+	/**
+	 * @return - the coarsest resolution level that is not coarser than the requested downsampling in any dimension
+	 */
+	protected static int bestMipmapLevel( final double[][] mipmapResolutions, final int dsx, final int dsy, final int dsz )
+	{
+		int bestLevel = 0;
+		for ( int level = 0; level < mipmapResolutions.length; ++level )
+		{
+			double[] factors = mipmapResolutions[ level ];
+			
+			// this fails if factors are not ints
+			final int fx = (int)Math.round( factors[ 0 ] );
+			final int fy = (int)Math.round( factors[ 1 ] );
+			final int fz = (int)Math.round( factors[ 2 ] );
+			
+			if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) )
+				bestLevel = level;
+		}
+
+		return bestLevel;
+	}
+
 	private static final boolean contains( final int i, final int[] values )
 	{
 		for ( final int j : values )
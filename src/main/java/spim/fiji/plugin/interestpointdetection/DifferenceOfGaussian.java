@@ -49,6 +49,7 @@ import spim.process.cuda.CUDASeparableConvolution;
 import spim.process.cuda.CUDATools;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.interestpointdetection.ProcessDOG;
+import spim.process.interestpointdetection.ProcessDOGBlockwise;
 
 public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogAppender
 {
@@ -62,8 +63,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	public static boolean defaultFindMin[];
 	public static boolean defaultFindMax[];
 
-	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)" };
+	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)", "CPU (Java, ImgLib2 blockwise)" };
 	public static int defaultComputationChoiceIndex = 0;
+	public static boolean defaultBlockwise = false;
 
 	double[] sigma;
 	double[] threshold;
@@ -79,6 +81,16 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	CUDASeparableConvolution cuda = null;
 	boolean accurateCUDA = false;
 
+	/**
+	 * process the image in blocks without loading it completely (CPU only)
+	 */
+	boolean blockwise = false;
+
+	/**
+	 * use the ImgLib2-native blockwise detection (CPU only), also used if blockwise is set
+	 */
+	boolean imglib2 = false;
+
 	public DifferenceOfGaussian( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
 		super( spimData, viewIdsToProcess );
@@ -97,80 +109,96 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	@Override
 	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
 	{
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
-		
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
-		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				long time1 = System.currentTimeMillis();
-
-				if ( !vd.isPresent() )
-					continue;
-
-				final Channel c = vd.getViewSetup().getChannel();
-
-				final AffineTransform3D correctCoordinates = new AffineTransform3D();
-				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
-
-				long time2 = System.currentTimeMillis();
-
-				benchmark.openFiles += time2 - time1;
-
-				preSmooth( input );
+		return findInterestPoints( t, "DOG" );
+	}
 
-				final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+	@Override
+	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > open( final ViewDescription vd, final int downsampleXY, final AffineTransform3D t, final int[] downsampling )
+	{
+		// the remaining downsampling is applied per block
+		if ( opensLazily() )
+			return openLazily( spimData, vd, downsampleXY, t, downsampling );
+		else
+			return openAndDownsample( spimData, vd, t, downsampleXY );
+	}
 
-				//
-				// compute Difference-of-Gaussian
-				//
-				List< InterestPoint > ips = 
-					ProcessDOG.compute(
-						cuda,
-						deviceList,
-						accurateCUDA,
-						percentGPUMem,
-						img,
-						(Img<net.imglib2.type.numeric.real.FloatType>)input,
-						(float)sigma[ c.getId() ],
-						(float)threshold[ c.getId() ],
-						localization,
-						Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
-						findMin[ c.getId() ],
-						findMax[ c.getId() ],
-						minIntensity,
-						maxIntensity,
-						limitDetections );
+	@Override
+	protected boolean opensLazily() { return blockwise && deviceList == null; }
 
-				img.close();
+	@Override
+	protected List< InterestPoint > detect(
+			final ViewDescription vd,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final int[] downsampling,
+			final AffineTransform3D correctCoordinates )
+	{
+		final Channel c = vd.getViewSetup().getChannel();
 
-				correctForDownsampling( ips, correctCoordinates );
+		List< InterestPoint > ips;
 
-				if ( limitDetections )
-					ips = limitList( maxDetections, maxDetectionsTypeIndex, ips );
+		if ( ( blockwise || imglib2 ) && deviceList == null )
+		{
+			//
+			// compute Difference-of-Gaussian block by block, presmoothing is combined with the DoG
+			//
+			ips =
+				ProcessDOGBlockwise.compute(
+					input,
+					downsampling,
+					(float)sigma[ c.getId() ],
+					(float)threshold[ c.getId() ],
+					localization,
+					Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+					new double[]{ additionalSigmaX, additionalSigmaY, additionalSigmaZ },
+					findMin[ c.getId() ],
+					findMax[ c.getId() ],
+					minIntensity,
+					maxIntensity,
+					limitDetections );
+
+			if ( ips == null )
+				return null;
+		}
+		else
+		{
+			preSmooth( input );
+
+			final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+
+			//
+			// compute Difference-of-Gaussian
+			//
+			ips =
+				ProcessDOG.compute(
+					cuda,
+					deviceList,
+					accurateCUDA,
+					percentGPUMem,
+					img,
+					(Img<net.imglib2.type.numeric.real.FloatType>)input,
+					(float)sigma[ c.getId() ],
+					(float)threshold[ c.getId() ],
+					localization,
+					Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+					findMin[ c.getId() ],
+					findMax[ c.getId() ],
+					minIntensity,
+					maxIntensity,
+					limitDetections );
+
+			img.close();
+		}
 
-				interestPoints.put( vd, ips );
+		correctForDownsampling( ips, correctCoordinates );
 
-				benchmark.computation += System.currentTimeMillis() - time2;
-			}
-			catch ( Exception  e )
-			{
-				IOFunctions.println( "An error occured (DOG): " + e ); 
-				IOFunctions.println( "Failed to segment angleId: " + 
-						vd.getViewSetup().getAngle().getId() + " channelId: " +
-						vd.getViewSetup().getChannel().getId() + " illumId: " +
-						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
-				e.printStackTrace();
-			}
-		}
+		if ( limitDetections )
+			ips = limitList( maxDetections, maxDetectionsTypeIndex, ips );
 
-		return interestPoints;
+		return ips;
 	}
 
 	@Override
@@ -348,20 +376,27 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	protected void addAddtionalParameters( final GenericDialog gd )
 	{
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationChoiceIndex ] );
-		
+		gd.addCheckbox( "Process_blockwise (less memory, CPU only)", defaultBlockwise );
 	}
 
 	@Override
 	protected boolean queryAdditionalParameters( final GenericDialog gd )
 	{
 		final int computationTypeIndex = defaultComputationChoiceIndex = gd.getNextChoiceIndex();
+		blockwise = defaultBlockwise = gd.getNextBoolean();
+		imglib2 = computationTypeIndex == 3;
+
+		final boolean useCUDA = computationTypeIndex == 1 || computationTypeIndex == 2;
+
+		if ( blockwise && useCUDA )
+			IOFunctions.println( "Blockwise processing is only supported on the CPU, processing complete images on the GPU." );
 
 		if ( computationTypeIndex == 1 )
 			accurateCUDA = false;
 		else
 			accurateCUDA = true;
 
-		if ( computationTypeIndex >= 1 )
+		if ( useCUDA )
 		{
 			final ArrayList< String > potentialNames = new ArrayList< String >();
 			potentialNames.add( "separable" );
@@ -23,21 +23,27 @@ package spim.fiji.plugin.interestpointregistration;
 
 import ij.gui.GenericDialog;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.realtransform.AffineTransform3D;
 import spim.Threads;
 import spim.fiji.plugin.Interest_Point_Registration.RegistrationType;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.DescriptorCache;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchCache;
 import spim.process.interestpointregistration.TransformationModel;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
@@ -55,6 +61,12 @@ public abstract class InterestPointRegistration
 
 	List< List< PairwiseMatch > > statistics;
 
+	// per-view descriptors shared by all pairwise matchings of the current subset
+	final DescriptorCache descriptorCache = new DescriptorCache();
+
+	// reuse pairwise matches of previous runs with the same parameters
+	boolean useMatchCache = false;
+
 	/**
 	 * Instantiate the interest point registration. It is performed for a spimdata object on a
 	 * subset of angles, channels, illuminations and timepoints. Each channel is linked to a
@@ -131,10 +143,119 @@ public abstract class InterestPointRegistration
 	}
 
 	protected SpimData2 getSpimData() { return spimData1; }
+
+	/**
+	 * @return - the cache for per-view descriptors, it is cleared once the pairwise matching of a subset finished
+	 */
+	protected DescriptorCache getDescriptorCache() { return descriptorCache; }
+
+	/**
+	 * @param useMatchCache - load the pairwise matches from the {@link PairwiseMatchCache} if they were computed before with the same parameters, and store new ones
+	 */
+	public void setUseMatchCache( final boolean useMatchCache ) { this.useMatchCache = useMatchCache; }
+	public boolean useMatchCache() { return useMatchCache; }
+
+	/**
+	 * @return - all parameters that influence the pairwise matching (including RANSAC), they are part of the key of the
+	 * {@link PairwiseMatchCache}; null if the pairwise matches of this algorithm should not be cached
+	 */
+	protected String getMatchingParameters() { return null; }
+
+	/**
+	 * @return - true if the pairwise matching depends on the current transformations of the views (e.g. ICP), the key
+	 * of the {@link PairwiseMatchCache} then contains the world instead of the local coordinates of the interest points
+	 */
+	protected boolean matchingDependsOnTransformations() { return false; }
+
+	/**
+	 * @return - true if neither the descriptors nor the RANSAC model depend on a rotation of the views (e.g. geometric
+	 * hashing with a rigid or affine model), the key of the {@link PairwiseMatchCache} then ignores the rotation of the
+	 * registrations
+	 */
+	protected boolean matchingIsRotationInvariant() { return false; }
 	public List< ViewId > getViewIdsToProcess() { return viewIdsToProcess; }
 	public List< ChannelProcess > getChannelsToProcess() { return channelsToProcess; }
 	public List< List< PairwiseMatch > > getStatistics() { return statistics; }
 
+	/**
+	 * @return - the cache for pairwise matches next to the XML, or null if the matches should not be cached
+	 */
+	protected PairwiseMatchCache getMatchCache()
+	{
+		if ( !useMatchCache || getMatchingParameters() == null )
+			return null;
+
+		return new PairwiseMatchCache( new File( getSpimData().getBasePath(), PairwiseMatchCache.defaultDirectory ) );
+	}
+
+	/**
+	 * The local coordinates are hashed together with the linear part of the registration of the view, as the pairs are
+	 * matched on world coordinates. The translation never changes the matches (descriptors and RANSAC models are
+	 * translation-invariant), the rotation only does not if {@link #matchingIsRotationInvariant()}.
+	 *
+	 * @param viewId - the view
+	 * @param list - the points used for matching (world coordinates)
+	 * @param hashes - the hashes computed so far
+	 * @return - a hash of the interest points of the view
+	 */
+	protected long getInterestPointHash( final ViewId viewId, final MatchPointList list, final HashMap< String, Long > hashes )
+	{
+		final String label = list.getChannelProcessed().getLabel();
+		final String key = viewId.getTimePointId() + "," + viewId.getViewSetupId() + "," + label;
+
+		Long hash = hashes.get( key );
+
+		if ( hash == null )
+		{
+			if ( matchingDependsOnTransformations() )
+				hash = list.getInterestPointArray().contentHash();
+			else
+				hash = 31 * getSpimData().getViewInterestPoints().getViewInterestPointLists( viewId ).getInterestPointList( label ).getInterestPointArray().contentHash() +
+					linearHash( viewId, matchingIsRotationInvariant() );
+
+			hashes.put( key, hash );
+		}
+
+		return hash;
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param ignoreRotation - hash A^T A instead of A, which is invariant to rotations
+	 * @return - a hash of the linear part A of the registration, rounded to 1e-6 so numerical noise from concatenating
+	 * transformations does not change it
+	 */
+	protected long linearHash( final ViewId viewId, final boolean ignoreRotation )
+	{
+		final ViewRegistration vr = getSpimData().getViewRegistrations().getViewRegistration( viewId );
+		vr.updateModel();
+		final AffineTransform3D t = vr.getModel();
+
+		long hash = 1;
+
+		if ( !ignoreRotation )
+		{
+			for ( int i = 0; i < 3; ++i )
+				for ( int j = 0; j < 3; ++j )
+					hash = 31 * hash + Math.round( t.get( i, j ) * 1e6 );
+
+			return hash;
+		}
+
+		for ( int i = 0; i < 3; ++i )
+			for ( int j = i; j < 3; ++j )
+			{
+				double ata = 0;
+
+				for ( int k = 0; k < 3; ++k )
+					ata += t.get( k, i ) * t.get( k, j );
+
+				hash = 31 * hash + Math.round( ata * 1e6 );
+			}
+
+		return hash;
+	}
+
 	/**
 	 * Registers all timepoints. No matter which matching is done it is always the same principle.
 	 * 
@@ -165,11 +286,31 @@ public abstract class InterestPointRegistration
 
 			final List< PairwiseMatch > pairs = subset.getViewPairs();
 
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ExecutorService taskExecutor = Threads.createExecutor();
 			final ArrayList< Callable< PairwiseMatch > > tasks = new ArrayList< Callable< PairwiseMatch > >(); // your tasks
 
+			final PairwiseMatchCache matchCache = getMatchCache();
+			final HashMap< String, Long > pointHashes = new HashMap< String, Long >();
+			final ArrayList< PairwiseMatch > computedPairs = new ArrayList< PairwiseMatch >();
+			final ArrayList< String > computedKeys = new ArrayList< String >();
+
 			for ( final PairwiseMatch pair : pairs )
 			{
+				if ( matchCache != null )
+				{
+					final String key = PairwiseMatchCache.key(
+							pair,
+							getMatchingParameters(),
+							getInterestPointHash( pair.getViewIdA(), pair.getMatchPointListA(), pointHashes ),
+							getInterestPointHash( pair.getViewIdB(), pair.getMatchPointListB(), pointHashes ) );
+
+					if ( matchCache.load( pair, key ) )
+						continue;
+
+					computedPairs.add( pair );
+					computedKeys.add( key );
+				}
+
 				// just for logging the names and results of pairwise comparison
 				final ViewDescription viewA = spimData.getSequenceDescription().getViewDescription( pair.getViewIdA() );
 				final ViewDescription viewB = spimData.getSequenceDescription().getViewDescription( pair.getViewIdB() );
@@ -192,6 +333,17 @@ public abstract class InterestPointRegistration
 				IOFunctions.println( "Failed to compute registrations for " + subset.getDescription() );
 				e.printStackTrace();
 			}
+
+			// the transformations of the views change after the global optimization
+			descriptorCache.clear();
+
+			if ( matchCache != null )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Reused cached matches for " + ( pairs.size() - computedPairs.size() ) + " of " + pairs.size() + " pairs." );
+
+				for ( int i = 0; i < computedPairs.size(); ++i )
+					matchCache.save( computedPairs.get( i ), computedKeys.get( i ) );
+			}
 			
 			
 			// some statistics
@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.interestpoints;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * A primitive, structure-of-arrays set of interest points. The ids are stored in an int[], the coordinates
+ * packed into a single double[] (x0, y0, z0, x1, y1, z1, ...). Compared to a {@link List} of {@link InterestPoint}s
+ * this avoids two double[] and three object headers per point.
+ *
+ * World coordinates are not kept, {@link #transformed(AffineTransform3D)} creates a new instance that holds them,
+ * so no second copy of every point set stays in memory.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class InterestPointArray
+{
+	final int numDimensions;
+
+	int size;
+	int[] ids;
+	double[] coordinates;
+
+	public InterestPointArray( final int numDimensions, final int capacity )
+	{
+		this.numDimensions = numDimensions;
+		this.size = 0;
+		this.ids = new int[ Math.max( 1, capacity ) ];
+		this.coordinates = new double[ Math.max( 1, capacity ) * numDimensions ];
+	}
+
+	public InterestPointArray( final int numDimensions )
+	{
+		this( numDimensions, 16 );
+	}
+
+	/**
+	 * Wraps existing arrays, they are not copied
+	 *
+	 * @param ids - the ids
+	 * @param coordinates - the packed coordinates, must have ids.length * numDimensions entries
+	 * @param numDimensions - the dimensionality
+	 */
+	public InterestPointArray( final int[] ids, final double[] coordinates, final int numDimensions )
+	{
+		if ( coordinates.length != ids.length * numDimensions )
+			throw new IllegalArgumentException( "Number of coordinates (" + coordinates.length + ") does not match number of ids (" + ids.length + ") * " + numDimensions );
+
+		this.numDimensions = numDimensions;
+		this.size = ids.length;
+		this.ids = ids;
+		this.coordinates = coordinates;
+	}
+
+	public int size() { return size; }
+	public int numDimensions() { return numDimensions; }
+
+	public int getId( final int i ) { return ids[ i ]; }
+	public double getDoublePosition( final int i, final int d ) { return coordinates[ i * numDimensions + d ]; }
+
+	public void localize( final int i, final double[] position )
+	{
+		System.arraycopy( coordinates, i * numDimensions, position, 0, numDimensions );
+	}
+
+	/**
+	 * @return - the ids, might be longer than {@link #size()} (call {@link #trim()} first if necessary)
+	 */
+	public int[] getIds() { return ids; }
+
+	/**
+	 * @return - the packed coordinates, might be longer than {@link #size()} * {@link #numDimensions()} (call {@link #trim()} first if necessary)
+	 */
+	public double[] getCoordinates() { return coordinates; }
+
+	public void add( final int id, final double[] l )
+	{
+		if ( size == ids.length )
+		{
+			final int capacity = ids.length * 3 / 2 + 1;
+			ids = Arrays.copyOf( ids, capacity );
+			coordinates = Arrays.copyOf( coordinates, capacity * numDimensions );
+		}
+
+		ids[ size ] = id;
+		System.arraycopy( l, 0, coordinates, size * numDimensions, numDimensions );
+		++size;
+	}
+
+	/**
+	 * Shrinks the arrays to the actual size
+	 */
+	public void trim()
+	{
+		if ( ids.length != size )
+		{
+			ids = Arrays.copyOf( ids, size );
+			coordinates = Arrays.copyOf( coordinates, size * numDimensions );
+		}
+	}
+
+	/**
+	 * @return - a 64 bit hash of all ids and coordinates, e.g. to detect if the points changed
+	 */
+	public long contentHash()
+	{
+		long hash = 1125899906842597L;
+
+		for ( int i = 0; i < size; ++i )
+			hash = 31 * hash + ids[ i ];
+
+		for ( int i = 0; i < size * numDimensions; ++i )
+			hash = 31 * hash + Double.doubleToLongBits( coordinates[ i ] );
+
+		return 31 * hash + numDimensions;
+	}
+
+	/**
+	 * @param t - the transformation from local to world coordinates
+	 * @return - a new array with the packed world coordinates
+	 */
+	public double[] getWorldCoordinates( final AffineTransform3D t )
+	{
+		final double[] w = new double[ size * numDimensions ];
+		final double[] l = new double[ numDimensions ];
+		final double[] tmp = new double[ numDimensions ];
+
+		for ( int i = 0, o = 0; i < size; ++i, o += numDimensions )
+		{
+			System.arraycopy( coordinates, o, l, 0, numDimensions );
+			t.apply( l, tmp );
+			System.arraycopy( tmp, 0, w, o, numDimensions );
+		}
+
+		return w;
+	}
+
+	/**
+	 * @param t - the transformation from local to world coordinates
+	 * @return - a new {@link InterestPointArray} in world coordinates that shares the ids with this one
+	 */
+	public InterestPointArray transformed( final AffineTransform3D t )
+	{
+		trim();
+		return new InterestPointArray( ids, getWorldCoordinates( t ), numDimensions );
+	}
+
+	/**
+	 * @param i - the index
+	 * @return - a new {@link InterestPoint} instance for point i
+	 */
+	public InterestPoint get( final int i )
+	{
+		final double[] l = new double[ numDimensions ];
+		localize( i, l );
+		return new InterestPoint( ids[ i ], l );
+	}
+
+	/**
+	 * @return - a new modifiable list containing all points as {@link InterestPoint}s
+	 */
+	public ArrayList< InterestPoint > toList()
+	{
+		final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >( size );
+
+		for ( int i = 0; i < size; ++i )
+			list.add( get( i ) );
+
+		return list;
+	}
+
+	/**
+	 * @return - a read-only view as {@link List} that creates {@link InterestPoint} instances on demand
+	 */
+	public List< InterestPoint > asList()
+	{
+		return new AbstractList< InterestPoint >()
+		{
+			@Override
+			public InterestPoint get( final int index ) { return InterestPointArray.this.get( index ); }
+
+			@Override
+			public int size() { return size; }
+		};
+	}
+
+	public static InterestPointArray fromList( final List< InterestPoint > list )
+	{
+		final int n = list.size();
+		final int numDimensions = n == 0 ? 3 : list.get( 0 ).getL().length;
+
+		final int[] ids = new int[ n ];
+		final double[] coordinates = new double[ n * numDimensions ];
+
+		int i = 0;
+
+		for ( final InterestPoint p : list )
+		{
+			ids[ i ] = p.getId();
+			System.arraycopy( p.getL(), 0, coordinates, i * numDimensions, numDimensions );
+			++i;
+		}
+
+		return new InterestPointArray( ids, coordinates, numDimensions );
+	}
+}
@@ -0,0 +1,347 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.interestpoints;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.XmlIoSpimData2;
+
+/**
+ * Reads and writes interest points and correspondences in a compact, column-wise binary format.
+ * Files are read in one piece into a buffer on load so no text parsing is necessary.
+ *
+ * Interest points (.ip.bin): header (magic, version, numPoints, numDimensions, bytes per coordinate),
+ * followed by all ids as int[] and the coordinates as one double[] (or float[]) column per dimension.
+ *
+ * Correspondences (.corr.bin): header (magic, version, numCorrespondences, numLabels), the labels as
+ * length-prefixed UTF-8 strings, followed by one packed int tuple (detectionId, timepointId, viewSetupId,
+ * labelIndex, correspondingDetectionId) per correspondence.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class InterestPointBinaryIO
+{
+	public static final int MAGIC_INTERESTPOINTS = 0x53504950; // "SPIP"
+	public static final int MAGIC_CORRESPONDENCES = 0x53504352; // "SPCR"
+	public static final int VERSION = 1;
+
+	/**
+	 * Store coordinates as float instead of double (half the size, ~1e-7 relative precision)
+	 */
+	public static boolean storeAsFloat = false;
+
+	final static ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+	final static Charset utf8 = Charset.forName( "UTF-8" );
+
+	public static void writeInterestPoints( final File file, final InterestPointArray points ) throws IOException
+	{
+		final int n = points.size();
+		final int numDimensions = points.numDimensions();
+		final int bytesPerCoordinate = storeAsFloat ? 4 : 8;
+
+		final ByteBuffer buffer = allocate( file, 5 * 4 + n * 4L + (long)n * numDimensions * bytesPerCoordinate );
+
+		buffer.putInt( MAGIC_INTERESTPOINTS );
+		buffer.putInt( VERSION );
+		buffer.putInt( n );
+		buffer.putInt( numDimensions );
+		buffer.putInt( bytesPerCoordinate );
+
+		for ( int i = 0; i < n; ++i )
+			buffer.putInt( points.getId( i ) );
+
+		for ( int d = 0; d < numDimensions; ++d )
+			for ( int i = 0; i < n; ++i )
+				if ( storeAsFloat )
+					buffer.putFloat( (float)points.getDoublePosition( i, d ) );
+				else
+					buffer.putDouble( points.getDoublePosition( i, d ) );
+
+		write( file, buffer );
+	}
+
+	public static InterestPointArray readInterestPoints( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = read( file );
+
+		if ( buffer.getInt() != MAGIC_INTERESTPOINTS )
+			throw new IOException( "'" + file + "' is not a binary interest point file." );
+
+		final int version = buffer.getInt();
+
+		if ( version > VERSION )
+			throw new IOException( "'" + file + "' has unsupported version " + version + "." );
+
+		final int n = buffer.getInt();
+		final int numDimensions = buffer.getInt();
+		final int bytesPerCoordinate = buffer.getInt();
+
+		final int[] ids = new int[ n ];
+		buffer.asIntBuffer().get( ids );
+		buffer.position( buffer.position() + n * 4 );
+
+		// interleave the columns while reading them from the buffer
+		final double[] packed = new double[ n * numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			if ( bytesPerCoordinate == 4 )
+			{
+				final FloatBuffer column = buffer.asFloatBuffer();
+
+				for ( int i = 0; i < n; ++i )
+					packed[ i * numDimensions + d ] = column.get( i );
+			}
+			else
+			{
+				final DoubleBuffer column = buffer.asDoubleBuffer();
+
+				for ( int i = 0; i < n; ++i )
+					packed[ i * numDimensions + d ] = column.get( i );
+			}
+
+			buffer.position( buffer.position() + n * bytesPerCoordinate );
+		}
+
+		return new InterestPointArray( ids, packed, numDimensions );
+	}
+
+	public static void writeCorrespondingInterestPoints( final File file, final List< CorrespondingInterestPoints > list ) throws IOException
+	{
+		// collect the (few) distinct labels
+		final ArrayList< byte[] > labels = new ArrayList< byte[] >();
+		final HashMap< String, Integer > labelIndex = new HashMap< String, Integer >();
+		long labelBytes = 0;
+
+		for ( final CorrespondingInterestPoints p : list )
+			if ( !labelIndex.containsKey( p.getCorrespodingLabel() ) )
+			{
+				final byte[] label = p.getCorrespodingLabel().getBytes( utf8 );
+				labelIndex.put( p.getCorrespodingLabel(), labels.size() );
+				labels.add( label );
+				labelBytes += 4 + label.length;
+			}
+
+		final int n = list.size();
+
+		final ByteBuffer buffer = allocate( file, 4 * 4 + labelBytes + n * 5 * 4L );
+
+		buffer.putInt( MAGIC_CORRESPONDENCES );
+		buffer.putInt( VERSION );
+		buffer.putInt( n );
+		buffer.putInt( labels.size() );
+
+		for ( final byte[] label : labels )
+		{
+			buffer.putInt( label.length );
+			buffer.put( label );
+		}
+
+		for ( final CorrespondingInterestPoints p : list )
+		{
+			buffer.putInt( p.getDetectionId() );
+			buffer.putInt( p.getCorrespondingViewId().getTimePointId() );
+			buffer.putInt( p.getCorrespondingViewId().getViewSetupId() );
+			buffer.putInt( labelIndex.get( p.getCorrespodingLabel() ) );
+			buffer.putInt( p.getCorrespondingDetectionId() );
+		}
+
+		write( file, buffer );
+	}
+
+	public static List< CorrespondingInterestPoints > readCorrespondingInterestPoints( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = read( file );
+
+		if ( buffer.getInt() != MAGIC_CORRESPONDENCES )
+			throw new IOException( "'" + file + "' is not a binary correspondence file." );
+
+		final int version = buffer.getInt();
+
+		if ( version > VERSION )
+			throw new IOException( "'" + file + "' has unsupported version " + version + "." );
+
+		final int n = buffer.getInt();
+		final int numLabels = buffer.getInt();
+
+		final String[] labels = new String[ numLabels ];
+
+		for ( int l = 0; l < numLabels; ++l )
+		{
+			final byte[] label = new byte[ buffer.getInt() ];
+			buffer.get( label );
+			labels[ l ] = new String( label, utf8 );
+		}
+
+		final int[] tuples = new int[ n * 5 ];
+		final IntBuffer intBuffer = buffer.asIntBuffer();
+		intBuffer.get( tuples );
+
+		// the ViewIds are shared between all correspondences to the same view
+		final HashMap< ViewId, ViewId > viewIds = new HashMap< ViewId, ViewId >();
+		final ArrayList< CorrespondingInterestPoints > list = new ArrayList< CorrespondingInterestPoints >( n );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final int o = i * 5;
+
+			ViewId viewId = new ViewId( tuples[ o + 1 ], tuples[ o + 2 ] );
+			final ViewId existing = viewIds.get( viewId );
+
+			if ( existing == null )
+				viewIds.put( viewId, viewId );
+			else
+				viewId = existing;
+
+			list.add( new CorrespondingInterestPoints( tuples[ o ], viewId, labels[ tuples[ o + 3 ] ], tuples[ o + 4 ] ) );
+		}
+
+		return list;
+	}
+
+	/**
+	 * Converts all interest point lists of an XML between text and binary storage and saves the XML
+	 *
+	 * @param spimData - the dataset
+	 * @param binary - true to convert to binary, false to convert to text
+	 * @return - the number of lists that were converted
+	 */
+	public static int convert( final SpimData2 spimData, final boolean binary )
+	{
+		int count = 0;
+
+		for ( final ViewInterestPointLists vipl : spimData.getViewInterestPoints().getViewInterestPoints().values() )
+			for ( final String label : vipl.getHashMap().keySet() )
+			{
+				final InterestPointList ipl = vipl.getInterestPointList( label );
+
+				if ( ipl.isBinary() != binary && ipl.convert( binary ) )
+					++count;
+			}
+
+		return count;
+	}
+
+	/**
+	 * Reads the whole file into a heap buffer. A memory-mapped file would stay mapped until the buffer is
+	 * garbage-collected, which prevents overwriting or deleting it on Windows within the same session.
+	 */
+	protected static ByteBuffer read( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+
+			if ( size > Integer.MAX_VALUE )
+				throw new IOException( "'" + file + "' is too large (" + size + " bytes)." );
+
+			final ByteBuffer buffer = ByteBuffer.allocate( (int)size );
+
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer ) < 0 )
+					throw new IOException( "Unexpected end of file '" + file + "'." );
+
+			buffer.flip();
+			buffer.order( order );
+			return buffer;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param size - the size of the buffer, computed as long so it cannot overflow
+	 */
+	protected static ByteBuffer allocate( final File file, final long size ) throws IOException
+	{
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException( "'" + file + "' would be too large (" + size + " bytes)." );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( (int)size );
+		buffer.order( order );
+		return buffer;
+	}
+
+	protected static void write( final File file, final ByteBuffer buffer ) throws IOException
+	{
+		buffer.flip();
+
+		final FileOutputStream out = new FileOutputStream( file );
+
+		try
+		{
+			final FileChannel channel = out.getChannel();
+
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Converts the interest points of an existing XML, usage: InterestPointBinaryIO dataset.xml [binary|text]
+	 */
+	public static void main( String[] args ) throws SpimDataException
+	{
+		if ( args.length < 1 )
+		{
+			System.out.println( "usage: InterestPointBinaryIO dataset.xml [binary|text]" );
+			return;
+		}
+
+		final boolean binary = args.length < 2 || !args[ 1 ].equalsIgnoreCase( "text" );
+
+		final XmlIoSpimData2 io = new XmlIoSpimData2( "" );
+		final SpimData2 spimData = io.load( args[ 0 ] );
+
+		final int count = convert( spimData, binary );
+
+		io.save( spimData, args[ 0 ] );
+
+		IOFunctions.println( "Converted " + count + " interest point lists to " + ( binary ? "binary" : "text" ) + " in '" + args[ 0 ] + "'." );
+	}
+}
@@ -33,7 +33,7 @@ import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.io.TextFileAccess;
 
 /**
- * A list of interest points for a certain label, can save and load from textfile as specified in the XML
+ * A list of interest points for a certain label, can save and load from textfile or binary file as specified in the XML
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -41,30 +41,57 @@ import mpicbg.spim.io.TextFileAccess;
 public class InterestPointList
 {
 	File baseDir, file;
-	List< InterestPoint > interestPoints;
+	InterestPointArray interestPointArray;
 	List< CorrespondingInterestPoints > correspondingInterestPoints;
 	String parameters;
-	
+	boolean binary;
+
+	/**
+	 * Whether newly created lists are stored in the binary format (see {@link InterestPointBinaryIO})
+	 */
+	public static boolean defaultBinary = false;
+
 	/**
 	 * Instantiates a new {@link InterestPointList}
 	 * 
 	 * @param baseDir - the path where the xml is
-	 * @param file - relative path to the file to load/save the list from, an extension is added automatically (.ip.txt &amp;&amp; .corr.txt)
+	 * @param file - relative path to the file to load/save the list from, an extension is added automatically (.ip.txt &amp;&amp; .corr.txt,
+	 * or .ip.bin &amp;&amp; .corr.bin if stored binary)
 	 * for interestpoints and correspondences
 	 */
 	public InterestPointList( final File baseDir, final File file )
 	{
 		this.baseDir = baseDir;
 		this.file = file;
-		this.interestPoints = null;
+		this.interestPointArray = null;
 		this.correspondingInterestPoints = null;
 		this.parameters = "";
+		this.binary = defaultBinary;
+	}
+
+	/**
+	 * The points are always held as {@link InterestPointArray}, the list is a read-only view on it that creates
+	 * the {@link InterestPoint}s on demand (use {@link InterestPointArray#toList()} for a modifiable copy).
+	 *
+	 * @return - the list of interest points, null if not loaded
+	 */
+	public synchronized List< InterestPoint > getInterestPoints()
+	{
+		if ( this.interestPointArray == null )
+			return null;
+
+		return this.interestPointArray.asList();
 	}
 
 	/**
-	 * @return - the list of interest points, tries to load it from disk if not available
+	 * @return - the interest points as structure-of-arrays, null if not loaded
+	 */
+	public synchronized InterestPointArray getInterestPointArray() { return this.interestPointArray; }
+
+	/**
+	 * @return - true if the interest points are loaded
 	 */
-	public List< InterestPoint > getInterestPoints() { return this.interestPoints; }
+	public synchronized boolean hasInterestPoints() { return this.interestPointArray != null; }
 
 	/**
 	 * @return - the list of corresponding interest points, tries to load it from disk if not available
@@ -75,20 +102,58 @@ public class InterestPointList
 	public File getFile() { return file; }
 	public String getParameters() { return parameters; }
 	public void setParameters( final String parameters ) { this.parameters = parameters; }
-	public void setInterestPoints( final List< InterestPoint > list ) { this.interestPoints = list; }
+	public synchronized void setInterestPoints( final List< InterestPoint > list ) { this.interestPointArray = list == null ? null : InterestPointArray.fromList( list ); }
+	public synchronized void setInterestPointArray( final InterestPointArray points ) { this.interestPointArray = points; }
 	public void setCorrespondingInterestPoints( final List< CorrespondingInterestPoints > list ) { this.correspondingInterestPoints = list; }
 	
 	public void setFile( final File file ) { this.file = file; }
 	public void setBaseDir( final File baseDir ) { this.baseDir = baseDir; }
 	
-	public String getInterestPointsExt() { return ".ip.txt"; }
-	public String getCorrespondencesExt() { return ".corr.txt"; }
-	
+	/**
+	 * @return - true if the interest points and correspondences are stored in the binary format
+	 */
+	public boolean isBinary() { return binary; }
+	public void setBinary( final boolean binary ) { this.binary = binary; }
+
+	public String getInterestPointsExt() { return binary ? getInterestPointsBinaryExt() : getInterestPointsTextExt(); }
+	public String getCorrespondencesExt() { return binary ? getCorrespondencesBinaryExt() : getCorrespondencesTextExt(); }
+
+	public String getInterestPointsTextExt() { return ".ip.txt"; }
+	public String getCorrespondencesTextExt() { return ".corr.txt"; }
+	public String getInterestPointsBinaryExt() { return ".ip.bin"; }
+	public String getCorrespondencesBinaryExt() { return ".corr.bin"; }
+
+	/**
+	 * Loads the list in its current format and saves it in the requested format
+	 * 
+	 * @param binary - true for binary, false for text
+	 * @return - true if the interest points could be converted
+	 */
+	public boolean convert( final boolean binary )
+	{
+		if ( !hasInterestPoints() && !loadInterestPoints() )
+			return false;
+
+		// correspondences do not exist until a registration was computed
+		if ( getCorrespondingInterestPoints() == null )
+			loadCorrespondingInterestPoints();
+
+		setBinary( binary );
+
+		if ( !saveInterestPoints() )
+			return false;
+
+		if ( getCorrespondingInterestPoints() != null && getCorrespondingInterestPoints().size() > 0 )
+			return saveCorrespondingInterestPoints();
+
+		return true;
+	}
+
 	public boolean saveInterestPoints()
 	{
-		final List< InterestPoint > list = getInterestPoints();
-		
-		if ( list == null )
+		final InterestPointArray points = getInterestPointArray();
+
+		if ( points == null )
 			return false;
 		
 		try
@@ -101,14 +166,20 @@ public class InterestPointList
 				dir.mkdirs();
 			}
 			
+			if ( binary )
+			{
+				InterestPointBinaryIO.writeInterestPoints( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ), points );
+				return true;
+			}
+
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
 			
 			// header
 			out.println( "id" + "\t" + "x" + "\t" + "y" + "\t" + "z" );
 			
 			// id && coordinates in the local image stack for each interestpoint
-			for ( final InterestPoint p : list )
-				out.println( p.getId() + "\t" + p.getL()[0] + "\t" + p.getL()[1] + "\t" + p.getL()[2] );
+			for ( int i = 0; i < points.size(); ++i )
+				out.println( points.getId( i ) + "\t" + points.getDoublePosition( i, 0 ) + "\t" + points.getDoublePosition( i, 1 ) + "\t" + points.getDoublePosition( i, 2 ) );
 						
 			out.close();
 			
@@ -139,6 +210,12 @@ public class InterestPointList
 				dir.mkdirs();
 			}
 			
+			if ( binary )
+			{
+				InterestPointBinaryIO.writeCorrespondingInterestPoints( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ), list );
+				return true;
+			}
+
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
 			
 			// header
@@ -164,9 +241,19 @@ public class InterestPointList
 	{
 		try 
 		{
+			// read whatever exists, the format might have been changed without converting the files
+			final File binaryFile = new File( getBaseDir(), getFile().toString() + getCorrespondencesBinaryExt() );
+			final File textFile = new File( getBaseDir(), getFile().toString() + getCorrespondencesTextExt() );
+
+			if ( binaryFile.exists() && ( binary || !textFile.exists() ) )
+			{
+				this.correspondingInterestPoints = InterestPointBinaryIO.readCorrespondingInterestPoints( binaryFile );
+				return true;
+			}
+
 			this.correspondingInterestPoints = new ArrayList< CorrespondingInterestPoints >();
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );			
+			final BufferedReader in = TextFileAccess.openFileReadEx( textFile );
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -202,9 +289,20 @@ public class InterestPointList
 	{
 		try
 		{
-			this.interestPoints = new ArrayList< InterestPoint >();
+			// read whatever exists, the format might have been changed without converting the files
+			final File binaryFile = new File( getBaseDir(), getFile().toString() + getInterestPointsBinaryExt() );
+			final File textFile = new File( getBaseDir(), getFile().toString() + getInterestPointsTextExt() );
+
+			if ( binaryFile.exists() && ( binary || !textFile.exists() ) )
+			{
+				setInterestPointArray( InterestPointBinaryIO.readInterestPoints( binaryFile ) );
+				return true;
+			}
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+			final InterestPointArray points = new InterestPointArray( 3 );
+			final double[] l = new double[ 3 ];
+
+			final BufferedReader in = TextFileAccess.openFileReadEx( textFile );
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -213,18 +311,18 @@ public class InterestPointList
 			{
 				final String p[] = in.readLine().split( "\t" );
 				
-				final InterestPoint point = new InterestPoint( 
-						Integer.parseInt( p[ 0 ].trim() ),
-						new double[]{ 
-							Double.parseDouble( p[ 1 ].trim() ),
-							Double.parseDouble( p[ 2 ].trim() ),
-							Double.parseDouble( p[ 3 ].trim() ) } );
-				
-				this.interestPoints.add( point );
+				l[ 0 ] = Double.parseDouble( p[ 1 ].trim() );
+				l[ 1 ] = Double.parseDouble( p[ 2 ].trim() );
+				l[ 2 ] = Double.parseDouble( p[ 3 ].trim() );
+
+				points.add( Integer.parseInt( p[ 0 ].trim() ), l );
 			}
 
 			in.close();
-			
+
+			points.trim();
+			setInterestPointArray( points );
+
 			return true;
 		} 
 		catch ( final IOException e )
@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
@@ -46,6 +45,38 @@ import spim.process.fusion.ImagePortion;
 
 public class Block 
 {
+	/**
+	 * A pointwise operation that is applied while the convolved block is written back into the target
+	 * image, so it does not require another pass over the entire image.
+	 */
+	public static interface PasteOperation
+	{
+		/**
+		 * @return - a new instance that is used by a single thread
+		 */
+		public PasteOperation newInstance();
+
+		/**
+		 * @return - true if {@link #compute(float, float, int)} can be used, i.e. all images it needs are 3d ArrayImgs of the same size as the target
+		 */
+		public boolean supportsArrays();
+
+		/**
+		 * @param blockValue - the convolved value
+		 * @param target - the target image, positioned at the pixel that will be written
+		 * @return - the value to write
+		 */
+		public float compute( final float blockValue, final RandomAccess< FloatType > target );
+
+		/**
+		 * @param blockValue - the convolved value
+		 * @param targetValue - the current value of the target image
+		 * @param targetIndex - the index of the pixel in the target ArrayImg
+		 * @return - the value to write
+		 */
+		public float compute( final float blockValue, final float targetValue, final int targetIndex );
+	}
+
 	/**
 	 * the number of dimensions of this block
 	 */
@@ -106,7 +137,7 @@ public class Block
 
 		// split up into many parts for multithreading
 		this.portions = FusionHelper.divideIntoPortions( n, Threads.numThreads() * 2 );
-		this.taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		this.taskExecutor = Threads.createExecutor();
 	}
 
 	public long[] getBlockSize()
@@ -132,6 +163,16 @@ public class Block
 	 * @param block - the Block to copy it to
 	 */
 	public void copyBlock( final RandomAccessible< FloatType > source, final RandomAccessibleInterval< FloatType > block )
+	{
+		copyBlock( source, block, true );
+	}
+
+	/**
+	 * @param source - needs to be extended with an OutOfBounds in case the block extends past the boundaries of the RandomAccessibleInterval
+	 * @param block - the Block to copy it to
+	 * @param multiThreaded - if false, the copy is done in the calling thread (e.g. if several blocks are processed in parallel)
+	 */
+	public void copyBlock( final RandomAccessible< FloatType > source, final RandomAccessibleInterval< FloatType > block, final boolean multiThreaded )
 	{
 		// set up threads
 		final ArrayList< Callable< Boolean > > tasks = new ArrayList< Callable< Boolean > >();
@@ -162,9 +203,13 @@ public class Block
 		try
 		{
 			// invokeAll() returns when all tasks are complete
-			taskExecutor.invokeAll( tasks );
+			if ( multiThreaded )
+				taskExecutor.invokeAll( tasks );
+			else
+				for ( final Callable< Boolean > task : tasks )
+					task.call();
 		}
-		catch ( final InterruptedException e )
+		catch ( final Exception e )
 		{
 			IOFunctions.println( "Failed to copy block: " + e );
 			e.printStackTrace();
@@ -173,6 +218,27 @@ public class Block
 	}
 
 	public void pasteBlock( final RandomAccessibleInterval< FloatType > target, final RandomAccessibleInterval< FloatType > block )
+	{
+		pasteBlock( target, block, null );
+	}
+
+	/**
+	 * @param target - the image to write to
+	 * @param block - the convolved block
+	 * @param op - the operation that computes the written value, or null to just copy the block
+	 */
+	public void pasteBlock( final RandomAccessibleInterval< FloatType > target, final RandomAccessibleInterval< FloatType > block, final PasteOperation op )
+	{
+		pasteBlock( target, block, op, true );
+	}
+
+	/**
+	 * @param target - the image to write to
+	 * @param block - the convolved block
+	 * @param op - the operation that computes the written value, or null to just copy the block
+	 * @param multiThreaded - if false, the paste is done in the calling thread (e.g. if several blocks are processed in parallel)
+	 */
+	public void pasteBlock( final RandomAccessibleInterval< FloatType > target, final RandomAccessibleInterval< FloatType > block, final PasteOperation op, final boolean multiThreaded )
 	{
 		// set up threads
 		final ArrayList< Callable< Boolean > > tasks = new ArrayList< Callable< Boolean > >();
@@ -187,12 +253,14 @@ public class Block
 				@Override
 				public Boolean call() throws Exception
 				{
-					if ( target.numDimensions() == 3 && ArrayImg.class.isInstance( target ) && ArrayImg.class.isInstance( block ) )
-						paste3d( threadIdx, portions.size(), (ArrayImg< FloatType, ?>)target, (ArrayImg< FloatType, ?>)block, effectiveOffset, effectiveSize, effectiveLocalOffset );
+					final PasteOperation threadOp = op == null ? null : op.newInstance();
+
+					if ( target.numDimensions() == 3 && ArrayImg.class.isInstance( target ) && ArrayImg.class.isInstance( block ) && ( op == null || op.supportsArrays() ) )
+						paste3d( threadIdx, portions.size(), (ArrayImg< FloatType, ?>)target, (ArrayImg< FloatType, ?>)block, effectiveOffset, effectiveSize, effectiveLocalOffset, threadOp );
 					else
 					{
 						final ImagePortion portion = portions.get( threadIdx );
-						paste( portion.getStartPosition(), portion.getLoopSize(), target, block, effectiveOffset, effectiveSize, effectiveLocalOffset );
+						paste( portion.getStartPosition(), portion.getLoopSize(), target, block, effectiveOffset, effectiveSize, effectiveLocalOffset, threadOp );
 					}
 					
 					return true;
@@ -204,9 +272,13 @@ public class Block
 		try
 		{
 			// invokeAll() returns when all tasks are complete
-			taskExecutor.invokeAll( tasks );
+			if ( multiThreaded )
+				taskExecutor.invokeAll( tasks );
+			else
+				for ( final Callable< Boolean > task : tasks )
+					task.call();
 		}
-		catch ( final InterruptedException e )
+		catch ( final Exception e )
 		{
 			IOFunctions.println( "Failed to paste block: " + e );
 			e.printStackTrace();
@@ -291,7 +363,7 @@ public class Block
 	}
 
 	private static final void paste( final long start, final long loopSize, final RandomAccessibleInterval< FloatType > target, final RandomAccessibleInterval< FloatType > block, 
-			final long[] effectiveOffset, final long[] effectiveSize, final long[] effectiveLocalOffset )
+			final long[] effectiveOffset, final long[] effectiveSize, final long[] effectiveLocalOffset, final PasteOperation op )
 	{
 		final int numDimensions = target.numDimensions();
 		
@@ -326,12 +398,15 @@ public class Block
 			targetRandomAccess.setPosition( tmp );
 
 			// write the pixel
-			targetRandomAccess.get().set( blockRandomAccess.get() );
+			if ( op == null )
+				targetRandomAccess.get().set( blockRandomAccess.get() );
+			else
+				targetRandomAccess.get().set( op.compute( blockRandomAccess.get().get(), targetRandomAccess ) );
 		}
 	}
 
 	private static final void paste3d( final int threadIdx, final int numThreads, final ArrayImg< FloatType, ? > target, final ArrayImg< FloatType, ? > block, 
-			final long[] effectiveOffset, final long[] effectiveSize, final long[] effectiveLocalOffset )
+			final long[] effectiveOffset, final long[] effectiveSize, final long[] effectiveLocalOffset, final PasteOperation op )
 	{
 		// min position in the output
 		final int minX = (int)effectiveOffset[ 0 ];
@@ -370,7 +445,10 @@ public class Block
 			
 			for ( int y = minY; y < maxY; ++y )
 			{
-				copyX( blockArray, targetArray, sX, iTarget, iBlock );
+				if ( op == null )
+					copyX( blockArray, targetArray, sX, iTarget, iBlock );
+				else
+					computeX( blockArray, targetArray, sX, iTarget, iBlock, op );
 
 				iTarget += w;
 				iBlock += wb;
@@ -384,6 +462,12 @@ public class Block
 			targetArray[ iTarget++ ] = blockArray[ iBlock++ ];
 	}
 
+	private static final void computeX( final float[] blockArray, final float[] targetArray, final int count, int iTarget, int iBlock, final PasteOperation op )
+	{
+		for ( int x = 0; x < count; ++x, ++iTarget )
+			targetArray[ iTarget ] = op.compute( blockArray[ iBlock++ ], targetArray[ iTarget ], iTarget );
+	}
+
 	public static void main( String[] args )
 	{
 		// define the blocksize so that it is one single block
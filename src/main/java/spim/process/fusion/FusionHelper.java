@@ -26,7 +26,6 @@ import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import mpicbg.spim.data.sequence.Angle;
@@ -37,8 +36,13 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
@@ -80,6 +84,43 @@ public class FusionHelper
 			return false;
 	}
 
+	/**
+	 * @param transform - the transformation of the view
+	 * @param size - the dimensions of the view
+	 * @return - the bounding box in world coordinates that contains all locations for which intersects() is true
+	 */
+	public static final FinalRealInterval transformedBoundingBox( final AffineTransform3D transform, final Dimensions size )
+	{
+		final double[] min = new double[ size.numDimensions() ];
+		final double[] max = new double[ size.numDimensions() ];
+
+		for ( int d = 0; d < size.numDimensions(); ++d )
+			max[ d ] = size.dimension( d );
+
+		return transform.estimateBounds( new FinalRealInterval( min, max ) );
+	}
+
+	/**
+	 * @param transform - the transformation of the view
+	 * @param step - the step size along x in world coordinates
+	 * @return - how the local coordinates of the view change when moving by step along x in world coordinates
+	 */
+	public static final double[] inverseIncrement( final AffineTransform3D transform, final double step )
+	{
+		final AffineTransform3D inverse = transform.inverse();
+
+		return new double[]{ inverse.get( 0, 0 ) * step, inverse.get( 1, 0 ) * step, inverse.get( 2, 0 ) * step };
+	}
+
+	public static final boolean overlaps( final RealInterval a, final RealInterval b )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.realMin( d ) > b.realMax( d ) || a.realMax( d ) < b.realMin( d ) )
+				return false;
+
+		return true;
+	}
+
 	public static final ArrayList< ViewDescription > assembleInputData(
 			final SpimData2 spimData,
 			final TimePoint timepoint,
@@ -113,7 +154,7 @@ public class FusionHelper
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( iterable.size(), Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< Callable< float[] > > tasks = new ArrayList< Callable< float[] > >();
 
 		for ( final ImagePortion portion : portions )
@@ -210,7 +251,7 @@ public class FusionHelper
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( iterable.size(), Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< Callable< String > > tasks = new ArrayList< Callable< String > >();
 
 		for ( final ImagePortion portion : portions )
@@ -279,4 +320,46 @@ public class FusionHelper
 		return portions;
 	}
 
+	/**
+	 * Divides an image into blocks of (at most) the given size, the last block in each dimension may be smaller
+	 *
+	 * @param imageSize - the dimensions of the image
+	 * @param blockSize - the size of the blocks
+	 * @return - the intervals of all blocks, ordered by z, y, x
+	 */
+	public static final Vector< FinalInterval > divideIntoBlocks( final long[] imageSize, final int[] blockSize )
+	{
+		final int n = imageSize.length;
+		final long[] numBlocks = new long[ n ];
+		long totalBlocks = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numBlocks[ d ] = imageSize[ d ] / blockSize[ d ] + Math.min( imageSize[ d ] % blockSize[ d ], 1 );
+			totalBlocks *= numBlocks[ d ];
+		}
+
+		final Vector< FinalInterval > blocks = new Vector< FinalInterval >();
+
+		for ( long i = 0; i < totalBlocks; ++i )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			long index = i;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long blockIndex = index % numBlocks[ d ];
+				index /= numBlocks[ d ];
+
+				min[ d ] = blockIndex * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ], imageSize[ d ] ) - 1;
+			}
+
+			blocks.add( new FinalInterval( min, max ) );
+		}
+
+		return blocks;
+	}
 }
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Divides the fused image into a grid of blocks and remembers for every block which views
+ * overlap with it, so the fusion only needs to visit those views for a certain pixel.
+ *
+ * A view overlaps a block if the transformed bounding box of the view intersects the block in
+ * world coordinates and the block (inversely transformed) intersects the view in local coordinates.
+ * This is conservative, the fusion still has to test every pixel using FusionHelper.intersects().
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ViewOverlapIndex
+{
+	public static int defaultBlockSize = 64;
+
+	final int blockSize;
+	final int[] numBlocks;
+	final int[][] views;
+
+	/**
+	 * @param imgs - the input images (only their size is used)
+	 * @param transforms - the transformations of the input images
+	 * @param bb - the bounding box that is fused (including downsampling)
+	 * @param blockSize - the size of the blocks in pixels of the fused image
+	 */
+	public ViewOverlapIndex( final List< ? extends Dimensions > imgs, final AffineTransform3D[] transforms, final BoundingBoxGUI bb, final int blockSize )
+	{
+		this.blockSize = blockSize;
+
+		final long[] dim = bb.getDimensions();
+		final int downSampling = bb.getDownSampling();
+
+		this.numBlocks = new int[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			numBlocks[ d ] = (int)Math.max( 1, dim[ d ] / blockSize + Math.min( dim[ d ] % blockSize, 1 ) );
+
+		final int numViews = imgs.size();
+
+		// the bounding boxes of the views in world coordinates and the inverse transformations
+		final FinalRealInterval[] worldBounds = new FinalRealInterval[ numViews ];
+		final AffineTransform3D[] inverse = new AffineTransform3D[ numViews ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			worldBounds[ i ] = FusionHelper.transformedBoundingBox( transforms[ i ], imgs.get( i ) );
+			inverse[ i ] = transforms[ i ].inverse();
+		}
+
+		this.views = new int[ numBlocks[ 0 ] * numBlocks[ 1 ] * numBlocks[ 2 ] ][];
+
+		// most blocks share the same list of views, only keep one instance of each
+		final HashMap< List< Integer >, int[] > distinct = new HashMap< List< Integer >, int[] >();
+
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+
+		for ( int z = 0; z < numBlocks[ 2 ]; ++z )
+			for ( int y = 0; y < numBlocks[ 1 ]; ++y )
+				for ( int x = 0; x < numBlocks[ 0 ]; ++x )
+				{
+					final int[] blockPos = new int[]{ x, y, z };
+
+					// the block in world coordinates (the last block might be a bit too large, that does not matter)
+					for ( int d = 0; d < 3; ++d )
+					{
+						min[ d ] = (double)blockPos[ d ] * blockSize * downSampling + bb.min( d );
+						max[ d ] = (double)( blockPos[ d ] + 1 ) * blockSize * downSampling + bb.min( d );
+					}
+
+					final FinalRealInterval block = new FinalRealInterval( min, max );
+					final ArrayList< Integer > overlapping = new ArrayList< Integer >();
+
+					for ( int i = 0; i < numViews; ++i )
+					{
+						if ( !FusionHelper.overlaps( block, worldBounds[ i ] ) )
+							continue;
+
+						// the block in the local coordinates of the view
+						final FinalRealInterval local = inverse[ i ].estimateBounds( block );
+						final Dimensions size = imgs.get( i );
+
+						boolean overlaps = true;
+
+						for ( int d = 0; d < 3; ++d )
+							if ( local.realMax( d ) < 0 || local.realMin( d ) >= size.dimension( d ) )
+								overlaps = false;
+
+						if ( overlaps )
+							overlapping.add( i );
+					}
+
+					int[] list = distinct.get( overlapping );
+
+					if ( list == null )
+					{
+						list = new int[ overlapping.size() ];
+
+						for ( int i = 0; i < list.length; ++i )
+							list[ i ] = overlapping.get( i );
+
+						distinct.put( overlapping, list );
+					}
+
+					views[ index( x, y, z ) ] = list;
+				}
+	}
+
+	public ViewOverlapIndex( final List< ? extends Dimensions > imgs, final AffineTransform3D[] transforms, final BoundingBoxGUI bb )
+	{
+		this( imgs, transforms, bb, defaultBlockSize );
+	}
+
+	/**
+	 * @return - the size of the blocks in pixels of the fused image, the views only change at multiples of it
+	 */
+	public int getBlockSize() { return blockSize; }
+
+	/**
+	 * @param x - position in the fused image
+	 * @param y - position in the fused image
+	 * @param z - position in the fused image
+	 * @return - the indices of all views that might contribute to this location, must not be modified
+	 */
+	public final int[] getViews( final int x, final int y, final int z )
+	{
+		return views[ index( x / blockSize, y / blockSize, z / blockSize ) ];
+	}
+
+	protected final int index( final int bx, final int by, final int bz )
+	{
+		return ( bz * numBlocks[ 1 ] + by ) * numBlocks[ 0 ] + bx;
+	}
+}
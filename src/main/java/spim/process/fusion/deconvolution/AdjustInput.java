@@ -26,7 +26,6 @@ import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import spim.Threads;
@@ -70,7 +69,7 @@ public class AdjustInput
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( img.size(), numPortions );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
 		for ( final ImagePortion portion : portions )
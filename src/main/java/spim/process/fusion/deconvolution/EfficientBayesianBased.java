@@ -109,6 +109,7 @@ public class EfficientBayesianBased extends Fusion
 	public static boolean defaultUseTikhonovRegularization = true;
 	public static double defaultLambda = 0.006;
 	public static int defaultBlockSizeIndex = 0, defaultBlockSizeX = 256, defaultBlockSizeY = 256, defaultBlockSizeZ = 256;
+	public static boolean defaultParallelBlocks = true;
 	public static int defaultComputationTypeIndex = 0;
 	public static int defaultExtractPSF = 0;
 	public static int defaultDisplayPSF = 1;
@@ -135,6 +136,7 @@ public class EfficientBayesianBased extends Fusion
 	boolean useTikhonovRegularization;
 	double lambda;
 	int blockSizeIndex;
+	boolean parallelBlocks;
 	int computationTypeIndex;
 	int extractPSFIndex;
 	int displayPSF;
@@ -209,6 +211,7 @@ public class EfficientBayesianBased extends Fusion
 			// set debug mode
 			MVDeconvolution.debug = debugMode;
 			MVDeconvolution.debugInterval = debugInterval;
+			MVDeconFFT.parallelBlocks = parallelBlocks;
 	
 			int stack = 0;
 	
@@ -381,6 +384,7 @@ public class EfficientBayesianBased extends Fusion
 		gd.addNumericField( "Tikhonov_parameter", defaultLambda, 4 );
 		gd.addChoice( "Compute", blocksChoice, blocksChoice[ defaultBlockSizeIndex ] );
 		block = (Choice)gd.getChoices().lastElement();
+		gd.addCheckbox( "Process_blocks_in_parallel (CPU only)", defaultParallelBlocks );
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationTypeIndex ] );
 		gpu = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "PSF_estimation", extractPSFChoice, extractPSFChoice[ defaultExtractPSF ] );
@@ -429,6 +433,7 @@ public class EfficientBayesianBased extends Fusion
 		useTikhonovRegularization = defaultUseTikhonovRegularization = gd.getNextBoolean();
 		lambda = defaultLambda = gd.getNextNumber();
 		blockSizeIndex = defaultBlockSizeIndex = gd.getNextChoiceIndex();
+		parallelBlocks = defaultParallelBlocks = gd.getNextBoolean();
 		computationTypeIndex = defaultComputationTypeIndex = gd.getNextChoiceIndex();
 		extractPSFIndex = defaultExtractPSF = gd.getNextChoiceIndex();
 		displayPSF = defaultDisplayPSF = gd.getNextChoiceIndex();
@@ -22,7 +22,10 @@
 package spim.process.fusion.deconvolution;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.spim.io.IOFunctions;
@@ -41,6 +44,7 @@ import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.Threads;
 import spim.process.cuda.Block;
+import spim.process.cuda.Block.PasteOperation;
 import spim.process.cuda.BlockGeneratorFixedSizePrecise;
 import spim.process.cuda.CUDAFourierConvolution;
 
@@ -49,10 +53,25 @@ public class MVDeconFFT
 	public static enum PSFTYPE { OPTIMIZATION_II, OPTIMIZATION_I, EFFICIENT_BAYESIAN, INDEPENDENT };
 	
 	public static CUDAFourierConvolution cuda = null;
+
+	/**
+	 * if true, the CPU convolves several blocks at once (each single-threaded) instead
+	 * of one block after the other with a multi-threaded FFT
+	 */
+	public static boolean parallelBlocks = true;
+
+	/**
+	 * the fraction of the currently available memory that the blocks processed in parallel may use
+	 */
+	public static double parallelBlocksMemoryBudget = 0.5;
 	
 	private RandomAccessibleInterval< FloatType > image, weight;
 	private ArrayImg< FloatType, ? > kernel1, kernel2;
 	private FFTConvolution< FloatType > fftConvolution1, fftConvolution2;
+
+	// one FFTConvolution per block processed in parallel, each computes its FFTs single-threaded
+	private ArrayList< FFTConvolution< FloatType > > parallelConvolutions1, parallelConvolutions2;
+	private int numParallelBlocks = -1;
 	protected int numViews = 0;
 
 	final protected ExecutorService service;
@@ -69,6 +88,10 @@ public class MVDeconFFT
 
 	// the imgfactory used to instantiate the blocks and compute the FFTs, must be ArrayImg for CUDA
 	private ImgFactory< FloatType > blockFactory;
+
+	// the blocks that are copied, convolved and pasted (one per device), they are reused for all iterations
+	// and shared by all views with the same block size (the views are processed one after the other)
+	private ArrayList< Img< FloatType > > blockBuffers = null;
 	private ImgFactory< ComplexFloatType > fftFactory;
 
 	/**
@@ -188,6 +211,9 @@ public class MVDeconFFT
 		this.iterationType = iterationType;
 		this.views = views;
 
+		// the kernels are (re)computed below
+		this.parallelConvolutions1 = this.parallelConvolutions2 = null;
+
 		if ( numViews == 0 )
 		{
 			System.out.println( "Warning, numViews was not set." );
@@ -373,6 +399,161 @@ public class MVDeconFFT
 	public ArrayImg< FloatType, ? > getKernel1() { return kernel1; }
 	public ArrayImg< FloatType, ? > getKernel2() { return kernel2; }
 	
+	/**
+	 * @param i - the index of the device in the device list (0 for CPU)
+	 * @return - the block used by this device, shared with all other views if they use the same block size (not if saveMemory is set)
+	 */
+	protected Img< FloatType > getBlockBuffer( final int i )
+	{
+		if ( saveMemory )
+			return blockFactory.create( blockSize, new FloatType() );
+
+		// the first view with the same block size owns the buffers
+		MVDeconFFT owner = this;
+
+		if ( views != null )
+			for ( final MVDeconFFT view : views )
+				if ( view.blockSize != null && Arrays.equals( view.blockSize, blockSize ) )
+				{
+					owner = view;
+					break;
+				}
+
+		synchronized ( owner )
+		{
+			if ( owner.blockBuffers == null )
+				owner.blockBuffers = new ArrayList< Img< FloatType > >();
+
+			while ( owner.blockBuffers.size() <= i )
+				owner.blockBuffers.add( null );
+
+			if ( owner.blockBuffers.get( i ) == null )
+				owner.blockBuffers.set( i, blockFactory.create( blockSize, new FloatType() ) );
+
+			return owner.blockBuffers.get( i );
+		}
+	}
+
+	/**
+	 * Convolves all blocks on the CPU, several blocks at once. Each block is copied, convolved and pasted by
+	 * one thread, using its own block buffer and its own FFTConvolution (which keeps its kernel FFT).
+	 * 
+	 * @param first - convolve1 (true) or convolve2 (false)
+	 */
+	protected void convolveBlocksParallel( final Img< FloatType > image, final Img< FloatType > result, final PasteOperation op, final boolean first )
+	{
+		final int numWorkers = getNumParallelBlocks();
+
+		ArrayList< FFTConvolution< FloatType > > convs = first ? parallelConvolutions1 : parallelConvolutions2;
+
+		if ( convs == null )
+		{
+			convs = new ArrayList< FFTConvolution< FloatType > >();
+
+			for ( int w = 0; w < numWorkers; ++w )
+			{
+				final FFTConvolution< FloatType > conv = new FFTConvolution< FloatType >( getBlockBuffer( w ), first ? this.kernel1 : this.kernel2 );
+				conv.setComputeComplexConjugate( false );
+				conv.setExecutorService( Threads.createCallerRunsExecutor() );
+				conv.setKeepImgFFT( false );
+				convs.add( conv );
+			}
+
+			if ( first )
+				parallelConvolutions1 = convs;
+			else
+				parallelConvolutions2 = convs;
+		}
+
+		final AtomicInteger ai = new AtomicInteger();
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int w = 0; w < numWorkers; ++w )
+		{
+			final Img< FloatType > block = getBlockBuffer( w );
+			final FFTConvolution< FloatType > conv = convs.get( w );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					int i;
+
+					while ( ( i = ai.getAndIncrement() ) < blocks.length )
+					{
+						if ( first )
+							MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, conv, i, op, false );
+						else
+							MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, conv, op, false );
+					}
+
+					return null;
+				}
+			});
+		}
+
+		final ExecutorService taskExecutor = Threads.createExecutor( numWorkers );
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to convolve blocks in parallel: " + e );
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+
+		taskExecutor.shutdown();
+
+		if ( saveMemory )
+		{
+			if ( first )
+				parallelConvolutions1 = null;
+			else
+				parallelConvolutions2 = null;
+
+			System.gc();
+		}
+	}
+
+	/**
+	 * @return - how many blocks are convolved at once, limited by the number of threads and the memory budget
+	 */
+	protected int getNumParallelBlocks()
+	{
+		if ( numParallelBlocks > 0 )
+			return numParallelBlocks;
+
+		long blockPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+			blockPixels *= blockSize[ d ];
+
+		// block + FFT of the block, plus the kernel FFTs (two per view) each worker keeps unless saveMemory is set
+		final long blockBytes = blockPixels * 4;
+		final long perBlock = saveMemory ? blockBytes * 3 : blockBytes * ( 2 + 2 * Math.max( 1, numViews ) );
+
+		final Runtime runtime = Runtime.getRuntime();
+		final long available = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+		final long budget = (long)( available * parallelBlocksMemoryBudget );
+
+		numParallelBlocks = (int)Math.max( 1, Math.min( Math.min( Threads.numThreads(), blocks.length ), budget / perBlock ) );
+
+		IOFunctions.println( "Convolving " + numParallelBlocks + " blocks in parallel (" + ( perBlock / ( 1024*1024 ) ) + " MB each)." );
+
+		return numParallelBlocks;
+	}
+
+	/**
+	 * @return - true if the convolutions are computed in blocks, only then a {@link PasteOperation} can be applied
+	 */
+	public boolean usesBlocks() { return useBlocks; }
+
 	public void setCurrentIteration( final int i ) { this.i = i; }
 	public int getCurrentIteration() { return i; }
 
@@ -382,12 +563,30 @@ public class MVDeconFFT
 	 * @param image - the image to convolve with
 	 */
 	public void convolve1( final Img< FloatType > image, final Img< FloatType > result )
+	{
+		convolve1( image, result, null );
+	}
+
+	/**
+	 * convolves the image with kernel1 and applies a pointwise operation while writing the result
+	 * 
+	 * @param image - the image to convolve with
+	 * @param result - where the result is written to
+	 * @param op - the operation applied when writing back each block, can be null, must be null if not {@link #usesBlocks()}
+	 * @return - true if op was applied, which is only possible if the convolution is computed in blocks
+	 */
+	public boolean convolve1( final Img< FloatType > image, final Img< FloatType > result, final PasteOperation op )
 	{
 		if ( useCPU )
 		{
-			if ( useBlocks )
+			if ( useBlocks && parallelBlocks && blocks.length > 1 )
+			{
+				convolveBlocksParallel( image, result, op, true );
+				return true;
+			}
+			else if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+				final Img< FloatType > block = getBlockBuffer( 0 );
 
 				if ( this.fftConvolution1 == null )
 				{
@@ -398,7 +597,7 @@ public class MVDeconFFT
 				}
 
 				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, fftConvolution1, i );
+					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, fftConvolution1, i, op, true );
 
 				if ( saveMemory )
 				{
@@ -406,7 +605,7 @@ public class MVDeconFFT
 					System.gc();
 				}
 
-				return;
+				return true;
 			}
 			else
 			{
@@ -432,17 +631,17 @@ public class MVDeconFFT
 					System.gc();
 				}
 
-				return;
+				return false;
 			}
 		}
 		else if ( useCUDA && numDevices == 1 )
 		{
-			final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+			final Img< FloatType > block = getBlockBuffer( 0 );
 
 			for ( int i = 0; i < blocks.length; ++i )
-				MVDeconFFTThreads.convolve1BlockCUDA( blocks[ i ], device0, image, result, block, kernel1, i );
+				MVDeconFFTThreads.convolve1BlockCUDA( blocks[ i ], device0, image, result, block, kernel1, i, op );
 
-			return;
+			return true;
 		}
 		else
 		{
@@ -450,7 +649,7 @@ public class MVDeconFFT
 			final Thread[] threads = new Thread[ deviceList.length ];
 
 			for ( int i = 0; i < deviceList.length; ++i )
-				threads[ i ] = MVDeconFFTThreads.getCUDAThread1( ai, blockFactory, blocks, blockSize, image, result, deviceList[ i ], kernel1 );
+				threads[ i ] = MVDeconFFTThreads.getCUDAThread1( ai, getBlockBuffer( i ), blocks, image, result, deviceList[ i ], kernel1, op );
 
 			for ( int ithread = 0; ithread < threads.length; ++ithread )
 				threads[ ithread ].start();
@@ -465,7 +664,7 @@ public class MVDeconFFT
 				throw new RuntimeException(ie);
 			}
 
-			return;
+			return true;
 		}
 	}
 
@@ -475,12 +674,30 @@ public class MVDeconFFT
 	 * @param image - the image to convolve with
 	 */
 	public void convolve2( final Img< FloatType > image, final Img< FloatType > result )
+	{
+		convolve2( image, result, null );
+	}
+
+	/**
+	 * convolves the image with kernel2 (inverted kernel1) and applies a pointwise operation while writing the result
+	 * 
+	 * @param image - the image to convolve with
+	 * @param result - where the result is written to
+	 * @param op - the operation applied when writing back each block, can be null, must be null if not {@link #usesBlocks()}
+	 * @return - true if op was applied, which is only possible if the convolution is computed in blocks
+	 */
+	public boolean convolve2( final Img< FloatType > image, final Img< FloatType > result, final PasteOperation op )
 	{
 		if ( useCPU )
 		{
-			if ( useBlocks )
+			if ( useBlocks && parallelBlocks && blocks.length > 1 )
+			{
+				convolveBlocksParallel( image, result, op, false );
+				return true;
+			}
+			else if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+				final Img< FloatType > block = getBlockBuffer( 0 );
 
 				if ( this.fftConvolution2 == null )
 				{
@@ -491,7 +708,7 @@ public class MVDeconFFT
 				}
 
 				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );
+					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2, op, true );
 
 				if ( saveMemory )
 				{
@@ -499,7 +716,7 @@ public class MVDeconFFT
 					System.gc();
 				}
 
-				return;
+				return true;
 			}
 			else
 			{
@@ -522,17 +739,17 @@ public class MVDeconFFT
 					System.gc();
 				}
 
-				return;
+				return false;
 			}
 		}
 		else if ( useCUDA && numDevices == 1 )
 		{
-			final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+			final Img< FloatType > block = getBlockBuffer( 0 );
 
 			for ( int i = 0; i < blocks.length; ++i )
-				MVDeconFFTThreads.convolve2BlockCUDA( blocks[ i ], device0, image, result, block, kernel2 );
+				MVDeconFFTThreads.convolve2BlockCUDA( blocks[ i ], device0, image, result, block, kernel2, op );
 
-			return;
+			return true;
 		}
 		else
 		{
@@ -540,7 +757,7 @@ public class MVDeconFFT
 			final Thread[] threads = new Thread[ deviceList.length ];
 
 			for ( int i = 0; i < deviceList.length; ++i )
-				threads[ i ] = MVDeconFFTThreads.getCUDAThread2( ai, blockFactory, blocks, blockSize, image, result, deviceList[ i ], kernel2 );
+				threads[ i ] = MVDeconFFTThreads.getCUDAThread2( ai, getBlockBuffer( i ), blocks, image, result, deviceList[ i ], kernel2, op );
 
 			for ( int ithread = 0; ithread < threads.length; ++ithread )
 				threads[ ithread ].start();
@@ -555,7 +772,7 @@ public class MVDeconFFT
 				throw new RuntimeException(ie);
 			}
 
-			return;
+			return true;
 		}
 	}
 }
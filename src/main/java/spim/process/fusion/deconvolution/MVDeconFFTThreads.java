@@ -25,23 +25,23 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.algorithm.fft2.FFTConvolution;
 import net.imglib2.img.Img;
-import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.process.cuda.Block;
+import spim.process.cuda.Block.PasteOperation;
 import spim.process.interestpointdetection.DifferenceOfGaussianCUDA.CUDAOutput;
 
 public class MVDeconFFTThreads
 {
 	final protected static void convolve1BlockCPU(
 			final Block blockStruct, final Img< FloatType > image, final Img< FloatType > result,
-			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution1, final int i )
+			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution1, final int i,
+			final PasteOperation op, final boolean multiThreaded )
 	{
 		long time = System.currentTimeMillis();
-		blockStruct.copyBlock( Views.extendMirrorSingle( image ), block );
+		blockStruct.copyBlock( Views.extendMirrorSingle( image ), block, multiThreaded );
 		System.out.println( " block " + i + "(CPU): copy " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
@@ -51,28 +51,30 @@ public class MVDeconFFTThreads
 		System.out.println( " block " + i + "(CPU): compute " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
-		blockStruct.pasteBlock( result, block );
+		blockStruct.pasteBlock( result, block, op, multiThreaded );
 		System.out.println( " block " + i + "(CPU): paste " + (System.currentTimeMillis() - time) );
 	}
 	
 	final protected static void convolve2BlockCPU(
 			final Block blockStruct, final Img< FloatType > image, final Img< FloatType > result,
-			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution2 )
+			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution2,
+			final PasteOperation op, final boolean multiThreaded )
 	{
 		// ratio outside of the deconvolved space (psi) is 1
-		blockStruct.copyBlock( Views.extendValue( image, new FloatType( 1.0f ) ), block );
+		blockStruct.copyBlock( Views.extendValue( image, new FloatType( 1.0f ) ), block, multiThreaded );
 
 		fftConvolution2.setImg( block );
 		fftConvolution2.setOutput( block );
 		fftConvolution2.convolve();
 		
-		blockStruct.pasteBlock( result, block );
+		blockStruct.pasteBlock( result, block, op, multiThreaded );
 	}
 	
 	@SuppressWarnings("unchecked")
 	final protected static void convolve1BlockCUDA(
 			final Block blockStruct, final int deviceId, final Img< FloatType > image,
-			final Img< FloatType > result, final Img< FloatType > block, final Img< FloatType > kernel1, final int i )
+			final Img< FloatType > result, final Img< FloatType > block, final Img< FloatType > kernel1, final int i,
+			final PasteOperation op )
 	{
 		long time = System.currentTimeMillis();
 		blockStruct.copyBlock( Views.extendMirrorSingle( image ), block );
@@ -90,14 +92,15 @@ public class MVDeconFFTThreads
 		System.out.println( " block " + i + "(CUDA " + deviceId + "): compute " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
-		blockStruct.pasteBlock( result, block );
+		blockStruct.pasteBlock( result, block, op );
 		System.out.println( " block " + i + "(CPU  " + deviceId + "): paste " + (System.currentTimeMillis() - time) );
 	}
 
 	@SuppressWarnings("unchecked")
 	final protected static void convolve2BlockCUDA(
 			final Block blockStruct, final int deviceId, final Img< FloatType > image,
-			final Img< FloatType > result, final Img< FloatType > block, final Img< FloatType > kernel2 )
+			final Img< FloatType > result, final Img< FloatType > block, final Img< FloatType > kernel2,
+			final PasteOperation op )
 	{
 		// ratio outside of the deconvolved space (psi) is 1
 		blockStruct.copyBlock( Views.extendValue( image, new FloatType( 1.0f ) ), block );
@@ -111,23 +114,22 @@ public class MVDeconFFTThreads
 				kernel2F, getCUDACoordinates( CUDAOutput.getImgSizeInt( kernel2 ) ),
 				deviceId );
 
-		blockStruct.pasteBlock( result, block );
+		blockStruct.pasteBlock( result, block, op );
 	}
 
 	final protected static Thread getCUDAThread1(
-			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
-			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel1 )
+			final AtomicInteger ai, final Img< FloatType > block, final Block[] blocks,
+			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel1,
+			final PasteOperation op )
 	{
 		final Thread cudaThread1 = new Thread( new Runnable()
 		{
 			public void run()
 			{
-				final Img< FloatType > block = blockFactory.create( Util.int2long( blockSize ), new FloatType() );
-
 				int i;
 
 				while ( ( i = ai.getAndIncrement() ) < blocks.length )
-					convolve1BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel1, i );
+					convolve1BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel1, i, op );
 			}
 		});
 		
@@ -135,19 +137,18 @@ public class MVDeconFFTThreads
 	}
 
 	final protected static Thread getCUDAThread2(
-			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
-			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel2 )
+			final AtomicInteger ai, final Img< FloatType > block, final Block[] blocks,
+			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel2,
+			final PasteOperation op )
 	{
 		final Thread cudaThread2 = new Thread( new Runnable()
 		{
 			public void run()
 			{
-				final Img< FloatType > block = blockFactory.create( Util.int2long( blockSize ), new FloatType() );
-
 				int i;
 
 				while ( ( i = ai.getAndIncrement() ) < blocks.length )
-					convolve2BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel2 );
+					convolve2BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel2, op );
 			}
 		});
 		
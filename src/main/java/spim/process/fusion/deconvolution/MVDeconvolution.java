@@ -28,7 +28,6 @@ import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import ij.CompositeImage;
@@ -43,6 +42,8 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.RealSum;
@@ -51,6 +52,7 @@ import net.imglib2.view.Views;
 import spim.Threads;
 import net.imglib2.util.Pair;
 import spim.fiji.spimdata.imgloaders.LegacyStackImgLoaderIJ;
+import spim.process.cuda.Block.PasteOperation;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
@@ -219,7 +221,7 @@ public class MVDeconvolution
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( psi.size(), nPortions );
 		final ArrayList< Callable< Pair< RealSum, Long > > > tasks = new ArrayList< Callable< Pair< RealSum, Long > > >();
 
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
+		final ExecutorService taskExecutor = Threads.createExecutor( nThreads );
 
 		final ArrayList< RandomAccessibleInterval< FloatType > > imgs = new ArrayList< RandomAccessibleInterval< FloatType > >();
 
@@ -375,12 +377,21 @@ public class MVDeconvolution
 		{
 			final MVDeconFFT processingData = data.get( view );
 
+			// if the convolutions are computed in blocks, the pointwise steps are computed
+			// while writing back the blocks, saving two passes over the entire image
+			final boolean fused = processingData.usesBlocks();
+
 			//
 			// convolve psi (current guess of the image) with the PSF of the current view
 			// [psi >> tmp1]
 			//
-
-			processingData.convolve1( psi, tmp1 );
+			// or directly compute the quotient img/psiBlurred when writing back the blocks
+			// [psi, img >> tmp1]
+			//
+			if ( fused )
+				processingData.convolve1( psi, tmp1, new QuotientOperation( processingData.getImage(), tmp1 ) );
+			else
+				processingData.convolve1( psi, tmp1 );
 
 			//new DisplayImage().exportImage( tmp1, "psi" );
 			//new DisplayImage().exportImage( tmp1, "psi blurred" );
@@ -389,69 +400,89 @@ public class MVDeconvolution
 			// compute quotient img/psiBlurred
 			// [tmp1, img >> tmp1]
 			//
-			tasks.clear();
-			for ( final ImagePortion portion : portions )
+			if ( !fused )
 			{
-				tasks.add( new Callable< Void >()
+				tasks.clear();
+				for ( final ImagePortion portion : portions )
 				{
-					@Override
-					public Void call() throws Exception
+					tasks.add( new Callable< Void >()
 					{
-						computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1, processingData.getImage() );
-						return null;
-					}
-				});
-			}
+						@Override
+						public Void call() throws Exception
+						{
+							computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1, processingData.getImage() );
+							return null;
+						}
+					});
+				}
 
-			execTasks( tasks, nThreads, "compute quotient" );
+				execTasks( tasks, nThreads, "compute quotient" );
+			}
 
 			//new DisplayImage().exportImage( processingData.getImage(), "img" );
 			//new DisplayImage().exportImage( tmp1, "quotient" );
 
-			//
-			// blur the residuals image with the kernel
-			// (this cannot be don in-place as it might be computed in blocks sequentially,
-			// and the input for the n+1'th block cannot be formed by the written back output
-			// of the n'th block)
-			// [tmp1 >> tmp2]
-			//
-			processingData.convolve2( tmp1, tmp2 );
+			// accumulate the results from the individual threads
+			double sumChange = 0;
+			double maxChange = -1;
 
-			//new DisplayImage().exportImage( tmp2, "quotient blurred" );
+			if ( fused )
+			{
+				//
+				// blur the residuals image with the kernel and directly compute the final
+				// values when writing back the blocks (psi is not an input of this convolution)
+				// [tmp1, psi, weights >> psi]
+				//
+				final FinalValuesOperation finalValues = new FinalValuesOperation( psi, processingData.getWeight(), lambda );
 
-			//
-			// compute final values
-			// [psi, weights, tmp2 >> psi]
-			//
-			final double[][] sumMax = new double[ nPortions ][ 2 ];
-			tasks.clear();
+				processingData.convolve2( tmp1, psi, finalValues );
 
-			for ( int i = 0; i < portions.size(); ++i )
+				sumChange = finalValues.getSumChange();
+				maxChange = finalValues.getMaxChange();
+			}
+			else
 			{
-				final ImagePortion portion = portions.get( i );
-				final int portionId = i;
-
-				tasks.add( new Callable< Void >()
+				//
+				// blur the residuals image with the kernel
+				// (this cannot be don in-place as it might be computed in blocks sequentially,
+				// and the input for the n+1'th block cannot be formed by the written back output
+				// of the n'th block)
+				// [tmp1 >> tmp2]
+				//
+				processingData.convolve2( tmp1, tmp2 );
+
+				//new DisplayImage().exportImage( tmp2, "quotient blurred" );
+
+				//
+				// compute final values
+				// [psi, weights, tmp2 >> psi]
+				//
+				final double[][] sumMax = new double[ nPortions ][ 2 ];
+				tasks.clear();
+
+				for ( int i = 0; i < portions.size(); ++i )
 				{
-					@Override
-					public Void call() throws Exception
-					{
-						computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psi, tmp2, processingData.getWeight(), lambda, sumMax[ portionId ] );
-						return null;
-					}
-				});
-			}
+					final ImagePortion portion = portions.get( i );
+					final int portionId = i;
 
-			execTasks( tasks, nThreads, "compute final values" );
+					tasks.add( new Callable< Void >()
+					{
+						@Override
+						public Void call() throws Exception
+						{
+							computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psi, tmp2, processingData.getWeight(), lambda, sumMax[ portionId ] );
+							return null;
+						}
+					});
+				}
 
-			// accumulate the results from the individual threads
-			double sumChange = 0;
-			double maxChange = -1;
+				execTasks( tasks, nThreads, "compute final values" );
 
-			for ( int i = 0; i < nPortions; ++i )
-			{
-				sumChange += sumMax[ i ][ 0 ];
-				maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
+				for ( int i = 0; i < nPortions; ++i )
+				{
+					sumChange += sumMax[ i ][ 0 ];
+					maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
+				}
 			}
 
 			IOFunctions.println( "iteration: " + iteration + ", view: " + view + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
@@ -466,7 +497,7 @@ public class MVDeconvolution
 
 	private static final void execTasks( final ArrayList< Callable< Void > > tasks, final int nThreads, final String jobDescription )
 	{
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
+		final ExecutorService taskExecutor = Threads.createExecutor( nThreads );
 
 		try
 		{
@@ -679,6 +710,172 @@ public class MVDeconvolution
 		sumMax[ 1 ] = maxChange;
 	}
 
+	/**
+	 * Computes the quotient img/psiBlurred while the blurred psi is written into the target
+	 */
+	protected static class QuotientOperation implements PasteOperation
+	{
+		final RandomAccessibleInterval< FloatType > observedImg;
+		final float[] observedArray;
+		final RandomAccess< FloatType > raObserved;
+
+		public QuotientOperation( final RandomAccessibleInterval< FloatType > observedImg, final RandomAccessibleInterval< FloatType > target )
+		{
+			this( observedImg, getArray( observedImg, target ), null );
+		}
+
+		protected QuotientOperation( final RandomAccessibleInterval< FloatType > observedImg, final float[] observedArray, final RandomAccess< FloatType > raObserved )
+		{
+			this.observedImg = observedImg;
+			this.observedArray = observedArray;
+			this.raObserved = raObserved;
+		}
+
+		@Override
+		public PasteOperation newInstance() { return new QuotientOperation( observedImg, observedArray, observedImg.randomAccess() ); }
+
+		@Override
+		public boolean supportsArrays() { return observedArray != null; }
+
+		@Override
+		public float compute( final float blockValue, final RandomAccess< FloatType > target )
+		{
+			raObserved.setPosition( target );
+			return quotient( blockValue, raObserved.get().get() );
+		}
+
+		@Override
+		public float compute( final float blockValue, final float targetValue, final int targetIndex )
+		{
+			return quotient( blockValue, observedArray[ targetIndex ] );
+		}
+
+		private static final float quotient( final float psiBlurredValue, final float imgValue )
+		{
+			if ( imgValue > 0 )
+				return imgValue / psiBlurredValue;
+			else
+				return 1; // no image data, quotient=1
+		}
+	}
+
+	/**
+	 * Computes the next value of psi while the blurred quotient is written into psi, collects the statistics of all threads
+	 */
+	protected static class FinalValuesOperation implements PasteOperation
+	{
+		final RandomAccessibleInterval< FloatType > weight;
+		final float[] weightArray;
+		final double lambda;
+		final RandomAccess< FloatType > raWeight;
+		final ArrayList< FinalValuesOperation > instances;
+
+		double sumChange = 0;
+		double maxChange = -1;
+
+		public FinalValuesOperation( final RandomAccessibleInterval< FloatType > psi, final RandomAccessibleInterval< FloatType > weight, final double lambda )
+		{
+			this( weight, getArray( weight, psi ), lambda, null, new ArrayList< FinalValuesOperation >() );
+		}
+
+		protected FinalValuesOperation(
+				final RandomAccessibleInterval< FloatType > weight,
+				final float[] weightArray,
+				final double lambda,
+				final RandomAccess< FloatType > raWeight,
+				final ArrayList< FinalValuesOperation > instances )
+		{
+			this.weight = weight;
+			this.weightArray = weightArray;
+			this.lambda = lambda;
+			this.raWeight = raWeight;
+			this.instances = instances;
+		}
+
+		@Override
+		public PasteOperation newInstance()
+		{
+			final FinalValuesOperation op = new FinalValuesOperation( weight, weightArray, lambda, weight.randomAccess(), instances );
+
+			synchronized ( instances )
+			{
+				instances.add( op );
+			}
+
+			return op;
+		}
+
+		@Override
+		public boolean supportsArrays() { return weightArray != null; }
+
+		@Override
+		public float compute( final float blockValue, final RandomAccess< FloatType > target )
+		{
+			raWeight.setPosition( target );
+			return next( target.get().get(), blockValue, raWeight.get().get() );
+		}
+
+		@Override
+		public float compute( final float blockValue, final float targetValue, final int targetIndex )
+		{
+			return next( targetValue, blockValue, weightArray[ targetIndex ] );
+		}
+
+		private final float next( final float lastPsiValue, final float integralValue, final float weightValue )
+		{
+			final float nextPsiValue = computeNextValue( lastPsiValue, integralValue, weightValue, lambda );
+
+			// statistics
+			final float change = change( lastPsiValue, nextPsiValue );
+			sumChange += change;
+			maxChange = Math.max( maxChange, change );
+
+			return nextPsiValue;
+		}
+
+		public double getSumChange()
+		{
+			double sum = 0;
+
+			synchronized ( instances )
+			{
+				for ( final FinalValuesOperation op : instances )
+					sum += op.sumChange;
+			}
+
+			return sum;
+		}
+
+		public double getMaxChange()
+		{
+			double max = -1;
+
+			synchronized ( instances )
+			{
+				for ( final FinalValuesOperation op : instances )
+					max = Math.max( max, op.maxChange );
+			}
+
+			return max;
+		}
+	}
+
+	/**
+	 * @return the float[] of img if img and target are 3d ArrayImgs of the same size, otherwise null
+	 */
+	@SuppressWarnings("unchecked")
+	private static final float[] getArray( final RandomAccessibleInterval< FloatType > img, final RandomAccessibleInterval< FloatType > target )
+	{
+		if ( img.numDimensions() != 3 || !ArrayImg.class.isInstance( img ) || !ArrayImg.class.isInstance( target ) )
+			return null;
+
+		for ( int d = 0; d < img.numDimensions(); ++d )
+			if ( img.dimension( d ) != target.dimension( d ) )
+				return null;
+
+		return ((FloatArray)((ArrayImg< FloatType, ? >)img).update( null ) ).getCurrentStorageArray();
+	}
+
 	private static final float change( final float lastPsiValue, final float nextPsiValue ) { return Math.abs( ( nextPsiValue - lastPsiValue ) ); }
 
 	/**
@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
@@ -61,7 +60,7 @@ public class Mirror
 		final long sizeMirrorH = image.dimension( dimension ) / 2;
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
 		for ( final ImagePortion portion : portions )
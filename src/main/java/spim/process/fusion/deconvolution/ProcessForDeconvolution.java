@@ -32,7 +32,6 @@ import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
@@ -242,11 +241,11 @@ public class ProcessForDeconvolution
 				}
 			}
 
-			// split up into many parts for multithreading
-			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( Views.iterable( transformedImg ).size(), Threads.numThreads() * 4 );
+			// split up into many parts for multithreading (every part is a range of lines)
+			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( transformedImg.dimension( 1 ) * transformedImg.dimension( 2 ), Threads.numThreads() * 4 );
 
 			// set up executor service
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ExecutorService taskExecutor = Threads.createExecutor();
 			final ArrayList< Callable< String > > tasks = new ArrayList< Callable< String > >();
 
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Transforming image & computing weights.");
@@ -499,7 +498,7 @@ public class ProcessForDeconvolution
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( Views.iterable( weights.get( 0 ) ).size(), Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< Callable< String > > tasks = new ArrayList< Callable< String > >();
 
 		for ( final ImagePortion portion : portions )
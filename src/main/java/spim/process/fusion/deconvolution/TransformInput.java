@@ -23,7 +23,7 @@ package spim.process.fusion.deconvolution;
 
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
@@ -74,44 +74,53 @@ public class TransformInput implements Callable< String >
 		
 		// make the interpolators and get the transformations
 		final RealRandomAccess< FloatType > ir = Views.interpolate( Views.extendMirrorSingle( img ), f ).realRandomAccess();
-		final Cursor< FloatType > cursor = Views.iterable( transformedImg ).localizingCursor();
+		final RandomAccess< FloatType > randomAccess = transformedImg.randomAccess();
 
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-			loop( cursor, ir, transform, s, t, offsetX, offsetY, offsetZ, imgSizeX, imgSizeY, imgSizeZ );
-		
-		return portion + " finished successfully (transform input & no weights).";
-	}
+		// how the local coordinates change along a line of the transformed image
+		final double[] increment = FusionHelper.inverseIncrement( transform, 1 );
+		final double[] s = new double[ 3 ];
+		final double[] lineStart = new double[ 3 ];
+		final double[] t = new double[ 3 ];
 
-	private static final void loop(
-			final Cursor< FloatType > cursor,
-			final RealRandomAccess< FloatType > ir,
-			final AffineTransform3D transform,
-			final float[] s, final float[] t,
-			final int offsetX, final int offsetY, final int offsetZ,
-			final int imgSizeX, final int imgSizeY, final int imgSizeZ )
-	{
-		// move img cursor forward any get the value (saves one access)
-		final FloatType v = cursor.next();
-		cursor.localize( s );
+		final long minX = transformedImg.min( 0 );
+		final long minY = transformedImg.min( 1 );
+		final long minZ = transformedImg.min( 2 );
+		final int sizeX = (int)transformedImg.dimension( 0 );
+		final int sizeY = (int)transformedImg.dimension( 1 );
 
-		s[ 0 ] += offsetX;
-		s[ 1 ] += offsetY;
-		s[ 2 ] += offsetZ;
+		// the portion is a range of lines along x
+		for ( long line = portion.getStartPosition(); line < portion.getStartPosition() + portion.getLoopSize(); ++line )
+		{
+			final long y = minY + line % sizeY;
+			final long z = minZ + line / sizeY;
 
-		transform.applyInverse( t, s );
+			s[ 0 ] = minX + offsetX;
+			s[ 1 ] = y + offsetY;
+			s[ 2 ] = z + offsetZ;
 
-		if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizeX, imgSizeY, imgSizeZ ) )
-		{
-			ir.setPosition( t );
+			transform.applyInverse( lineStart, s );
+
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			for ( int x = 0; x < sizeX; ++x )
+			{
+				t[ 0 ] = lineStart[ 0 ] + x * increment[ 0 ];
+				t[ 1 ] = lineStart[ 1 ] + x * increment[ 1 ];
+				t[ 2 ] = lineStart[ 2 ] + x * increment[ 2 ];
 
-			// do not accept 0 values in the data where image data is present, 0 means no image data is available
-			// (used in MVDeconvolution.computeQuotient)
-			v.set( Math.max( MVDeconvolution.minValue, ir.get().get() ) );
+				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizeX, imgSizeY, imgSizeZ ) )
+				{
+					ir.setPosition( t );
+					randomAccess.setPosition( minX + x, 0 );
+
+					// do not accept 0 values in the data where image data is present, 0 means no image data is available
+					// (used in MVDeconvolution.computeQuotient)
+					randomAccess.get().set( Math.max( MVDeconvolution.minValue, ir.get().get() ) );
+				}
+			}
 		}
+		
+		return portion + " finished successfully (transform input & no weights).";
 	}
 }
@@ -23,7 +23,7 @@ package spim.process.fusion.deconvolution;
 
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
@@ -82,55 +82,61 @@ public class TransformInputAndWeights implements Callable< String >
 		final RealRandomAccess< FloatType > ir = Views.interpolate( Views.extendMirrorSingle( img ), f ).realRandomAccess();
 		final RealRandomAccess< FloatType > wr = blending.realRandomAccess();
 
-		final Cursor< FloatType > cursor = Views.iterable( transformedImg ).localizingCursor();
-		final Cursor< FloatType > cursorW = Views.iterable( weightImg ).cursor();
+		final RandomAccess< FloatType > randomAccess = transformedImg.randomAccess();
+		final RandomAccess< FloatType > randomAccessW = weightImg.randomAccess();
 
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
+		// how the local coordinates change along a line of the transformed image
+		final double[] increment = FusionHelper.inverseIncrement( transform, 1 );
+		final double[] s = new double[ 3 ];
+		final double[] lineStart = new double[ 3 ];
+		final double[] t = new double[ 3 ];
 
-		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
+		final long minX = transformedImg.min( 0 );
+		final long minY = transformedImg.min( 1 );
+		final long minZ = transformedImg.min( 2 );
+		final int sizeX = (int)transformedImg.dimension( 0 );
+		final int sizeY = (int)transformedImg.dimension( 1 );
 
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-			loop( cursor, cursorW, ir, wr, transform, s, t, offsetX, offsetY, offsetZ, imgSizeX, imgSizeY, imgSizeZ );
-
-		return portion + " finished successfully (transform input & precompute weights).";
-	}
-
-	private static final void loop(
-			final Cursor< FloatType > cursor,
-			final Cursor< FloatType > cursorW,
-			final RealRandomAccess< FloatType > ir,
-			final RealRandomAccess< FloatType > wr,
-			final AffineTransform3D transform,
-			final float[] s, final float[] t,
-			final int offsetX, final int offsetY, final int offsetZ,
-			final int imgSizeX, final int imgSizeY, final int imgSizeZ )
-	{
-		// move img cursor forward any get the value (saves one access)
-		final FloatType v = cursor.next();
-		cursor.localize( s );
-
-		// move weight cursor forward and get the value 
-		final FloatType w = cursorW.next();
-
-		s[ 0 ] += offsetX;
-		s[ 1 ] += offsetY;
-		s[ 2 ] += offsetZ;
-		
-		transform.applyInverse( t, s );
-		
-		if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizeX, imgSizeY, imgSizeZ ) )
+		// the portion is a range of lines along x
+		for ( long line = portion.getStartPosition(); line < portion.getStartPosition() + portion.getLoopSize(); ++line )
 		{
-			ir.setPosition( t );
-
-			// do not accept 0 values in the data where image data is present, 0 means no image data is available
-			// (used in MVDeconvolution.computeQuotient)
-			v.set( Math.max( MVDeconvolution.minValue, ir.get().get() ) );
+			final long y = minY + line % sizeY;
+			final long z = minZ + line / sizeY;
+
+			s[ 0 ] = minX + offsetX;
+			s[ 1 ] = y + offsetY;
+			s[ 2 ] = z + offsetZ;
+
+			transform.applyInverse( lineStart, s );
+
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+			randomAccessW.setPosition( y, 1 );
+			randomAccessW.setPosition( z, 2 );
+
+			for ( int x = 0; x < sizeX; ++x )
+			{
+				t[ 0 ] = lineStart[ 0 ] + x * increment[ 0 ];
+				t[ 1 ] = lineStart[ 1 ] + x * increment[ 1 ];
+				t[ 2 ] = lineStart[ 2 ] + x * increment[ 2 ];
+
+				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizeX, imgSizeY, imgSizeZ ) )
+				{
+					ir.setPosition( t );
+					randomAccess.setPosition( minX + x, 0 );
+
+					// do not accept 0 values in the data where image data is present, 0 means no image data is available
+					// (used in MVDeconvolution.computeQuotient)
+					randomAccess.get().set( Math.max( MVDeconvolution.minValue, ir.get().get() ) );
+				}
+
+				// compute weights in any case (the border can be negative!)
+				wr.setPosition( t );
+				randomAccessW.setPosition( minX + x, 0 );
+				randomAccessW.get().set( wr.get() );
+			}
 		}
 
-		// compute weights in any case (the border can be negative!)
-		wr.setPosition( t );
-		w.set( wr.get() );
+		return portion + " finished successfully (transform input & precompute weights).";
 	}
 }
@@ -23,13 +23,13 @@ package spim.process.fusion.deconvolution;
 
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
+import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.weights.Blending;
 
@@ -77,35 +77,55 @@ public class TransformWeights implements Callable< String >
 		// make the blending and get the transformations
 		final RealRandomAccess< FloatType > wr = blending.realRandomAccess();
 
-		final Cursor< FloatType > cursorO = Views.iterable( overlapImg ).localizingCursor();
-		final Cursor< FloatType > cursorB = Views.iterable( blendingImg ).cursor();
+		final RandomAccess< FloatType > randomAccessO = overlapImg.randomAccess();
+		final RandomAccess< FloatType > randomAccessB = blendingImg.randomAccess();
 
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
+		// how the local coordinates change along a line of the transformed image
+		final double[] increment = FusionHelper.inverseIncrement( transform, 1 );
+		final double[] s = new double[ 3 ];
+		final double[] lineStart = new double[ 3 ];
+		final double[] t = new double[ 3 ];
 
-		cursorO.jumpFwd( portion.getStartPosition() );
-		cursorB.jumpFwd( portion.getStartPosition() );
+		final long minX = overlapImg.min( 0 );
+		final long minY = overlapImg.min( 1 );
+		final long minZ = overlapImg.min( 2 );
+		final int sizeX = (int)overlapImg.dimension( 0 );
+		final int sizeY = (int)overlapImg.dimension( 1 );
 
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		// the portion is a range of lines along x
+		for ( long line = portion.getStartPosition(); line < portion.getStartPosition() + portion.getLoopSize(); ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final FloatType o = cursorO.next();
-			cursorO.localize( s );
-			
-			// move weight cursor forward and get the value 
-			final FloatType b = cursorB.next();
+			final long y = minY + line % sizeY;
+			final long z = minZ + line / sizeY;
 
-			s[ 0 ] += offsetX;
-			s[ 1 ] += offsetY;
-			s[ 2 ] += offsetZ;
+			s[ 0 ] = minX + offsetX;
+			s[ 1 ] = y + offsetY;
+			s[ 2 ] = z + offsetZ;
 
-			transform.applyInverse( t, s );
+			transform.applyInverse( lineStart, s );
 
-			// compute weights in any part of the image (the border can be negative!)
-			wr.setPosition( t );
+			randomAccessO.setPosition( y, 1 );
+			randomAccessO.setPosition( z, 2 );
+			randomAccessB.setPosition( y, 1 );
+			randomAccessB.setPosition( z, 2 );
 
-			o.set( o.get() + 1 );
-			b.set( wr.get() );
+			for ( int x = 0; x < sizeX; ++x )
+			{
+				t[ 0 ] = lineStart[ 0 ] + x * increment[ 0 ];
+				t[ 1 ] = lineStart[ 1 ] + x * increment[ 1 ];
+				t[ 2 ] = lineStart[ 2 ] + x * increment[ 2 ];
+
+				// compute weights in any part of the image (the border can be negative!)
+				wr.setPosition( t );
+
+				randomAccessO.setPosition( minX + x, 0 );
+				randomAccessB.setPosition( minX + x, 0 );
+
+				final FloatType o = randomAccessO.get();
+
+				o.set( o.get() + 1 );
+				randomAccessB.get().set( wr.get() );
+			}
 		}
 
 		return portion + " finished successfully (visualize weights).";
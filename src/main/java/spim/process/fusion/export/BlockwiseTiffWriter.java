@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes a 3d image that arrives as blocks into an uncompressed TIFF stack that can be opened by ImageJ.
+ *
+ * The file is laid out the way ImageJ writes stacks larger than 4 GB: a single IFD describes the first
+ * plane, all planes follow contiguously and the ImageJ description (images=...) tells the reader how
+ * many there are. Since the position of every pixel in the file is known in advance, blocks can be
+ * written in any order and from several threads at once.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class BlockwiseTiffWriter
+{
+	final static int numEntries = 15;
+	final static int ifdOffset = 8;
+	final static int ifdSize = 2 + numEntries * 12 + 4;
+	final static int resolutionOffset = ifdOffset + ifdSize;
+	final static int descriptionOffset = resolutionOffset + 16;
+	final static int descriptionSize = 1024;
+	final static long dataOffset = descriptionOffset + descriptionSize;
+
+	final File file;
+	final long[] dim;
+	final boolean isFloat;
+	final int bytesPerPixel;
+	final double calibration;
+	final double[] origin;
+
+	final RandomAccessFile raf;
+	final FileChannel channel;
+
+	double min = Double.MAX_VALUE;
+	double max = -Double.MAX_VALUE;
+
+	/**
+	 * @param file - the file to write
+	 * @param dim - the dimensions of the image
+	 * @param isFloat - 32 bit float if true, otherwise 16 bit unsigned
+	 * @param calibration - the pixel size
+	 * @param origin - the location of pixel (0,0,0) in pixel units
+	 * @throws IOException
+	 */
+	public BlockwiseTiffWriter( final File file, final long[] dim, final boolean isFloat, final double calibration, final double[] origin ) throws IOException
+	{
+		this.file = file;
+		this.dim = dim;
+		this.isFloat = isFloat;
+		this.bytesPerPixel = isFloat ? 4 : 2;
+		this.calibration = calibration;
+		this.origin = origin;
+
+		if ( dim[ 0 ] * dim[ 1 ] * bytesPerPixel > 0xffffffffL )
+			throw new IOException( "One plane of " + dim[ 0 ] + "x" + dim[ 1 ] + " pixels is too large for a TIFF file." );
+
+		this.raf = new RandomAccessFile( file, "rw" );
+		this.raf.setLength( dataOffset + dim[ 0 ] * dim[ 1 ] * dim[ 2 ] * bytesPerPixel );
+		this.channel = raf.getChannel();
+	}
+
+	public static boolean supports( final RealType< ? > type )
+	{
+		return type instanceof FloatType || type instanceof UnsignedShortType;
+	}
+
+	/**
+	 * Writes one block, the interval of the block defines where it is located in the image
+	 *
+	 * @param block
+	 * @throws IOException
+	 */
+	public < T extends RealType< T > > void writeBlock( final RandomAccessibleInterval< T > block ) throws IOException
+	{
+		final int lineLength = (int)block.dimension( 0 );
+		final ByteBuffer line = ByteBuffer.allocate( lineLength * bytesPerPixel );
+		line.order( ByteOrder.BIG_ENDIAN );
+
+		final Cursor< T > cursor = Views.flatIterable( block ).cursor();
+
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
+			{
+				line.clear();
+
+				for ( int x = 0; x < lineLength; ++x )
+				{
+					final double v = cursor.next().getRealDouble();
+
+					min = Math.min( min, v );
+					max = Math.max( max, v );
+
+					if ( isFloat )
+						line.putFloat( (float)v );
+					else
+						line.putShort( (short)Math.round( v ) );
+				}
+
+				line.flip();
+
+				long position = dataOffset + ( ( z * dim[ 1 ] + y ) * dim[ 0 ] + block.min( 0 ) ) * bytesPerPixel;
+
+				while ( line.hasRemaining() )
+					position += channel.write( line, position );
+			}
+
+		synchronized ( this )
+		{
+			this.min = Math.min( this.min, min );
+			this.max = Math.max( this.max, max );
+		}
+	}
+
+	/**
+	 * Writes the TIFF header once all blocks are written and closes the file
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if ( min > max )
+			min = max = 0;
+
+		final String description = getDescription();
+		final byte[] descriptionBytes = ( description + "\0" ).getBytes( Charset.forName( "US-ASCII" ) );
+
+		if ( descriptionBytes.length > descriptionSize )
+			throw new IOException( "ImageJ description too long: " + description );
+
+		final int[] numeratorDenominator = new int[]{ 1000000, (int)Math.round( calibration * 1000000 ) };
+
+		final ByteBuffer header = ByteBuffer.allocate( (int)dataOffset );
+		header.order( ByteOrder.BIG_ENDIAN );
+
+		// header
+		header.put( (byte)'M' );
+		header.put( (byte)'M' );
+		header.putShort( (short)42 );
+		header.putInt( ifdOffset );
+
+		// IFD of the first plane, entries sorted by tag
+		header.putShort( (short)numEntries );
+		putEntry( header, 254, 4, 1, 0 ); // NewSubfileType
+		putEntry( header, 256, 4, 1, dim[ 0 ] ); // ImageWidth
+		putEntry( header, 257, 4, 1, dim[ 1 ] ); // ImageLength
+		putShortEntry( header, 258, bytesPerPixel * 8 ); // BitsPerSample
+		putShortEntry( header, 259, 1 ); // Compression: none
+		putShortEntry( header, 262, 1 ); // PhotometricInterpretation: BlackIsZero
+		putEntry( header, 270, 2, descriptionBytes.length, descriptionOffset ); // ImageDescription
+		putEntry( header, 273, 4, 1, dataOffset ); // StripOffsets
+		putShortEntry( header, 277, 1 ); // SamplesPerPixel
+		putEntry( header, 278, 4, 1, dim[ 1 ] ); // RowsPerStrip
+		putEntry( header, 279, 4, 1, dim[ 0 ] * dim[ 1 ] * bytesPerPixel ); // StripByteCounts
+		putEntry( header, 282, 5, 1, resolutionOffset ); // XResolution
+		putEntry( header, 283, 5, 1, resolutionOffset + 8 ); // YResolution
+		putShortEntry( header, 296, 1 ); // ResolutionUnit: none
+		putShortEntry( header, 339, isFloat ? 3 : 1 ); // SampleFormat: float or unsigned
+		header.putInt( 0 ); // no next IFD
+
+		// XResolution & YResolution
+		header.putInt( numeratorDenominator[ 0 ] );
+		header.putInt( numeratorDenominator[ 1 ] );
+		header.putInt( numeratorDenominator[ 0 ] );
+		header.putInt( numeratorDenominator[ 1 ] );
+
+		// ImageJ description, the rest stays zero
+		header.put( descriptionBytes );
+
+		header.clear();
+
+		long position = 0;
+
+		while ( header.hasRemaining() )
+			position += channel.write( header, position );
+
+		channel.force( false );
+		raf.close();
+	}
+
+	protected String getDescription()
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append( "ImageJ=1.51\n" );
+		sb.append( "images=" + dim[ 2 ] + "\n" );
+		sb.append( "slices=" + dim[ 2 ] + "\n" );
+		sb.append( "unit=pixel\n" );
+		sb.append( "spacing=" + calibration + "\n" );
+		sb.append( "loop=false\n" );
+		sb.append( "min=" + min + "\n" );
+		sb.append( "max=" + max + "\n" );
+		sb.append( "xorigin=" + origin[ 0 ] + "\n" );
+		sb.append( "yorigin=" + origin[ 1 ] + "\n" );
+		sb.append( "zorigin=" + origin[ 2 ] + "\n" );
+
+		return sb.toString();
+	}
+
+	protected static void putEntry( final ByteBuffer buffer, final int tag, final int fieldType, final long count, final long value )
+	{
+		buffer.putShort( (short)tag );
+		buffer.putShort( (short)fieldType );
+		buffer.putInt( (int)count );
+		buffer.putInt( (int)value );
+	}
+
+	protected static void putShortEntry( final ByteBuffer buffer, final int tag, final int value )
+	{
+		// a single SHORT value is left-justified in the 4 byte value field
+		buffer.putShort( (short)tag );
+		buffer.putShort( (short)3 );
+		buffer.putInt( 1 );
+		buffer.putShort( (short)value );
+		buffer.putShort( (short)0 );
+	}
+}
@@ -59,7 +59,7 @@ import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
-public class ExportSpimData2TIFF implements ImgExport
+public class ExportSpimData2TIFF implements ImgExportBlockwise
 {
 	List< TimePoint > newTimepoints;
 	List< ViewSetup > newViewSetups;
@@ -87,6 +87,36 @@ public class ExportSpimData2TIFF implements ImgExport
 		if ( !this.saver.exportImage( img, bb, tp, vs, min, max ) )
 			return false;
 
+		updateRegistration( bb, tp, vs );
+		
+		return true;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean openBlockwise( final T type, final long[] dimensions, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
+		if ( !this.saver.openBlockwise( type, dimensions, bb, tp, vs ) )
+			return false;
+
+		updateRegistration( bb, tp, vs );
+
+		return true;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block )
+	{
+		return this.saver.exportBlock( block );
+	}
+
+	@Override
+	public boolean closeBlockwise()
+	{
+		return this.saver.closeBlockwise();
+	}
+
+	protected void updateRegistration( final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
 		
@@ -99,8 +129,6 @@ public class ExportSpimData2TIFF implements ImgExport
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
-		
-		return true;
 	}
 
 	@Override
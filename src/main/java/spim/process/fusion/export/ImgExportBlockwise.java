@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.export;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * An {@link ImgExport} that can receive the fused image as a sequence of blocks,
+ * so the fused image never has to be held in memory as a whole.
+ *
+ * The blocks arrive in arbitrary order and from several threads at once.
+ */
+public interface ImgExportBlockwise extends ImgExport
+{
+	/**
+	 * Prepares the export of one image that will be written block by block
+	 *
+	 * @param type - the pixel type of the blocks
+	 * @param dimensions - the dimensions of the whole image
+	 * @param bb - the bounding box used to fuse this image
+	 * @param tp - the current (new) timepoint
+	 * @param vs - the current (new) viewsetup
+	 * @return - false if this exporter cannot stream the image (e.g. because of compression), the image then has to be exported as a whole using exportImage()
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean openBlockwise( final T type, final long[] dimensions, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs );
+
+	/**
+	 * Writes one block, must be thread-safe
+	 *
+	 * @param block - the interval of the block defines where it is located in the image
+	 * @return - true if the block was written
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block );
+
+	/**
+	 * Called once all blocks of the current image were written
+	 *
+	 * @return - true if the image was written successfully
+	 */
+	public boolean closeBlockwise();
+}
@@ -26,6 +26,7 @@ import ij.gui.GenericDialog;
 import ij.io.FileSaver;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.List;
 
@@ -38,11 +39,12 @@ import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
-public class Save3dTIFF implements ImgExportTitle
+public class Save3dTIFF implements ImgExportTitle, ImgExportBlockwise
 {
 	public static boolean defaultUseXMLPath = true;
 	public static String defaultPath = null;
@@ -51,6 +53,8 @@ public class Save3dTIFF implements ImgExportTitle
 	boolean compress;
 	
 	ImgTitler imgTitler = new DefaultImgTitler();
+
+	BlockwiseTiffWriter blockwiseWriter = null;
 	
 	public Save3dTIFF( final String path ) { this( path, false ); }
 	public Save3dTIFF( final String path, final boolean compress )
@@ -114,12 +118,7 @@ public class Save3dTIFF implements ImgExportTitle
 		
 		imp.updateAndDraw();
 
-		final String fileName;
-		
-		if ( !getImgTitler().getImageTitle( tp, vs ).endsWith( ".tif" ) )
-			fileName = new File( path, getImgTitler().getImageTitle( tp, vs ) + ".tif" ).getAbsolutePath();
-		else
-			fileName = new File( path, getImgTitler().getImageTitle( tp, vs ) ).getAbsolutePath();
+		final String fileName = getFileName( tp, vs );
 		
 		if ( compress )
 		{
@@ -133,6 +132,87 @@ public class Save3dTIFF implements ImgExportTitle
 		}
 	}
 
+	protected String getFileName( final TimePoint tp, final ViewSetup vs )
+	{
+		if ( !getImgTitler().getImageTitle( tp, vs ).endsWith( ".tif" ) )
+			return new File( path, getImgTitler().getImageTitle( tp, vs ) + ".tif" ).getAbsolutePath();
+		else
+			return new File( path, getImgTitler().getImageTitle( tp, vs ) ).getAbsolutePath();
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean openBlockwise( final T type, final long[] dimensions, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
+		// zip files cannot be written in pieces
+		if ( compress || !BlockwiseTiffWriter.supports( type ) )
+			return false;
+
+		final String fileName = getFileName( tp, vs );
+
+		final double calibration;
+		final double[] origin = new double[ 3 ];
+
+		if ( bb != null )
+		{
+			calibration = bb.getDownSampling();
+
+			for ( int d = 0; d < 3; ++d )
+				origin[ d ] = -(bb.min( d ) / bb.getDownSampling());
+		}
+		else
+		{
+			calibration = 1;
+		}
+
+		try
+		{
+			blockwiseWriter = new BlockwiseTiffWriter( new File( fileName ), dimensions, type instanceof FloatType, calibration, origin );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Cannot write file " + fileName + " blockwise: " + e );
+			return false;
+		}
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saving file " + fileName + " blockwise" );
+
+		return true;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block )
+	{
+		try
+		{
+			blockwiseWriter.writeBlock( block );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Failed to write block: " + e );
+			return false;
+		}
+	}
+
+	@Override
+	public boolean closeBlockwise()
+	{
+		try
+		{
+			blockwiseWriter.close();
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Failed to finish file " + blockwiseWriter.file + ": " + e );
+			return false;
+		}
+		finally
+		{
+			blockwiseWriter = null;
+		}
+	}
+
 	@Override
 	public boolean queryParameters( final SpimData2 spimData, final boolean is16bit ) { return true; }
 
@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weightedavg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.Threads;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.ImgExportBlockwise;
+
+/**
+ * Fuses the bounding box block by block, every block only uses the views whose transformed
+ * bounding box intersects it. If the blocks are handed to an {@link ImgExportBlockwise}, the
+ * fused image is never held in memory as a whole, the memory requirements for the output
+ * are then bounded by the block size times the number of threads.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ProcessBlockwise extends ProcessFusion
+{
+	public static int[] defaultBlockSize = new int[]{ 256, 256, 64 };
+
+	final int[] blockSize;
+
+	/**
+	 * Receives the finished blocks, called from many threads
+	 */
+	public interface BlockWriter< T >
+	{
+		public void write( final RandomAccessibleInterval< T > block ) throws Exception;
+	}
+
+	public ProcessBlockwise(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int[] blockSize )
+	{
+		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+
+		this.blockSize = blockSize;
+	}
+
+	/** 
+	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel, block by block
+	 * into an image that holds the entire fused volume
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @return
+	 */
+	@Override
+	public < T extends RealType< T > & NativeType< T > > Img< T > fuseStack(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel )
+	{
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess ).size() == 0 )
+			return null;
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image.");
+
+		// try creating the output (type needs to be there to define T)
+		final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
+
+		if ( fusedImg == null )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WeightedAverageFusion: Cannot create output image."  );
+			return null;
+		}
+
+		final boolean success = fuseBlocks( type, interpolatorFactory, timepoint, channel, new BlockWriter< T >()
+		{
+			@Override
+			public void write( final RandomAccessibleInterval< T > block )
+			{
+				final Cursor< T > in = Views.flatIterable( block ).cursor();
+				final Cursor< T > out = Views.flatIterable( Views.interval( fusedImg, block ) ).cursor();
+
+				while ( out.hasNext() )
+					out.next().set( in.next() );
+			}
+		});
+
+		if ( success )
+			return fusedImg;
+		else
+			return null;
+	}
+
+	/**
+	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel, block by block
+	 * and hands every finished block to the exporter. The exporter must have been opened using
+	 * {@link ImgExportBlockwise#openBlockwise}, it will be closed by this method.
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @param exporter
+	 * @return - true if all blocks were fused and written
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean fuseStackBlockwise(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel,
+			final ImgExportBlockwise exporter )
+	{
+		final boolean success = fuseBlocks( type, interpolatorFactory, timepoint, channel, new BlockWriter< T >()
+		{
+			@Override
+			public void write( final RandomAccessibleInterval< T > block ) throws IOException
+			{
+				if ( !exporter.exportBlock( block ) )
+					throw new IOException( "Could not export block " + Util.printInterval( block ) );
+			}
+		});
+
+		return exporter.closeBlockwise() && success;
+	}
+
+	protected < T extends RealType< T > & NativeType< T > > boolean fuseBlocks(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel,
+			final BlockWriter< T > writer )
+	{
+		// get all views that are fused
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+		if ( inputData.size() == 0 )
+			return false;
+
+		// the images are not loaded completely, so cached ImgLoaders only load what the blocks need
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+		{
+			final ViewDescription vd = inputData.get( i );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+			imgs.add( getImage( type, spimData.getSequenceDescription().getImgLoader(), vd, false, false ) );
+		}
+
+		// get all weighting methods
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+		// where the views are located in world coordinates
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final RealInterval[] viewBounds = new RealInterval[ inputData.size() ];
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			viewBounds[ i ] = FusionHelper.transformedBoundingBox( transforms[ i ], imgs.get( i ) );
+
+		// split up into blocks, the threads pick them up one after the other
+		final Vector< FinalInterval > blocks = FusionHelper.divideIntoBlocks( bb.getDimensions(), blockSize );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing " + blocks.size() + " blocks of size " + Util.printCoordinates( blockSize ) + "." );
+
+		// set up executor service
+		final ExecutorService taskExecutor = Threads.createExecutor();
+		final ArrayList< ProcessBlockwisePortion< T > > tasks = new ArrayList< ProcessBlockwisePortion< T > >();
+
+		for ( final FinalInterval block : blocks )
+			tasks.add( new ProcessBlockwisePortion< T >( block, type, imgs, weights, interpolatorFactory, transforms, viewBounds, bb, writer ) );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< String > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return true;
+	}
+}
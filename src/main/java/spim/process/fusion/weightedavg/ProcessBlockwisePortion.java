@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Fuse one block of a blockwise fusion, supports any number of weight functions. Only
+ * views whose transformed bounding box intersects the block are considered.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ * @param <T>
+ */
+public class ProcessBlockwisePortion< T extends RealType< T > & NativeType< T > > implements Callable< String >
+{
+	final Interval block;
+	final T type;
+	final ArrayList< RandomAccessibleInterval< T > > imgs;
+	final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	final AffineTransform3D[] transforms;
+	final RealInterval[] viewBounds;
+	final BoundingBoxGUI bb;
+	final ProcessBlockwise.BlockWriter< T > writer;
+
+	final int downSampling;
+
+	public ProcessBlockwisePortion(
+			final Interval block,
+			final T type,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final RealInterval[] viewBounds,
+			final BoundingBoxGUI bb,
+			final ProcessBlockwise.BlockWriter< T > writer )
+	{
+		this.block = block;
+		this.type = type;
+		this.imgs = imgs;
+		this.weights = weights;
+		this.interpolatorFactory = interpolatorFactory;
+		this.transforms = transforms;
+		this.viewBounds = viewBounds;
+		this.bb = bb;
+		this.writer = writer;
+		this.downSampling = bb.getDownSampling();
+	}
+
+	@Override
+	public String call() throws Exception
+	{
+		// the block in world coordinates
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = block.min( d ) * downSampling + bb.min( d );
+			max[ d ] = block.max( d ) * downSampling + bb.min( d );
+		}
+
+		final FinalRealInterval blockBounds = new FinalRealInterval( min, max );
+
+		// find the views that contribute to this block
+		final ArrayList< Integer > views = new ArrayList< Integer >();
+
+		for ( int i = 0; i < imgs.size(); ++i )
+			if ( FusionHelper.overlaps( blockBounds, viewBounds[ i ] ) )
+				views.add( i );
+
+		final int numViews = views.size();
+
+		// make the interpolators and weights for the views that overlap
+		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
+		final ArrayList< ArrayList< RealRandomAccess< FloatType > > > weightAccess = new ArrayList< ArrayList< RealRandomAccess< FloatType > > >();
+		final AffineTransform3D[] blockTransforms = new AffineTransform3D[ numViews ];
+		final int[][] imgSizes = new int[ numViews ][ 3 ];
+
+		for ( int j = 0; j < numViews; ++j )
+		{
+			final int i = views.get( j );
+			final RandomAccessibleInterval< T > img = imgs.get( i );
+			imgSizes[ j ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+			blockTransforms[ j ] = transforms[ i ];
+
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
+
+			final ArrayList< RealRandomAccess< FloatType > > list = new ArrayList< RealRandomAccess< FloatType > >();
+
+			for ( final RealRandomAccessible< FloatType > rra : weights.get( i ) )
+				list.add( rra.realRandomAccess() );
+
+			weightAccess.add( list );
+		}
+
+		final long[] dim = new long[ 3 ];
+		final long[] offset = new long[ 3 ];
+		block.dimensions( dim );
+		block.min( offset );
+
+		final Img< T > blockImg = new ArrayImgFactory< T >().create( dim, type );
+
+		if ( numViews > 0 )
+		{
+			final Cursor< T > cursor = blockImg.localizingCursor();
+			final float[] s = new float[ 3 ];
+			final float[] t = new float[ 3 ];
+
+			while ( cursor.hasNext() )
+			{
+				// move img cursor forward any get the value (saves one access)
+				final T v = cursor.next();
+				cursor.localize( s );
+
+				s[ 0 ] = ( s[ 0 ] + offset[ 0 ] ) * downSampling + bb.min( 0 );
+				s[ 1 ] = ( s[ 1 ] + offset[ 1 ] ) * downSampling + bb.min( 1 );
+				s[ 2 ] = ( s[ 2 ] + offset[ 2 ] ) * downSampling + bb.min( 2 );
+
+				double sum = 0;
+				double sumW = 0;
+
+				for ( int j = 0; j < numViews; ++j )
+				{
+					blockTransforms[ j ].applyInverse( t, s );
+
+					if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ j ][ 0 ], imgSizes[ j ][ 1 ], imgSizes[ j ][ 2 ] ) )
+					{
+						final RealRandomAccess< T > r = interpolators.get( j );
+						r.setPosition( t );
+
+						double w = 1;
+
+						for ( final RealRandomAccess< FloatType > weight : weightAccess.get( j ) )
+						{
+							weight.setPosition( t );
+							w *= weight.get().get();
+						}
+
+						sum += r.get().getRealDouble() * w;
+						sumW += w;
+					}
+				}
+
+				if ( sumW > 0 )
+					v.setReal( sum / sumW );
+			}
+		}
+
+		// the interval of the block defines where it is located in the fused image
+		writer.write( Views.translate( blockImg, offset ) );
+
+		return "Block " + Util.printInterval( block ) + " finished successfully (" + numViews + " views).";
+	}
+}
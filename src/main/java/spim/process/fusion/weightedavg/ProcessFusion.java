@@ -23,6 +23,7 @@ package spim.process.fusion.weightedavg;
 
 import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,6 +51,7 @@ import spim.fiji.spimdata.ViewSetupUtils;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.weights.Blending;
 import spim.process.fusion.weights.ContentBased;
+import spim.process.fusion.weights.ContentBasedCache;
 
 public abstract class ProcessFusion
 {
@@ -60,6 +62,17 @@ public abstract class ProcessFusion
 	public static double[] defaultContentBasedSigma1 = new double[]{ 20, 20, 20 };
 	public static double[] defaultContentBasedSigma2 = new double[]{ 40, 40, 40 };
 	public static boolean defaultAdjustContentBasedSigmaForAnisotropy = true;
+
+	/**
+	 * compute the content-based weights on an image downsampled by this factor (1, 2, 4, 8)
+	 */
+	public static int defaultContentBasedDownsampling = 1;
+
+	/**
+	 * store the content-based weights in {@link #contentBasedCacheDirectory} relative to the XML
+	 */
+	public static boolean defaultCacheContentBased = false;
+	public static String contentBasedCacheDirectory = "contentbased";
 	
 	final protected SpimData2 spimData;
 	final List< ViewId > viewIdsToProcess;
@@ -124,7 +137,29 @@ public abstract class ProcessFusion
 			}
 		}
 
-		return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
+		final int downsampling = ProcessFusion.defaultContentBasedDownsampling;
+		final ContentBasedCache cache;
+
+		if ( ProcessFusion.defaultCacheContentBased )
+		{
+			cache = new ContentBasedCache( new File( spimData.getBasePath(), contentBasedCacheDirectory ) );
+
+			final ContentBased< T > cb = cache.load( desc, img, sigma1, sigma2, downsampling );
+
+			if ( cb != null )
+				return cb;
+		}
+		else
+		{
+			cache = null;
+		}
+
+		final ContentBased< T > cb = new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2, downsampling );
+
+		if ( cache != null )
+			cache.save( cb, desc, img, sigma1, sigma2, downsampling );
+
+		return cb;
 	}
 	
 	protected < T extends RealType< T > > ArrayList< RealRandomAccessible< FloatType > > getAllWeights(
@@ -170,14 +205,34 @@ public abstract class ProcessFusion
 		return getImage( type, spimData.getSequenceDescription().getImgLoader(), view, normalize );
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static < T extends RealType< T > > RandomAccessibleInterval< T > getImage( final T type, ImgLoader imgLoader, final ViewId view, final boolean normalize )
+	{
+		return getImage( type, imgLoader, view, normalize, true );
+	}
+
+	/**
+	 * @param loadCompletely - if false, an ImgLoader that supports it (e.g. HDF5) will only load the parts of the image that are accessed
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > getImage( final T type, ImgLoader imgLoader, final ViewId view, final boolean normalize, final boolean loadCompletely )
 	{
 		if ( (RealType)type instanceof FloatType )
-			return (RandomAccessibleInterval)imgLoader.getSetupImgLoader( view.getViewSetupId() ).getFloatImage( view.getTimePointId(), normalize, LOAD_COMPLETELY );
+		{
+			if ( loadCompletely )
+				return (RandomAccessibleInterval)imgLoader.getSetupImgLoader( view.getViewSetupId() ).getFloatImage( view.getTimePointId(), normalize, LOAD_COMPLETELY );
+			else
+				return (RandomAccessibleInterval)imgLoader.getSetupImgLoader( view.getViewSetupId() ).getFloatImage( view.getTimePointId(), normalize );
+		}
 		else if ( (RealType)type instanceof UnsignedShortType )
-			return (RandomAccessibleInterval)imgLoader.getSetupImgLoader( view.getViewSetupId() ).getImage( view.getTimePointId(), LOAD_COMPLETELY );
+		{
+			if ( loadCompletely )
+				return (RandomAccessibleInterval)imgLoader.getSetupImgLoader( view.getViewSetupId() ).getImage( view.getTimePointId(), LOAD_COMPLETELY );
+			else
+				return (RandomAccessibleInterval)imgLoader.getSetupImgLoader( view.getViewSetupId() ).getImage( view.getTimePointId() );
+		}
 		else
+		{
 			return null;
+		}
 	}
 }
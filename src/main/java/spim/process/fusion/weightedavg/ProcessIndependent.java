@@ -27,7 +27,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.TimePoint;
@@ -125,7 +124,7 @@ public class ProcessIndependent extends ProcessFusion
 			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
 
 			// set up executor service
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ExecutorService taskExecutor = Threads.createExecutor();
 			final ArrayList< ProcessIndependentPortion< T > > tasks = new ArrayList< ProcessIndependentPortion< T > >();
 
 			for ( final ImagePortion portion : portions )
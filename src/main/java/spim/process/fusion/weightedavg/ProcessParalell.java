@@ -26,7 +26,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.TimePoint;
@@ -38,6 +37,7 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -45,6 +45,7 @@ import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewOverlapIndex;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 public class ProcessParalell extends ProcessFusion
@@ -110,22 +111,26 @@ public class ProcessParalell extends ProcessFusion
 		for ( int i = 0; i < inputData.size(); ++i )
 			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
 		
-		// split up into many parts for multithreading
-		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+		// which views overlap which part of the fused image
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final ViewOverlapIndex index = new ViewOverlapIndex( imgs, transforms, bb );
+
+		// split up into many parts for multithreading (every part is a range of lines)
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.dimension( 1 ) * fusedImg.dimension( 2 ), Threads.numThreads() * 4 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< ProcessParalellPortion< T > > tasks = new ArrayList< ProcessParalellPortion< T > >();
 
 		if ( weights.get( 0 ).size() == 0 ) // no weights
 		{		
 			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+				tasks.add( new ProcessParalellPortion< T >( portion, imgs, interpolatorFactory, transforms, index, fusedImg, bb ) );
 		}
 		else if ( weights.get( 0 ).size() > 1 ) // many weights
 		{
 			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+				tasks.add( new ProcessParalellPortionWeights< T >( portion, imgs, weights, interpolatorFactory, transforms, index, fusedImg, bb ) );
 		}
 		else // one weight
 		{
@@ -135,7 +140,7 @@ public class ProcessParalell extends ProcessFusion
 				singleWeight.add( weights.get( i ).get( 0 ) );
 			
 			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+				tasks.add( new ProcessParalellPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, transforms, index, fusedImg, bb ) );
 		}
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
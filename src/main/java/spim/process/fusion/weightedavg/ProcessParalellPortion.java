@@ -24,7 +24,7 @@ package spim.process.fusion.weightedavg;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -35,6 +35,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewOverlapIndex;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
@@ -50,10 +51,10 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 	final ArrayList< RandomAccessibleInterval< T > > imgs;
 	final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory;
 	final AffineTransform3D[] transforms;
+	final ViewOverlapIndex index;
 	final Img< T > fusedImg;
 	final BoundingBoxGUI bb;
 	
-	final boolean doDownSampling;
 	final int downSampling;
 	
 	public ProcessParalellPortion(
@@ -61,6 +62,7 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 			final ArrayList< RandomAccessibleInterval< T > > imgs,
 			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
+			final ViewOverlapIndex index,
 			final Img< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
@@ -68,14 +70,51 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 		this.imgs = imgs;
 		this.interpolatorFactory = interpolatorFactory;
 		this.transforms = transforms;
+		this.index = index;
 		this.fusedImg = fusedImg;
 		this.bb = bb;
 		this.downSampling = bb.getDownSampling();
-		
-		if ( downSampling == 1 )
-			doDownSampling = false;
-		else
-			doDownSampling = true;
+	}
+
+	/**
+	 * @return - for every view, how its local coordinates change when moving one pixel along x in the fused image
+	 */
+	protected double[][] getIncrements()
+	{
+		final double[][] increments = new double[ transforms.length ][];
+
+		for ( int i = 0; i < transforms.length; ++i )
+			increments[ i ] = FusionHelper.inverseIncrement( transforms[ i ], downSampling );
+
+		return increments;
+	}
+
+	/**
+	 * Computes for every view the local coordinates of the first pixel of a line of the fused image
+	 * 
+	 * @param y - the line in the fused image
+	 * @param z - the plane in the fused image
+	 * @param lineStart - the local coordinates for every view
+	 */
+	protected void getLineStart( final long y, final long z, final double[][] lineStart )
+	{
+		final double[] s = new double[]{
+				bb.min( 0 ),
+				y * downSampling + bb.min( 1 ),
+				z * downSampling + bb.min( 2 ) };
+
+		for ( int i = 0; i < transforms.length; ++i )
+			transforms[ i ].applyInverse( lineStart[ i ], s );
+	}
+
+	/**
+	 * The local coordinates of a view at pixel x of the current line, replaces a full applyInverse()
+	 */
+	protected static final void position( final double[] lineStart, final double[] increment, final int x, final double[] t )
+	{
+		t[ 0 ] = lineStart[ 0 ] + x * increment[ 0 ];
+		t[ 1 ] = lineStart[ 1 ] + x * increment[ 1 ];
+		t[ 2 ] = lineStart[ 2 ] + x * increment[ 2 ];
 	}
 	
 	@Override
@@ -95,47 +134,57 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		// how the local coordinates of every view change along a line of the fused image
+		final double[][] increments = getIncrements();
+		final double[][] lineStart = new double[ numViews ][ 3 ];
+		final double[] t = new double[ 3 ];
+
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
+		final int sizeX = (int)fusedImg.dimension( 0 );
+		final int sizeY = (int)fusedImg.dimension( 1 );
+		final int blockSize = index.getBlockSize();
+
+		// the portion is a range of lines along x in the fused image
+		for ( long line = portion.getStartPosition(); line < portion.getStartPosition() + portion.getLoopSize(); ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
+			final int y = (int)( line % sizeY );
+			final int z = (int)( line / sizeY );
+
+			getLineStart( y, z, lineStart );
+
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			int[] views = null;
+
+			for ( int x = 0; x < sizeX; ++x )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			int sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				// the views that can overlap only change every few pixels
+				if ( x % blockSize == 0 )
+					views = index.getViews( x, y, z );
+
+				double sum = 0;
+				int sumW = 0;
+
+				for ( final int i : views )
+				{
+					position( lineStart[ i ], increments[ i ], x, t );
+
+					if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+					{
+						final RealRandomAccess< T > r = interpolators.get( i );
+						r.setPosition( t );
+						sum += r.get().getRealDouble();
+						++sumW;
+					}
+				}
+
+				if ( sumW > 0 )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
-					sum += r.get().getRealDouble();
-					++sumW;
+					randomAccess.setPosition( x, 0 );
+					randomAccess.get().setReal( sum / sumW );
 				}
 			}
-			
-			if ( sumW > 0 )
-				v.setReal( sum / sumW );
 		}
 		
 		return portion + " finished successfully (no weights).";
@@ -23,7 +23,7 @@ package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -36,6 +36,7 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewOverlapIndex;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
@@ -55,10 +56,11 @@ public class ProcessParalellPortionWeights< T extends RealType< T > > extends Pr
 			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
 			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
+			final ViewOverlapIndex index,
 			final Img< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
-		super( portion, imgs, interpolatorFactory, transforms, fusedImg, bb );
+		super( portion, imgs, interpolatorFactory, transforms, index, fusedImg, bb );
 		
 		this.weights = weights;
 	}
@@ -88,56 +90,66 @@ public class ProcessParalellPortionWeights< T extends RealType< T > > extends Pr
 			weightAccess.add( list );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		// how the local coordinates of every view change along a line of the fused image
+		final double[][] increments = getIncrements();
+		final double[][] lineStart = new double[ numViews ][ 3 ];
+		final double[] t = new double[ 3 ];
+
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
+		final int sizeX = (int)fusedImg.dimension( 0 );
+		final int sizeY = (int)fusedImg.dimension( 1 );
+		final int blockSize = index.getBlockSize();
+
+		// the portion is a range of lines along x in the fused image
+		for ( long line = portion.getStartPosition(); line < portion.getStartPosition() + portion.getLoopSize(); ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
+			final int y = (int)( line % sizeY );
+			final int z = (int)( line / sizeY );
+
+			getLineStart( y, z, lineStart );
+
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			int[] views = null;
+
+			for ( int x = 0; x < sizeX; ++x )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			double sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				// the views that can overlap only change every few pixels
+				if ( x % blockSize == 0 )
+					views = index.getViews( x, y, z );
+
+				double sum = 0;
+				double sumW = 0;
+
+				for ( final int i : views )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
-					
-					double w = 1;
-					
-					for ( final RealRandomAccess< FloatType > weight : weightAccess.get( i ) )
+					position( lineStart[ i ], increments[ i ], x, t );
+
+					if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
 					{
-						weight.setPosition( t );
-						w *= weight.get().get();
+						final RealRandomAccess< T > r = interpolators.get( i );
+						r.setPosition( t );
+
+						double w = 1;
+
+						for ( final RealRandomAccess< FloatType > weight : weightAccess.get( i ) )
+						{
+							weight.setPosition( t );
+							w *= weight.get().get();
+						}
+
+						sum += r.get().getRealDouble() * w;
+						sumW += w;
 					}
-					
-					sum += r.get().getRealDouble() * w;
-					sumW += w;
+				}
+
+				if ( sumW > 0 )
+				{
+					randomAccess.setPosition( x, 0 );
+					randomAccess.get().setReal( sum / sumW );
 				}
 			}
-			
-			if ( sumW > 0 )
-				v.setReal( sum / sumW );
 		}
 		
 		return portion + " finished successfully (many weights).";
@@ -23,7 +23,7 @@ package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -36,6 +36,7 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewOverlapIndex;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
@@ -56,11 +57,12 @@ public class ProcessSequentialPortionWeight< T extends RealType< T > > extends P
 			final ArrayList< RealRandomAccessible< FloatType > > weights,
 			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
+			final ViewOverlapIndex index,
 			final Img< T > fusedImg,
 			final Img< FloatType > weightImg,
 			final BoundingBoxGUI bb )
 	{
-		super( portion, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb );
+		super( portion, imgs, interpolatorFactory, transforms, index, fusedImg, weightImg, bb );
 		
 		this.weights = weights;
 	}
@@ -85,61 +87,72 @@ public class ProcessSequentialPortionWeight< T extends RealType< T > > extends P
 			weightAccess.add( weights.get( i ).realRandomAccess() );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final Cursor< FloatType > cursorW = weightImg.cursor();
+		// how the local coordinates of every view change along a line of the fused image
+		final double[][] increments = getIncrements();
+		final double[][] lineStart = new double[ numViews ][ 3 ];
+		final double[] t = new double[ 3 ];
 
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
+		final RandomAccess< FloatType > weightRandomAccess = weightImg.randomAccess();
+		final int sizeX = (int)fusedImg.dimension( 0 );
+		final int sizeY = (int)fusedImg.dimension( 1 );
+		final int blockSize = index.getBlockSize();
+
+		// the portion is a range of lines along x in the fused image
+		for ( long line = portion.getStartPosition(); line < portion.getStartPosition() + portion.getLoopSize(); ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
+			final int y = (int)( line % sizeY );
+			final int z = (int)( line / sizeY );
+
+			getLineStart( y, z, lineStart );
+
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			weightRandomAccess.setPosition( y, 1 );
+			weightRandomAccess.setPosition( z, 2 );
 
-			// move weight cursor forward and get the value 
-			final FloatType w = cursorW.next();
+			int[] views = null;
 
-			if ( doDownSampling )
+			for ( int x = 0; x < sizeX; ++x )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			double sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				// the views that can overlap only change every few pixels
+				if ( x % blockSize == 0 )
+					views = index.getViews( x, y, z );
+
+				double sum = 0;
+				double sumW = 0;
+
+				for ( final int i : views )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
-					
-					final RealRandomAccess< FloatType > weight = weightAccess.get( i );
-					weight.setPosition( t );
-					
-					final double w1 = weight.get().get();
-					
-					sum += r.get().getRealDouble() * w1;
-					sumW += w1;
+					position( lineStart[ i ], increments[ i ], x, t );
+
+					if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+					{
+						final RealRandomAccess< T > r = interpolators.get( i );
+						r.setPosition( t );
+
+						final RealRandomAccess< FloatType > weight = weightAccess.get( i );
+						weight.setPosition( t );
+
+						final double w = weight.get().get();
+
+						sum += r.get().getRealDouble() * w;
+						sumW += w;
+					}
+				}
+
+				if ( sumW > 0 )
+				{
+					randomAccess.setPosition( x, 0 );
+					weightRandomAccess.setPosition( x, 0 );
+
+					final T v = randomAccess.get();
+					final FloatType w = weightRandomAccess.get();
+
+					v.setReal( v.getRealFloat() + sum );
+					w.set( w.get() + (float)sumW );
 				}
-			}
-			
-			if ( sumW > 0 )
-			{
-				v.setReal( v.getRealFloat() + sum );
-				w.set( w.get() + (float)sumW );
 			}
 		}
 		
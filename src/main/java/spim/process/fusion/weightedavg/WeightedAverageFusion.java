@@ -23,10 +23,20 @@ package spim.process.fusion.weightedavg;
 
 import ij.gui.GenericDialog;
 
+import java.awt.Checkbox;
 import java.awt.Choice;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
@@ -36,21 +46,27 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessible;
+import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
 import spim.fiji.plugin.Apply_Transformation;
 import spim.fiji.plugin.fusion.Fusion;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.boundingbox.BoundingBoxGUI.ManageListeners;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
+import spim.process.fusion.export.ImgExportBlockwise;
 import spim.process.fusion.export.ImgExportTitle;
 
 public class WeightedAverageFusion extends Fusion
@@ -61,7 +77,24 @@ public class WeightedAverageFusion extends Fusion
 	public static int defaultNumParalellViewsIndex = 0;
 	protected int numParalellViews = 1;
 	
+	public static String[] contentBasedDownsamplingChoice = new String[]{ "1x (full resolution)", "2x", "4x", "8x" };
+	public static int defaultContentBasedDownsamplingIndex = 0;
+
+	public static boolean defaultFuseBlockwise = false;
+	protected boolean fuseBlockwise = false;
+
+	/**
+	 * fuse several timepoints/channels at once while exporting the previous ones,
+	 * the number of images in flight is limited by the memory budget (fraction of
+	 * the Java heap) and by defaultMaxConcurrentFusions
+	 */
+	public static boolean defaultFuseConcurrently = false;
+	public static double defaultMemoryBudget = 0.8;
+	public static int defaultMaxConcurrentFusions = 4;
+	protected boolean fuseConcurrently = false;
+
 	protected Choice sequentialViews = null;
+	protected Checkbox blockwise = null;
 
 	public WeightedAverageFusion(
 			final SpimData2 spimData,
@@ -93,7 +126,9 @@ public class WeightedAverageFusion extends Fusion
 
 		final ProcessFusion process;
 		
-		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
+		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && fuseBlockwise )
+			process = new ProcessBlockwise( spimData, viewIdsToProcess, bb, useBlending, useContentBased, ProcessBlockwise.defaultBlockSize );
+		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
 			process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA )
 			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews );
@@ -101,32 +136,192 @@ public class WeightedAverageFusion extends Fusion
 			process = new ProcessIndependent( spimData, viewIdsToProcess, bb, exporter, newViewsetups );
 
 
+		// ProcessIndependent exports by itself, streaming to an ImgExportBlockwise holds no fused image in memory
+		if ( fuseConcurrently && !( process instanceof ProcessIndependent ) &&
+				!( process instanceof ProcessBlockwise && exporter instanceof ImgExportBlockwise ) &&
+				timepointsToProcess.size() * channelsToProcess.size() > 1 )
+		{
+			if ( bb.getPixelType() == 0 )
+				return fuseConcurrently( process, new FloatType(), bb, exporter, titler );
+			else
+				return fuseConcurrently( process, new UnsignedShortType(), bb, exporter, titler );
+		}
+
 		for ( final TimePoint t : timepointsToProcess )
 			for ( final Channel c : channelsToProcess )
 			{
+				if ( !hasInputData( t, c ) )
+					continue;
+
 				final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 
 				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
+				final ViewSetup vs = newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) );
+
 				if ( bb.getPixelType() == 0 )
+					fuseAndExport( process, new FloatType(), bb, exporter, t, c, vs );
+				else
+					fuseAndExport( process, new UnsignedShortType(), bb, exporter, t, c, vs );
+			}
+
+		return true;
+	}
+
+	/**
+	 * Fuses all timepoints and channels with up to n images in flight. The fusion of the next
+	 * images (including loading the input views) overlaps with the export of the current one.
+	 * The export itself is done in order by the calling thread, as the exporters are not thread-safe.
+	 */
+	protected < T extends RealType< T > & NativeType< T > > boolean fuseConcurrently(
+			final ProcessFusion process,
+			final T type,
+			final BoundingBoxGUI bb,
+			final ImgExport exporter,
+			final FixedNameImgTitler titler )
+	{
+		final ArrayList< TimePoint > tps = new ArrayList< TimePoint >();
+		final ArrayList< Channel > chs = new ArrayList< Channel >();
+
+		for ( final TimePoint t : timepointsToProcess )
+			for ( final Channel c : channelsToProcess )
+				if ( hasInputData( t, c ) )
 				{
-					exporter.exportImage(
-							process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ),
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					tps.add( t );
+					chs.add( c );
 				}
-				else
+
+		final int numImages = tps.size();
+		final int numConcurrent = numConcurrentFusions( bb, bb.getPixelType() == 0 ? 4 : 2, numImages );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusing " + numImages + " images, up to " + numConcurrent + " concurrently." );
+
+		// a permit is taken before fusing an image and returned once it was exported
+		final Semaphore inFlight = new Semaphore( numConcurrent );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( numConcurrent );
+		final ArrayList< Future< Img< T > > > futures = new ArrayList< Future< Img< T > > >();
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final TimePoint t = tps.get( i );
+			final Channel c = chs.get( i );
+
+			futures.add( taskExecutor.submit( new Callable< Img< T > >()
+			{
+				@Override
+				public Img< T > call() throws Exception
 				{
-					exporter.exportImage(
-							process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c ),
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					inFlight.acquire();
+
+					try
+					{
+						return process.fuseStack( type, getInterpolatorFactory( type ), t, c );
+					}
+					catch ( final Exception e )
+					{
+						inFlight.release();
+						throw e;
+					}
+				}
+			}));
+		}
+
+		boolean success = true;
+
+		try
+		{
+			for ( int i = 0; i < numImages; ++i )
+			{
+				final TimePoint t = tps.get( i );
+				final Channel c = chs.get( i );
+
+				final Img< T > img;
+
+				try
+				{
+					img = futures.get( i ).get();
+				}
+				catch ( final Exception e )
+				{
+					IOFunctions.println( "Failed to fuse timepoint " + t.getName() + ", channel " + c.getName() + ": " + e );
+					e.printStackTrace();
+					success = false;
+					continue;
+				}
+
+				if ( img == null )
+				{
+					IOFunctions.println( "Failed to fuse timepoint " + t.getName() + ", channel " + c.getName() );
+					inFlight.release();
+					success = false;
+					continue;
+				}
+
+				final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+
+				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
+				final ViewSetup vs = newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) );
+
+				try
+				{
+					success &= exporter.exportImage( img, bb, t, vs );
+				}
+				finally
+				{
+					inFlight.release();
 				}
 			}
+		}
+		finally
+		{
+			// if exporting failed, fusion tasks might still wait for a permit that is never returned, interrupt them
+			taskExecutor.shutdownNow();
+		}
 
-		return true;
+		return success;
+	}
+
+	/**
+	 * It can be that for a certain combination of timepoint/channel there is nothing to do
+	 * (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2), then no (empty) image must be exported
+	 *
+	 * @return - true if there are views to fuse for this timepoint and channel
+	 */
+	protected boolean hasInputData( final TimePoint t, final Channel c )
+	{
+		return FusionHelper.assembleInputData( spimData, t, c, viewIdsToProcess ).size() > 0;
+	}
+
+	/**
+	 * @return how many images can be fused and held at the same time within the memory budget
+	 */
+	protected int numConcurrentFusions( final BoundingBoxGUI bb, final int bytePerPixel, final int numImages )
+	{
+		final long[] dim = bb.getDimensions();
+		final long fusedSizeMB = ( dim[ 0 ] * dim[ 1 ] * dim[ 2 ] * bytePerPixel ) / ( 1024*1024 );
+		final long perImageMB = Math.max( 1, totalRAM( fusedSizeMB, bytePerPixel ) );
+		final long budgetMB = (long)( ( Runtime.getRuntime().maxMemory() / ( 1024*1024 ) ) * defaultMemoryBudget );
+
+		return (int)Math.max( 1, Math.min( Math.min( budgetMB / perImageMB, numImages ), defaultMaxConcurrentFusions ) );
+	}
+
+	protected < T extends RealType< T > & NativeType< T > > boolean fuseAndExport(
+			final ProcessFusion process,
+			final T type,
+			final BoundingBoxGUI bb,
+			final ImgExport exporter,
+			final TimePoint t,
+			final Channel c,
+			final ViewSetup vs )
+	{
+		// stream the blocks directly to the exporter if it supports it, the fused image is then never held in memory
+		if ( process instanceof ProcessBlockwise && exporter instanceof ImgExportBlockwise &&
+				((ImgExportBlockwise)exporter).openBlockwise( type, bb.getDimensions(), bb, t, vs ) )
+			return ((ProcessBlockwise)process).fuseStackBlockwise( type, getInterpolatorFactory( type ), t, c, (ImgExportBlockwise)exporter );
+		else
+			return exporter.exportImage( process.fuseStack( type, getInterpolatorFactory( type ), t , c ), bb, t, vs );
 	}
 
 	@Override
@@ -192,6 +387,11 @@ public class WeightedAverageFusion extends Fusion
 		{
 			gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
 			gd.addCheckbox( "Content-based fusion", Fusion.defaultUseContentBased );
+			gd.addChoice( "Content-based_weights_downsampling", contentBasedDownsamplingChoice, contentBasedDownsamplingChoice[ defaultContentBasedDownsamplingIndex ] );
+			gd.addCheckbox( "Cache_content-based_weights_on_disk", ProcessFusion.defaultCacheContentBased );
+			gd.addCheckbox( "Fuse_blockwise (low memory, streams blocks to TIFF if possible)", defaultFuseBlockwise );
+			this.blockwise = (Checkbox)gd.getCheckboxes().lastElement();
+			gd.addCheckbox( "Fuse_timepoints_and_channels_concurrently (within " + Math.round( defaultMemoryBudget * 100 ) + "% of RAM)", defaultFuseConcurrently );
 		}
 		gd.addChoice( "Interpolation", Fusion.interpolationTypes, Fusion.interpolationTypes[ Fusion.defaultInterpolation ] );
 	}
@@ -205,20 +405,40 @@ public class WeightedAverageFusion extends Fusion
 			this.numParalellViews = defaultNumParalellViewsIndex;
 			this.useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
 			this.useContentBased = Fusion.defaultUseContentBased = gd.getNextBoolean();
+			defaultContentBasedDownsamplingIndex = gd.getNextChoiceIndex();
+			ProcessFusion.defaultContentBasedDownsampling = 1 << defaultContentBasedDownsamplingIndex;
+			ProcessFusion.defaultCacheContentBased = gd.getNextBoolean();
+			this.fuseBlockwise = defaultFuseBlockwise = gd.getNextBoolean();
+			this.fuseConcurrently = defaultFuseConcurrently = gd.getNextBoolean();
 		}
 		else
 		{
-			this.useBlending = this.useContentBased = false;
+			this.useBlending = this.useContentBased = this.fuseBlockwise = this.fuseConcurrently = false;
 		}
 		this.interpolation = Fusion.defaultInterpolation = gd.getNextChoiceIndex();
 
 		return true;
 	}
 	
+	@Override
+	public void registerAdditionalListeners( final ManageListeners m )
+	{
+		if ( blockwise != null )
+			blockwise.addItemListener( new ItemListener() { @Override
+			public void itemStateChanged(ItemEvent e) { m.update(); } });
+	}
+
 	@Override
 	public long totalRAM( final long fusedSizeMB, final int bytePerPixel )
 	{
-		if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == 0 )
+		if ( type == WeightedAvgFusionType.FUSEDATA && blockwise != null && blockwise.getState() )
+		{
+			final int[] b = ProcessBlockwise.defaultBlockSize;
+			final long blockSizeMB = ( (long)b[ 0 ] * b[ 1 ] * b[ 2 ] * bytePerPixel ) / ( 1024*1024 );
+
+			return blockSizeMB * Threads.numThreads() + (getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
+		}
+		else if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == 0 )
 			return fusedSizeMB + (getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
 		else if ( type == WeightedAvgFusionType.FUSEDATA )
 			return fusedSizeMB + ((sequentialViews.getSelectedIndex()) * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
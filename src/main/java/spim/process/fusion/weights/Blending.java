@@ -39,6 +39,8 @@ public class Blending implements RealRandomAccessible< FloatType >
 {
 	final Interval interval;
 	final float[] border, blending;
+	final float[][] tables;
+	final int samplesPerPixel;
 
 	/**
 	 * RealRandomAccess that computes a blending function for a certain {@link Interval}
@@ -53,6 +55,10 @@ public class Blending implements RealRandomAccessible< FloatType >
 		this.interval = new FinalInterval( interval );
 		this.border = border;
 		this.blending = blending;
+
+		// the per-dimension tables are shared by all views of the same size
+		this.samplesPerPixel = BlendingTables.samplesPerPixel;
+		this.tables = BlendingTables.getTables( this.interval, border, blending, samplesPerPixel );
 	}
 
 	@Override
@@ -61,7 +67,7 @@ public class Blending implements RealRandomAccessible< FloatType >
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess()
 	{
-		return new BlendingRealRandomAccess( interval, border, blending );
+		return new BlendingRealRandomAccess( interval, border, blending, tables, samplesPerPixel );
 	}
 
 	@Override
@@ -36,89 +36,101 @@ import net.imglib2.type.numeric.real.FloatType;
 public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 {
 	final Interval interval;
-	final int[] min, dimMinus1;
+	final int[] start;
 	final float[] l, border, blending;
-	final int n;
+	final int n, samplesPerPixel;
+	final float[][] tables;
 	final FloatType v;
 
-	// static lookup table for the blending function
-	final static private double[] lookUp;
-	private static final int indexFor( final double d ) { return (int)Math.round( d * 1000.0 ); }
-
-	static
+	/**
+	 * RealRandomAccess that computes a blending function for a certain {@link Interval}
+	 * 
+	 * @param interval - the interval it is defined on (return zero outside of it)
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 */
+	public BlendingRealRandomAccess(
+			final Interval interval,
+			final float[] border,
+			final float[] blending )
 	{
-		lookUp = new double[ 1001 ];
+		this( interval, border, blending, BlendingTables.samplesPerPixel );
+	}
 
-		for ( double d = 0; d <= 1.0001; d = d + 0.001 )
-			lookUp[ indexFor( d ) ] = ( Math.cos( ( 1 - d ) * Math.PI ) + 1 ) / 2;
+	private BlendingRealRandomAccess(
+			final Interval interval,
+			final float[] border,
+			final float[] blending,
+			final int samplesPerPixel )
+	{
+		this( interval, border, blending, BlendingTables.getTables( interval, border, blending, samplesPerPixel ), samplesPerPixel );
 	}
 
 	/**
 	 * RealRandomAccess that computes a blending function for a certain {@link Interval}
+	 * using precomputed per-dimension tables (see {@link BlendingTables})
 	 * 
 	 * @param interval - the interval it is defined on (return zero outside of it)
 	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
 	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 * @param tables - the tables for exactly this interval size, border and blending
+	 * @param samplesPerPixel - the number of samples per pixel in the tables
 	 */
 	public BlendingRealRandomAccess(
 			final Interval interval,
 			final float[] border,
-			final float[] blending )
+			final float[] blending,
+			final float[][] tables,
+			final int samplesPerPixel )
 	{
 		this.interval = interval;
 		this.n = interval.numDimensions();
 		this.l = new float[ n ];
 		this.border = border;
 		this.blending = blending;
+		this.tables = tables;
+		this.samplesPerPixel = samplesPerPixel;
 		this.v = new FloatType();
 		
-		this.min = new int[ n ];
-		this.dimMinus1 = new int[ n ];
+		// where the tables start, they extend beyond the interval for negative borders
+		this.start = new int[ n ];
 		
 		for ( int d = 0; d < n; ++d )
-		{
-			this.min[ d ] = (int)interval.min( d );
-			this.dimMinus1[ d ] = (int)interval.max( d ) - min[ d ];
-		}
+			this.start[ d ] = (int)interval.min( d ) - BlendingTables.padding( border[ d ] );
 	}
 	
 	@Override
 	public FloatType get()
 	{
-		v.set( computeWeight( l, min, dimMinus1, border, blending, n ) );
+		v.set( computeWeight( l, start, tables, samplesPerPixel, n ) );
 		return v;
 	}
 
 	final private static float computeWeight(
 			final float[] location,
-			final int[] min, 
-			final int[] dimMinus1,
-			final float[] border, 
-			final float[] blending,
+			final int[] start, 
+			final float[][] tables,
+			final int samplesPerPixel,
 			final int n )
 	{
-		// compute multiplicative distance to the respective borders [0...1]
-		float minDistance = 1;
+		// the blending function is separable, so it is the product of one lookup per dimension [0...1]
+		float weight = 1;
 
 		for ( int d = 0; d < n; ++d )
 		{
-			// the position in the image relative to the boundaries and the border
-			final float l = ( location[ d ] - min[ d ] );
+			final float[] table = tables[ d ];
 
-			// the distance to the border that is closer
-			final float dist = Math.max( 0, Math.min( l - border[ d ], dimMinus1[ d ] - l - border[ d ] ) );
+			// the position in the image relative to the start of the table in table units
+			final int i = Math.round( ( location[ d ] - start[ d ] ) * samplesPerPixel );
 
-			// if this is 0, the total result will be 0, independent of the number of dimensions
-			if ( dist == 0 )
+			// outside of the table the total result will be 0, independent of the number of dimensions
+			if ( i < 0 || i >= table.length )
 				return 0;
 
-			final float relDist = dist / blending[ d ];
-
-			if ( relDist < 1 )
-				minDistance *= lookUp[ indexFor( relDist ) ]; //( Math.cos( ( 1 - relDist ) * Math.PI ) + 1 ) / 2;
+			weight *= table[ i ];
 		}
 
-		return minDistance;
+		return weight;
 	}
 
 	@Override
@@ -264,7 +276,7 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 	@Override
 	public RealRandomAccess<FloatType> copyRealRandomAccess()
 	{
-		final BlendingRealRandomAccess r = new BlendingRealRandomAccess( interval, border, blending );
+		final BlendingRealRandomAccess r = new BlendingRealRandomAccess( interval, border, blending, tables, samplesPerPixel );
 		r.setPosition( this );
 		return r;
 	}
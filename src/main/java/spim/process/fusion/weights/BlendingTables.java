@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weights;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.imglib2.Interval;
+
+/**
+ * The cosine-blending weight is a product of one independent factor per dimension,
+ * which only depends on the size of the view and the border/blending parameters.
+ * This class precomputes these factors as one lookup table per dimension (sampled
+ * with {@link #samplesPerPixel} sub-pixel steps) and caches them, so all timepoints
+ * and channels of a ViewSetup with the same size share the same tables.
+ *
+ * A negative border (as used by the deconvolution) makes the weights extend beyond the
+ * interval, the tables are then padded by {@link #padding(float)} pixels on both sides.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class BlendingTables
+{
+	/**
+	 * how many samples per pixel are stored in the tables
+	 */
+	public static int samplesPerPixel = 16;
+
+	final static private HashMap< Key, float[][] > cache = new HashMap< Key, float[][] >();
+
+	/**
+	 * @param interval - the interval the blending is defined on
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 * @return one table per dimension, index i corresponds to the position min - padding( border ) + i / samplesPerPixel
+	 */
+	public static float[][] getTables( final Interval interval, final float[] border, final float[] blending )
+	{
+		return getTables( interval, border, blending, BlendingTables.samplesPerPixel );
+	}
+
+	/**
+	 * @param interval - the interval the blending is defined on
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 * @param samplesPerPixel - how many samples per pixel are stored in the tables
+	 * @return one table per dimension, index i corresponds to the position min - padding( border ) + i / samplesPerPixel
+	 */
+	public static float[][] getTables( final Interval interval, final float[] border, final float[] blending, final int samplesPerPixel )
+	{
+		final int n = interval.numDimensions();
+		final int[] dimMinus1 = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			dimMinus1[ d ] = (int)( interval.max( d ) - interval.min( d ) );
+
+		final Key key = new Key( dimMinus1, border, blending, samplesPerPixel );
+
+		synchronized ( cache )
+		{
+			float[][] tables = cache.get( key );
+
+			if ( tables == null )
+			{
+				tables = new float[ n ][];
+
+				for ( int d = 0; d < n; ++d )
+					tables[ d ] = computeTable( dimMinus1[ d ], border[ d ], blending[ d ], samplesPerPixel );
+
+				cache.put( key, tables );
+			}
+
+			return tables;
+		}
+	}
+
+	/**
+	 * Removes all cached tables
+	 */
+	public static void clearCache()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @param border - how many pixels to skip before starting blending
+	 * @return - by how many pixels the table extends beyond the interval on each side, the weights are non-zero
+	 * outside of the interval if the border is negative
+	 */
+	public static int padding( final float border )
+	{
+		return border < 0 ? (int)Math.ceil( -border ) : 0;
+	}
+
+	protected static float[] computeTable( final int dimMinus1, final float border, final float blending, final int samplesPerPixel )
+	{
+		final int padding = padding( border );
+		final float[] table = new float[ ( dimMinus1 + 2 * padding ) * samplesPerPixel + 1 ];
+
+		for ( int i = 0; i < table.length; ++i )
+			table[ i ] = computeWeight( (float)i / samplesPerPixel - padding, dimMinus1, border, blending );
+
+		return table;
+	}
+
+	/**
+	 * The blending factor of a single dimension
+	 *
+	 * @param l - the position relative to the min of the interval
+	 * @param dimMinus1 - size of the interval - 1
+	 * @param border - how many pixels to skip before starting blending
+	 * @param blending - how many pixels to compute the blending function on
+	 * @return - the weight [0...1]
+	 */
+	public static float computeWeight( final float l, final int dimMinus1, final float border, final float blending )
+	{
+		// the distance to the border that is closer
+		final float dist = Math.max( 0, Math.min( l - border, dimMinus1 - l - border ) );
+
+		if ( dist == 0 )
+			return 0;
+
+		final float relDist = dist / blending;
+
+		if ( relDist < 1 )
+			return (float)( ( Math.cos( ( 1 - relDist ) * Math.PI ) + 1 ) / 2 );
+		else
+			return 1;
+	}
+
+	final private static class Key
+	{
+		final int[] dimMinus1;
+		final float[] border, blending;
+		final int samplesPerPixel;
+		final int hashCode;
+
+		public Key( final int[] dimMinus1, final float[] border, final float[] blending, final int samplesPerPixel )
+		{
+			this.dimMinus1 = dimMinus1;
+			this.border = border.clone();
+			this.blending = blending.clone();
+			this.samplesPerPixel = samplesPerPixel;
+			this.hashCode = 31 * ( 31 * ( 31 * Arrays.hashCode( dimMinus1 ) + Arrays.hashCode( this.border ) ) + Arrays.hashCode( this.blending ) ) + samplesPerPixel;
+		}
+
+		@Override
+		public int hashCode() { return hashCode; }
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key)o;
+
+			return samplesPerPixel == k.samplesPerPixel &&
+					Arrays.equals( dimMinus1, k.dimMinus1 ) &&
+					Arrays.equals( border, k.border ) &&
+					Arrays.equals( blending, k.blending );
+		}
+	}
+}
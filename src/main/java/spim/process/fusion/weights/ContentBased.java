@@ -39,12 +39,15 @@ import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Scale;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.process.fusion.FusionHelper;
+import spim.process.interestpointdetection.Downsample;
 
 /**
  * Computes the content-based fusion on a given image
@@ -60,24 +63,122 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	 */
 	final Img< FloatType > contentBasedImg;
 	final int n;
-	
+
+	/**
+	 * The scaling of each dimension between contentBasedImg and the input (1 if computed at full resolution)
+	 */
+	final double[] scale;
+
 	public ContentBased(
 			final RandomAccessibleInterval< T > input,
 			final ImgFactory< ComplexFloatType > imgFactory,
 			final double[] sigma1,
 			final double[] sigma2 )
+	{
+		this( input, imgFactory, sigma1, sigma2, 1 );
+	}
+
+	/**
+	 * @param input - the image to compute the content-based weights for
+	 * @param imgFactory - the factory for the FFT convolutions
+	 * @param sigma1 - sigma of the first gaussian (in pixels of the input)
+	 * @param sigma2 - sigma of the second gaussian (in pixels of the input)
+	 * @param downsampling - compute the entropy on an image downsampled by this factor (1, 2, 4, 8, ...) and interpolate it back
+	 */
+	public ContentBased(
+			final RandomAccessibleInterval< T > input,
+			final ImgFactory< ComplexFloatType > imgFactory,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int downsampling )
 	{
 		this.n = input.numDimensions();
-		
-		this.contentBasedImg = approximateEntropy(
-				new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(),  new FloatType() ),
-				imgFactory,
-				sigma1,
-				sigma2 );		
+		this.scale = new double[ n ];
+
+		RandomAccessibleInterval< FloatType > img = new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(),  new FloatType() );
+
+		for ( int d = 0; d < n; ++d )
+			scale[ d ] = 1;
+
+		if ( downsampling > 1 )
+		{
+			ImgFactory< FloatType > f;
+			try { f = imgFactory.imgFactory( new FloatType() ); } catch (IncompatibleTypeException e) { f = new ArrayImgFactory< FloatType >(); }
+
+			for ( int ds = downsampling; ds > 1; ds /= 2 )
+			{
+				// do not downsample dimensions that are too small (e.g. few z-planes)
+				final boolean[] downsampleInDim = new boolean[ n ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					downsampleInDim[ d ] = img.dimension( d ) >= 16;
+
+					if ( downsampleInDim[ d ] )
+						scale[ d ] *= 2;
+				}
+
+				img = Downsample.simple2x( img, f, downsampleInDim );
+			}
+		}
+
+		final double[] s1 = new double[ n ];
+		final double[] s2 = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			s1[ d ] = Math.max( 0.5, sigma1[ d ] / scale[ d ] );
+			s2[ d ] = Math.max( 0.5, sigma2[ d ] / scale[ d ] );
+		}
+
+		this.contentBasedImg = approximateEntropy( img, imgFactory, s1, s2 );
 	}
-	
+
+	/**
+	 * Instantiates ContentBased from already computed weights (e.g. loaded from disk)
+	 * 
+	 * @param contentBasedImg - the (potentially downsampled) content-based weights
+	 * @param scale - the scaling of each dimension between contentBasedImg and the input
+	 */
+	public ContentBased( final Img< FloatType > contentBasedImg, final double[] scale )
+	{
+		this.n = contentBasedImg.numDimensions();
+		this.contentBasedImg = contentBasedImg;
+		this.scale = scale.clone();
+	}
+
 	public Img< FloatType > getContentBasedImg() { return contentBasedImg; }
-	
+	public double[] getScale() { return scale.clone(); }
+
+	protected boolean isDownsampled()
+	{
+		for ( int d = 0; d < n; ++d )
+			if ( scale[ d ] != 1 )
+				return true;
+
+		return false;
+	}
+
+	protected RealRandomAccessible< FloatType > getInterpolated()
+	{
+		if ( isDownsampled() )
+		{
+			// the last pixels of the input are located beyond the last pixel of the downsampled image
+			final RealRandomAccessible< FloatType > interpolated = Views.interpolate(
+					Views.extendBorder( this.contentBasedImg ),
+					new NLinearInterpolatorFactory< FloatType >() );
+
+			// a pixel i of the downsampled image is centered at pixel i*scale of the input
+			return RealViews.affineReal( interpolated, new Scale( scale ) );
+		}
+		else
+		{
+			return Views.interpolate(
+					Views.extendZero( this.contentBasedImg ),
+					new NLinearInterpolatorFactory< FloatType >() );
+		}
+	}
+
 	protected Img< FloatType > approximateEntropy(
 			final RandomAccessibleInterval< FloatType > input,
 			final ImgFactory< ComplexFloatType > imgFactory,
@@ -124,19 +225,13 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess()
 	{ 
-		return Views.interpolate(
-			Views.extendZero( this.contentBasedImg ),
-			new NLinearInterpolatorFactory< FloatType >()
-			).realRandomAccess();
+		return getInterpolated().realRandomAccess();
 	}
 
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess( final RealInterval interval )
 	{
-		return Views.interpolate(
-				Views.extendZero( this.contentBasedImg ),
-				new NLinearInterpolatorFactory< FloatType >()
-				).realRandomAccess( interval );
+		return getInterpolated().realRandomAccess( interval );
 	}
 
 	final private static Img< FloatType > createGaussianKernel( final double[] sigmas )
@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weights;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Stores the (downsampled) content-based weights of a {@link ViewId} on disk,
+ * so repeated fusions of the same timepoint do not have to recompute them.
+ * 
+ * The file name encodes the ViewId and a hash of all parameters, the header
+ * of the file repeats them and is validated when loading.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ContentBasedCache
+{
+	final private static int VERSION = 1;
+
+	final File directory;
+
+	/**
+	 * @param directory - where to store the weights, will be created if necessary
+	 */
+	public ContentBasedCache( final File directory )
+	{
+		this.directory = directory;
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * @return the cached weights or null if they are not cached (or the cache file cannot be read)
+	 */
+	public < T extends RealType< T > > ContentBased< T > load(
+			final ViewId viewId,
+			final Dimensions inputSize,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int downsampling )
+	{
+		final File file = getFile( viewId, inputSize, sigma1, sigma2, downsampling );
+
+		if ( !file.exists() )
+			return null;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1024*1024 ) );
+
+			if ( in.readInt() != VERSION )
+				return null;
+
+			final int n = in.readInt();
+
+			if ( n != inputSize.numDimensions() )
+				return null;
+
+			final long[] header = new long[ n ];
+			final long[] dim = new long[ n ];
+			final double[] scale = new double[ n ];
+			final double[] s1 = new double[ n ];
+			final double[] s2 = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				header[ d ] = in.readLong();
+				dim[ d ] = in.readLong();
+				scale[ d ] = in.readDouble();
+				s1[ d ] = in.readDouble();
+				s2[ d ] = in.readDouble();
+			}
+
+			final int ds = in.readInt();
+
+			final long[] size = new long[ n ];
+			inputSize.dimensions( size );
+
+			// the hash in the file name might collide
+			if ( ds != downsampling || !Arrays.equals( header, size ) || !Arrays.equals( s1, sigma1 ) || !Arrays.equals( s2, sigma2 ) )
+				return null;
+
+			final Img< FloatType > img = ArrayImgs.floats( dim );
+
+			for ( final FloatType t : img )
+				t.set( in.readFloat() );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Loaded cached content-based weights from '" + file.getAbsolutePath() + "'" );
+
+			return new ContentBased< T >( img, scale );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to load cached content-based weights from '" + file.getAbsolutePath() + "': " + e );
+			return null;
+		}
+		finally
+		{
+			if ( in != null )
+				try { in.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * @return true if the weights were stored
+	 */
+	public boolean save(
+			final ContentBased< ? > cb,
+			final ViewId viewId,
+			final Dimensions inputSize,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int downsampling )
+	{
+		if ( !directory.exists() && !directory.mkdirs() )
+		{
+			IOFunctions.println( "Failed to create directory for cached content-based weights: '" + directory.getAbsolutePath() + "'" );
+			return false;
+		}
+
+		final File file = getFile( viewId, inputSize, sigma1, sigma2, downsampling );
+		final File tmp = new File( file.getAbsolutePath() + ".tmp" );
+		final Img< FloatType > img = cb.getContentBasedImg();
+		final double[] scale = cb.getScale();
+		final int n = img.numDimensions();
+
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1024*1024 ) );
+
+			out.writeInt( VERSION );
+			out.writeInt( n );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				out.writeLong( inputSize.dimension( d ) );
+				out.writeLong( img.dimension( d ) );
+				out.writeDouble( scale[ d ] );
+				out.writeDouble( sigma1[ d ] );
+				out.writeDouble( sigma2[ d ] );
+			}
+
+			out.writeInt( downsampling );
+
+			// flat iteration order, the same as an ArrayImg uses when loading
+			for ( final FloatType t : Views.flatIterable( img ) )
+				out.writeFloat( t.get() );
+
+			out.close();
+			out = null;
+
+			if ( ( file.exists() && !file.delete() ) || !tmp.renameTo( file ) )
+			{
+				IOFunctions.println( "Failed to move cached content-based weights to '" + file.getAbsolutePath() + "'" );
+				return false;
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to save cached content-based weights to '" + file.getAbsolutePath() + "': " + e );
+			return false;
+		}
+		finally
+		{
+			if ( out != null )
+				try { out.close(); } catch ( final IOException e ) {}
+		}
+
+		return true;
+	}
+
+	protected File getFile(
+			final ViewId viewId,
+			final Dimensions inputSize,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int downsampling )
+	{
+		final long[] size = new long[ inputSize.numDimensions() ];
+		inputSize.dimensions( size );
+
+		int hash = Arrays.hashCode( size );
+		hash = 31 * hash + Arrays.hashCode( sigma1 );
+		hash = 31 * hash + Arrays.hashCode( sigma2 );
+		hash = 31 * hash + downsampling;
+
+		return new File( directory,
+				"contentbased_tp" + viewId.getTimePointId() + "_vs" + viewId.getViewSetupId() +
+				"_" + Integer.toHexString( hash ) + ".weights" );
+	}
+}
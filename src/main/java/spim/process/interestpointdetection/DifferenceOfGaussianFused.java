@@ -0,0 +1,515 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.segmentation.SimplePeak;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.Threads;
+
+/**
+ * Computes the Difference-of-Gaussian of a 3d image in a single pass without the two full-size Gaussian images.
+ *
+ * The image is processed plane by plane along z. Every input plane is convolved in x and y once for sigma1, the
+ * xy-convolution for sigma2 is computed from that result with the (smaller) difference kernel sqrt( sigma2^2 - sigma1^2 ).
+ * Both are kept in ring buffers that hold just enough planes for the z-convolution, which computes both Gaussians and their
+ * difference on the fly. Only the DoG planes are written, or (see {@link #computePeaks(float)}) only the peaks.
+ *
+ * The image is split into slabs along z that are processed in parallel, each with its own ring buffers. The number
+ * of slabs is limited by the available memory and such that the slabs are not thinner than the z-kernels.
+ * Out of bounds values are mirrored (single) like in the other DoG implementations.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DifferenceOfGaussianFused
+{
+	/**
+	 * The fraction of the free memory that may be used by the ring buffers of all slabs, limits the number of parallel slabs
+	 */
+	public static double memoryFraction = 0.5;
+
+	final RandomAccessibleInterval< FloatType > input;
+	final int w, h, d;
+	final float normalization;
+	final int numThreads;
+
+	// half kernels (center first)
+	final float[] kx1, ky1, kz1, kz2;
+
+	// either the difference kernels applied to the sigma1 result, or the full sigma2 kernels applied to the input
+	final float[] kx2, ky2;
+	final boolean cascade;
+
+	/**
+	 * @param input - the 3d image
+	 * @param sigma1 - the smaller sigma per dimension
+	 * @param sigma2 - the larger sigma per dimension
+	 * @param normalization - the DoG is ( gauss2 - gauss1 ) * normalization
+	 * @param numThreads - how many slabs are processed in parallel
+	 */
+	public DifferenceOfGaussianFused(
+			final RandomAccessibleInterval< FloatType > input,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float normalization,
+			final int numThreads )
+	{
+		if ( input.numDimensions() != 3 )
+			throw new RuntimeException( "Only 3d images are supported, dimensionality=" + input.numDimensions() );
+
+		if ( input.dimension( 0 ) * input.dimension( 1 ) > Integer.MAX_VALUE )
+			throw new RuntimeException( "Planes larger than 2^31 pixels are not supported." );
+
+		this.input = Views.zeroMin( input );
+		this.w = (int)input.dimension( 0 );
+		this.h = (int)input.dimension( 1 );
+		this.d = (int)input.dimension( 2 );
+		this.normalization = normalization;
+		this.numThreads = Math.max( 1, numThreads );
+
+		this.kx1 = halfKernel( sigma1[ 0 ] );
+		this.ky1 = halfKernel( sigma1[ 1 ] );
+		this.kz1 = halfKernel( sigma1[ 2 ] );
+		this.kz2 = halfKernel( sigma2[ 2 ] );
+
+		// a gaussian of sigma2 is a gaussian of sigma1 followed by one of sqrt( sigma2^2 - sigma1^2 )
+		this.cascade = sigma2[ 0 ] > sigma1[ 0 ] && sigma2[ 1 ] > sigma1[ 1 ];
+
+		if ( cascade )
+		{
+			this.kx2 = halfKernel( Math.sqrt( sigma2[ 0 ] * sigma2[ 0 ] - sigma1[ 0 ] * sigma1[ 0 ] ) );
+			this.ky2 = halfKernel( Math.sqrt( sigma2[ 1 ] * sigma2[ 1 ] - sigma1[ 1 ] * sigma1[ 1 ] ) );
+		}
+		else
+		{
+			this.kx2 = halfKernel( sigma2[ 0 ] );
+			this.ky2 = halfKernel( sigma2[ 1 ] );
+		}
+	}
+
+	/**
+	 * @return - the DoG image
+	 */
+	public PlanarImg< FloatType, FloatArray > computeDoG()
+	{
+		final PlanarImg< FloatType, FloatArray > dog = PlanarImgs.floats( w, h, d );
+
+		processSlabs( new SlabConsumerFactory()
+		{
+			@Override
+			public SlabConsumer create( final int zMin, final int zMax )
+			{
+				return new SlabConsumer( zMin, zMax, zMin, zMax )
+				{
+					@Override
+					public void accept( final int z, final float[] plane )
+					{
+						System.arraycopy( plane, 0, dog.getPlane( z ).getCurrentStorageArray(), 0, plane.length );
+					}
+				};
+			}
+		} );
+
+		return dog;
+	}
+
+	/**
+	 * Finds all local minima and maxima (26-neighborhood) of the DoG without storing the DoG image, only three
+	 * DoG planes per slab are kept. Pixels at the border of the image are not considered.
+	 *
+	 * @param minPeakValue - the minimal absolute DoG value
+	 * @return - the peaks, sorted by z
+	 */
+	public ArrayList< SimplePeak > computePeaks( final float minPeakValue )
+	{
+		final ArrayList< SlabConsumer > slabs = processSlabs( new SlabConsumerFactory()
+		{
+			@Override
+			public SlabConsumer create( final int zMin, final int zMax )
+			{
+				// one more DoG plane on each side for the neighborhood
+				return new SlabConsumer( zMin, zMax, Math.max( 0, zMin - 1 ), Math.min( d - 1, zMax + 1 ) )
+				{
+					final float[][] planes = new float[ 3 ][];
+
+					@Override
+					public void accept( final int z, final float[] plane )
+					{
+						// the plane array is reused by the caller, recycle the oldest buffer
+						float[] newest = planes[ 0 ];
+
+						if ( newest == null )
+							newest = new float[ plane.length ];
+
+						System.arraycopy( plane, 0, newest, 0, plane.length );
+
+						planes[ 0 ] = planes[ 1 ];
+						planes[ 1 ] = planes[ 2 ];
+						planes[ 2 ] = newest;
+
+						// the center plane is z - 1
+						if ( planes[ 0 ] != null && z - 1 >= zMin && z - 1 <= zMax )
+							findPeaks( planes[ 0 ], planes[ 1 ], planes[ 2 ], z - 1, minPeakValue, peaks );
+					}
+				};
+			}
+		} );
+
+		final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
+
+		for ( final SlabConsumer slab : slabs )
+			peaks.addAll( slab.peaks );
+
+		return peaks;
+	}
+
+	/**
+	 * Finds the peaks of the center plane with the same rules as
+	 * {@link mpicbg.spim.segmentation.InteractiveIntegral#findPeaks(mpicbg.imglib.image.Image, float)}: neighbors may be equal, a minimum of
+	 * the DoG is a maximum in image space (and vice versa) and the intensity is the absolute DoG value.
+	 */
+	protected void findPeaks( final float[] above, final float[] center, final float[] below, final int z, final float minPeakValue, final ArrayList< SimplePeak > peaks )
+	{
+		if ( z == 0 || z == d - 1 )
+			return;
+
+		for ( int y = 1; y < h - 1; ++y )
+		{
+			int i = y * w + 1;
+
+			for ( int x = 1; x < w - 1; ++x, ++i )
+			{
+				final float v = center[ i ];
+
+				// it can never be a desired peak as it is too low
+				if ( Math.abs( v ) < minPeakValue )
+					continue;
+
+				boolean isMin = true;
+				boolean isMax = true;
+
+				for ( int dy = -w; dy <= w; dy += w )
+					for ( int dx = -1; dx <= 1; ++dx )
+					{
+						final int j = i + dy + dx;
+
+						isMin &= above[ j ] >= v && below[ j ] >= v;
+						isMax &= above[ j ] <= v && below[ j ] <= v;
+
+						if ( j != i )
+						{
+							isMin &= center[ j ] >= v;
+							isMax &= center[ j ] <= v;
+						}
+					}
+
+				// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa
+				if ( isMin )
+					peaks.add( new SimplePeak( new int[]{ x, y, z }, Math.abs( v ), false, true ) );
+				else if ( isMax )
+					peaks.add( new SimplePeak( new int[]{ x, y, z }, Math.abs( v ), true, false ) );
+			}
+		}
+	}
+
+	/**
+	 * Receives the DoG planes dogMin...dogMax of the slab zMin...zMax in increasing z order
+	 */
+	protected static abstract class SlabConsumer
+	{
+		final int zMin, zMax, dogMin, dogMax;
+		final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
+
+		public SlabConsumer( final int zMin, final int zMax, final int dogMin, final int dogMax )
+		{
+			this.zMin = zMin;
+			this.zMax = zMax;
+			this.dogMin = dogMin;
+			this.dogMax = dogMax;
+		}
+
+		/**
+		 * @param z - the plane
+		 * @param plane - the DoG values, the array is reused for the next plane
+		 */
+		public abstract void accept( final int z, final float[] plane );
+	}
+
+	protected interface SlabConsumerFactory
+	{
+		public SlabConsumer create( final int zMin, final int zMax );
+	}
+
+	protected ArrayList< SlabConsumer > processSlabs( final SlabConsumerFactory factory )
+	{
+		final int numSlabs = numSlabs();
+		final ExecutorService taskExecutor = Threads.createExecutor( numThreads );
+		final ArrayList< Callable< SlabConsumer > > tasks = new ArrayList< Callable< SlabConsumer > >();
+
+		for ( int s = 0; s < numSlabs; ++s )
+		{
+			final int zMin = (int)( (long)d * s / numSlabs );
+			final int zMax = (int)( (long)d * ( s + 1 ) / numSlabs ) - 1;
+
+			tasks.add( new Callable< SlabConsumer >()
+			{
+				@Override
+				public SlabConsumer call() throws Exception
+				{
+					final SlabConsumer consumer = factory.create( zMin, zMax );
+					computeSlab( consumer );
+					return consumer;
+				}
+			});
+		}
+
+		final ArrayList< SlabConsumer > slabs = new ArrayList< SlabConsumer >();
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			final List< Future< SlabConsumer > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( final Future< SlabConsumer > future : futures )
+				slabs.add( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute fused difference-of-gaussian: " + e );
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return slabs;
+	}
+
+	/**
+	 * @return - how many slabs are processed in parallel
+	 */
+	protected int numSlabs()
+	{
+		final int r = Math.max( kz1.length, kz2.length ) - 1;
+		final double bytesPerSlab = 4.0 * w * h * ( 2 * ( 2 * r + 1 ) + 6 );
+
+		final Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+
+		final long byMemory = (long)( free * memoryFraction / bytesPerSlab );
+		final int bySize = Math.max( 1, d / Math.max( 1, 2 * r ) );
+
+		return (int)Math.max( 1, Math.min( Math.min( numThreads, bySize ), byMemory ) );
+	}
+
+	/**
+	 * Computes the DoG planes consumer.dogMin...consumer.dogMax. The xy-convolved planes needed for the z-convolution are
+	 * kept in two ring buffers that are indexed by the (unmirrored) z position.
+	 */
+	protected void computeSlab( final SlabConsumer consumer )
+	{
+		final int n = w * h;
+		final int r1 = kz1.length - 1;
+		final int r2 = kz2.length - 1;
+		final int r = Math.max( r1, r2 );
+		final int size = 2 * r + 1;
+
+		final float[][] ring1 = new float[ size ][ n ];
+		final float[][] ring2 = new float[ size ][ n ];
+
+		final float[] in = new float[ n ];
+		final float[] tmp = new float[ n ];
+		final float[] dog = new float[ n ];
+
+		// the next (unmirrored) plane to convolve in xy
+		int next = consumer.dogMin - r;
+
+		for ( int z = consumer.dogMin; z <= consumer.dogMax; ++z )
+		{
+			for ( ; next <= z + r; ++next )
+			{
+				final int slot = ( ( next % size ) + size ) % size;
+
+				readPlane( mirror( next, d ), in );
+
+				convolveX( in, tmp, w, h, kx1 );
+				convolveY( tmp, ring1[ slot ], w, h, ky1 );
+
+				convolveX( cascade ? ring1[ slot ] : in, tmp, w, h, kx2 );
+				convolveY( tmp, ring2[ slot ], w, h, ky2 );
+			}
+
+			// z-convolution of both gaussians and their difference
+			final float[] c1 = ring1[ z % size ];
+			final float[] c2 = ring2[ z % size ];
+
+			for ( int i = 0; i < n; ++i )
+				dog[ i ] = kz2[ 0 ] * c2[ i ] - kz1[ 0 ] * c1[ i ];
+
+			for ( int k = 1; k <= r2; ++k )
+			{
+				final float[] a = ring2[ ( ( z - k ) % size + size ) % size ];
+				final float[] b = ring2[ ( z + k ) % size ];
+				final float kk = kz2[ k ];
+
+				for ( int i = 0; i < n; ++i )
+					dog[ i ] += kk * ( a[ i ] + b[ i ] );
+			}
+
+			for ( int k = 1; k <= r1; ++k )
+			{
+				final float[] a = ring1[ ( ( z - k ) % size + size ) % size ];
+				final float[] b = ring1[ ( z + k ) % size ];
+				final float kk = kz1[ k ];
+
+				for ( int i = 0; i < n; ++i )
+					dog[ i ] -= kk * ( a[ i ] + b[ i ] );
+			}
+
+			for ( int i = 0; i < n; ++i )
+				dog[ i ] *= normalization;
+
+			consumer.accept( z, dog );
+		}
+	}
+
+	protected void readPlane( final int z, final float[] plane )
+	{
+		final Cursor< FloatType > c = Views.flatIterable( Views.hyperSlice( input, 2, z ) ).cursor();
+
+		for ( int i = 0; i < plane.length; ++i )
+			plane[ i ] = c.next().get();
+	}
+
+	protected static void convolveX( final float[] in, final float[] out, final int w, final int h, final float[] k )
+	{
+		final int r = k.length - 1;
+
+		for ( int y = 0; y < h; ++y )
+		{
+			final int o = y * w;
+
+			for ( int x = 0; x < w; ++x )
+			{
+				float sum = k[ 0 ] * in[ o + x ];
+
+				if ( x - r >= 0 && x + r < w )
+				{
+					for ( int j = 1; j <= r; ++j )
+						sum += k[ j ] * ( in[ o + x - j ] + in[ o + x + j ] );
+				}
+				else
+				{
+					for ( int j = 1; j <= r; ++j )
+						sum += k[ j ] * ( in[ o + mirror( x - j, w ) ] + in[ o + mirror( x + j, w ) ] );
+				}
+
+				out[ o + x ] = sum;
+			}
+		}
+	}
+
+	protected static void convolveY( final float[] in, final float[] out, final int w, final int h, final float[] k )
+	{
+		final int r = k.length - 1;
+
+		for ( int y = 0; y < h; ++y )
+		{
+			final int o = y * w;
+			final float k0 = k[ 0 ];
+
+			for ( int x = 0; x < w; ++x )
+				out[ o + x ] = k0 * in[ o + x ];
+
+			// whole lines are added, which is cache-friendly
+			for ( int j = 1; j <= r; ++j )
+			{
+				final int a = mirror( y - j, h ) * w;
+				final int b = mirror( y + j, h ) * w;
+				final float kj = k[ j ];
+
+				for ( int x = 0; x < w; ++x )
+					out[ o + x ] += kj * ( in[ a + x ] + in[ b + x ] );
+			}
+		}
+	}
+
+	/**
+	 * @return - the position mirrored (single) into 0...n-1
+	 */
+	protected static int mirror( final int i, final int n )
+	{
+		if ( n == 1 )
+			return 0;
+
+		final int period = 2 * n - 2;
+		int j = i % period;
+
+		if ( j < 0 )
+			j += period;
+
+		return j < n ? j : period - j;
+	}
+
+	/**
+	 * @param sigma - the sigma
+	 * @return - the normalized, symmetric gaussian kernel from the center to one side, the size matches the imglib1 gaussian convolution
+	 */
+	public static float[] halfKernel( final double sigma )
+	{
+		if ( sigma <= 0 )
+			return new float[]{ 1 };
+
+		final int r = Math.max( 1, (int)( 3 * sigma + 0.5 ) );
+		final double[] k = new double[ r + 1 ];
+		final double two_sq_sigma = 2 * sigma * sigma;
+
+		double sum = k[ 0 ] = 1;
+
+		for ( int j = 1; j <= r; ++j )
+		{
+			k[ j ] = Math.exp( -( j * j ) / two_sq_sigma );
+			sum += 2 * k[ j ];
+		}
+
+		final float[] kernel = new float[ r + 1 ];
+
+		for ( int j = 0; j <= r; ++j )
+			kernel[ j ] = (float)( k[ j ] / sum );
+
+		return kernel;
+	}
+}
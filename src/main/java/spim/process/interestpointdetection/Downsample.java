@@ -27,7 +27,6 @@ import java.util.ArrayList;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
@@ -108,7 +107,7 @@ public class Downsample
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( numLines, Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.createExecutor();
 		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
 		for ( final ImagePortion portion : portions )
@@ -182,6 +181,123 @@ public class Downsample
 		return;
 	}
 
+	/**
+	 * Computes the part [min, max] of the image that results from applying {@link #simple2x(RandomAccessibleInterval, RandomAccessibleInterval, int)}
+	 * steps[ d ] times in every dimension d, but only reads the part of the source that is necessary for it. The values are identical
+	 * to downsampling the whole image, so the image can be downsampled block by block.
+	 *
+	 * @param source - the (zero-min) image
+	 * @param steps - how often to downsample 2x in each dimension
+	 * @param min - the min of the requested part in the downsampled image (must be inside)
+	 * @param max - the max of the requested part in the downsampled image (must be inside)
+	 * @return - the requested part as float array, x is the fastest dimension
+	 */
+	public static < T extends RealType< T > > float[] simple2xInterval( final RandomAccessibleInterval< T > source, final int[] steps, final long[] min, final long[] max )
+	{
+		final int n = source.numDimensions();
+
+		// the size of the image and the required interval at every downsampling step
+		final long[][] levelSize = new long[ n ][];
+		final long[][] levelMin = new long[ n ][];
+		final long[][] levelMax = new long[ n ][];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			levelSize[ d ] = new long[ steps[ d ] + 1 ];
+			levelMin[ d ] = new long[ steps[ d ] + 1 ];
+			levelMax[ d ] = new long[ steps[ d ] + 1 ];
+
+			levelSize[ d ][ 0 ] = source.dimension( d );
+
+			for ( int i = 1; i <= steps[ d ]; ++i )
+				levelSize[ d ][ i ] = levelSize[ d ][ i - 1 ] / 2;
+
+			levelMin[ d ][ steps[ d ] ] = min[ d ];
+			levelMax[ d ][ steps[ d ] ] = max[ d ];
+
+			// output pixel p is computed from input pixels 2p-1, 2p, 2p+1 (the last valid input pixel is 2*size-2)
+			for ( int i = steps[ d ]; i > 0; --i )
+			{
+				levelMin[ d ][ i - 1 ] = Math.max( 0, 2 * levelMin[ d ][ i ] - 1 );
+				levelMax[ d ][ i - 1 ] = Math.min( 2 * levelSize[ d ][ i ] - 2, 2 * levelMax[ d ][ i ] + 1 );
+			}
+		}
+
+		// read the necessary part of the source
+		final long[] size = new long[ n ];
+		final long[] readMin = new long[ n ];
+		final long[] readMax = new long[ n ];
+		long numPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			readMin[ d ] = levelMin[ d ][ 0 ];
+			readMax[ d ] = levelMax[ d ][ 0 ];
+			size[ d ] = readMax[ d ] - readMin[ d ] + 1;
+			numPixels *= size[ d ];
+		}
+
+		float[] data = new float[ (int)numPixels ];
+		final Cursor< T > c = Views.flatIterable( Views.interval( Views.zeroMin( source ), readMin, readMax ) ).cursor();
+
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = c.next().getRealFloat();
+
+		// downsample one dimension and step at a time
+		for ( int d = 0; d < n; ++d )
+			for ( int i = 1; i <= steps[ d ]; ++i )
+			{
+				final long inMin = levelMin[ d ][ i - 1 ];
+				final long lastValid = 2 * levelSize[ d ][ i ] - 2;
+				final long outMin = levelMin[ d ][ i ];
+				final int outLength = (int)( levelMax[ d ][ i ] - outMin + 1 );
+
+				int inner = 1;
+				for ( int e = 0; e < d; ++e )
+					inner *= size[ e ];
+
+				int outer = 1;
+				for ( int e = d + 1; e < n; ++e )
+					outer *= size[ e ];
+
+				final int inLength = (int)size[ d ];
+				final float[] out = new float[ inner * outLength * outer ];
+
+				for ( int o = 0; o < outer; ++o )
+					for ( int p = 0; p < outLength; ++p )
+					{
+						final long center = 2 * ( outMin + p );
+						final int outOffset = ( o * outLength + p ) * inner;
+
+						double weightSum = 0;
+
+						for ( long j = center - 1; j <= center + 1; ++j )
+						{
+							if ( j < 0 || j > lastValid )
+								continue;
+
+							final float w = j == center ? 1.0f : 0.5f;
+							final int inOffset = ( o * inLength + (int)( j - inMin ) ) * inner;
+
+							for ( int k = 0; k < inner; ++k )
+								out[ outOffset + k ] += w * data[ inOffset + k ];
+
+							weightSum += w;
+						}
+
+						final float norm = (float)( 1.0 / weightSum );
+
+						for ( int k = 0; k < inner; ++k )
+							out[ outOffset + k ] *= norm;
+					}
+
+				data = out;
+				size[ d ] = outLength;
+			}
+
+		return data;
+	}
+
 	public static void main( String[] args )
 	{
 		final Img< FloatType > img;
@@ -69,6 +69,15 @@ public class Localization
 	{
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using quadratic n-dimensional fit");
 
+		return computeQuadraticLocalization( peaks, domImg, findMin, findMax, threshold, keepIntensity, Threads.numThreads() );
+	}
+
+	/**
+	 * Same as {@link #computeQuadraticLocalization(ArrayList, Image, boolean, boolean, float, boolean)}, but does not log
+	 * and uses the given number of threads (e.g. 1 when called for many blocks of the same image in parallel)
+	 */
+	public static ArrayList< InterestPoint > computeQuadraticLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final boolean findMin, final boolean findMax, final float threshold, final boolean keepIntensity, final int numThreads )
+	{
 		final ArrayList< DifferenceOfGaussianPeak<FloatType> > peakList = new ArrayList<DifferenceOfGaussianPeak<FloatType>>();
 
 		for ( final SimplePeak peak : peaks )
@@ -79,7 +88,7 @@ public class Localization
 		final SubpixelLocalization<FloatType> spl = new SubpixelLocalization<FloatType>( domImg, peakList );
 		spl.setAllowMaximaTolerance( true );
 		spl.setMaxNumMoves( 10 );
-		spl.setNumThreads( Threads.numThreads() );
+		spl.setNumThreads( numThreads );
 
 		if ( !spl.checkInput() || !spl.process() )
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + spl.getErrorMessage() );
@@ -115,4 +124,115 @@ public class Localization
 		// TODO: implement gauss fit
 		throw new RuntimeException( "Gauss fit not implemented yet" );
 	}	
+
+	/**
+	 * Quadratic n-dimensional fit (as {@link SubpixelLocalization}) directly on a 3d float array. If the offset of the fit
+	 * is larger than 0.5 in any dimension, the fit is repeated at the neighboring pixel (at most maxNumMoves times, only
+	 * within the array).
+	 *
+	 * @param img - the image, x is the fastest dimension
+	 * @param sx - width
+	 * @param sy - height
+	 * @param sz - depth
+	 * @param location - the integer position of the peak
+	 * @param maxNumMoves - how often the fit may move to a neighboring pixel
+	 * @return - { x, y, z, value } of the fitted subpixel peak
+	 */
+	public static double[] quadraticFit( final float[] img, final int sx, final int sy, final int sz, final int[] location, final int maxNumMoves )
+	{
+		final int sxy = sx * sy;
+		final int[] pos = location.clone();
+		final int[] step = new int[]{ 1, sx, sxy };
+		final int[] size = new int[]{ sx, sy, sz };
+
+		final double[] g = new double[ 3 ];
+		final double[][] H = new double[ 3 ][ 3 ];
+		final double[] offset = new double[ 3 ];
+
+		for ( int move = 0; ; ++move )
+		{
+			final int i = pos[ 0 ] + pos[ 1 ] * sx + pos[ 2 ] * sxy;
+			final double v = img[ i ];
+
+			// gradient and hessian by finite differences
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double a = img[ i + step[ d ] ];
+				final double b = img[ i - step[ d ] ];
+
+				g[ d ] = ( a - b ) / 2.0;
+				H[ d ][ d ] = a - 2 * v + b;
+
+				for ( int e = d + 1; e < 3; ++e )
+				{
+					H[ d ][ e ] = H[ e ][ d ] = (
+							img[ i + step[ d ] + step[ e ] ] - img[ i - step[ d ] + step[ e ] ] -
+							img[ i + step[ d ] - step[ e ] ] + img[ i - step[ d ] - step[ e ] ] ) / 4.0;
+				}
+			}
+
+			if ( !solve3x3( H, g, offset ) )
+				return new double[]{ pos[ 0 ], pos[ 1 ], pos[ 2 ], v };
+
+			boolean moved = false;
+
+			if ( move < maxNumMoves )
+			{
+				for ( int d = 0; d < 3; ++d )
+				{
+					// the offset is -H^-1 * g
+					final double o = -offset[ d ];
+
+					if ( Math.abs( o ) > 0.5 )
+					{
+						final int p = pos[ d ] + ( o > 0 ? 1 : -1 );
+
+						if ( p > 0 && p < size[ d ] - 1 )
+						{
+							pos[ d ] = p;
+							moved = true;
+						}
+					}
+				}
+			}
+
+			if ( !moved )
+			{
+				double value = v;
+
+				for ( int d = 0; d < 3; ++d )
+					value -= 0.5 * g[ d ] * offset[ d ];
+
+				return new double[]{ pos[ 0 ] - offset[ 0 ], pos[ 1 ] - offset[ 1 ], pos[ 2 ] - offset[ 2 ], value };
+			}
+		}
+	}
+
+	/**
+	 * Solves A x = b for a symmetric 3x3 matrix
+	 *
+	 * @return - false if A is singular
+	 */
+	protected static boolean solve3x3( final double[][] A, final double[] b, final double[] x )
+	{
+		final double c00 = A[ 1 ][ 1 ] * A[ 2 ][ 2 ] - A[ 1 ][ 2 ] * A[ 2 ][ 1 ];
+		final double c01 = A[ 1 ][ 2 ] * A[ 2 ][ 0 ] - A[ 1 ][ 0 ] * A[ 2 ][ 2 ];
+		final double c02 = A[ 1 ][ 0 ] * A[ 2 ][ 1 ] - A[ 1 ][ 1 ] * A[ 2 ][ 0 ];
+
+		final double det = A[ 0 ][ 0 ] * c00 + A[ 0 ][ 1 ] * c01 + A[ 0 ][ 2 ] * c02;
+
+		if ( det == 0 || Double.isNaN( det ) )
+			return false;
+
+		final double c11 = A[ 0 ][ 0 ] * A[ 2 ][ 2 ] - A[ 0 ][ 2 ] * A[ 2 ][ 0 ];
+		final double c12 = A[ 0 ][ 1 ] * A[ 2 ][ 0 ] - A[ 0 ][ 0 ] * A[ 2 ][ 1 ];
+		final double c22 = A[ 0 ][ 0 ] * A[ 1 ][ 1 ] - A[ 0 ][ 1 ] * A[ 1 ][ 0 ];
+
+		// the inverse of a symmetric matrix is symmetric
+		x[ 0 ] = ( c00 * b[ 0 ] + c01 * b[ 1 ] + c02 * b[ 2 ] ) / det;
+		x[ 1 ] = ( c01 * b[ 0 ] + c11 * b[ 1 ] + c12 * b[ 2 ] ) / det;
+		x[ 2 ] = ( c02 * b[ 0 ] + c12 * b[ 1 ] + c22 * b[ 2 ] ) / det;
+
+		return true;
+	}
 }
@@ -28,8 +28,10 @@ import java.util.List;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.wrapper.ImgLib2;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.registration.bead.laplace.LaPlaceFunctions;
+import mpicbg.spim.segmentation.InteractiveIntegral;
 import mpicbg.spim.segmentation.SimplePeak;
 import net.imglib2.img.Img;
 import net.imglib2.util.Util;
@@ -41,6 +43,11 @@ import spim.process.fusion.FusionHelper;
 
 public class ProcessDOG
 {
+	/**
+	 * Compute the DoG on the CPU in a single pass without full-size gaussian images, see {@link DifferenceOfGaussianFused}
+	 */
+	public static boolean fusedDoG = true;
+
 	/**
 	 * @param deviceList - a list of CUDA capable devices (or null if classic CPU computation in Java)
 	 * @param accurateCUDA - use accurate CUDA implementation (including out of bounds or not)
@@ -125,53 +132,61 @@ public class ProcessDOG
 		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
 		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
 
-		// compute difference of gaussian
-		DifferenceOfGaussianNewPeakFinder dog;
-		
-		if ( deviceList == null )
-			dog = new DifferenceOfGaussianNewPeakFinder( img, new OutOfBoundsStrategyMirrorFactory<FloatType>(), sigma1, sigma2, minInitialPeakValue, K_MIN1_INV );
-		else
-			dog = new DifferenceOfGaussianCUDA( cuda, percentGPUMem, deviceList, img, imglib2img, accurateCUDA, sigma1, sigma2, minInitialPeakValue, K_MIN1_INV );
-
-		dog.setComputeConvolutionsParalell( false );
-		dog.setNumThreads( Threads.numThreads() );
-
-		// do quadratic fit??
-		if ( localization == 1 )
-			dog.setKeepDoGImage( true );
-		else
-			dog.setKeepDoGImage( false );
-
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing difference-of-gausian (sigma=" + initialSigma + ", " +
 				"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ")" );
 
-		if ( deviceList == null )
-			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing DoG image (CPU)." );
-		else
-			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing DoG image (GPU)." );
-		
-		dog.process();
+		final ArrayList< SimplePeak > peaks;
+		final Image< FloatType > dogImage;
+		DifferenceOfGaussianNewPeakFinder dog = null;
 
-		final ArrayList< SimplePeak > peaks = dog.getSimplePeaks();
+		if ( deviceList == null && fusedDoG )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing DoG image (CPU, single pass)." );
 
-		/*
-		final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
-		final ArrayList< DifferenceOfGaussianPeak<FloatType> > peakListOld = dog.getPeaks();
-		final int n = img.getNumDimensions();
+			final DifferenceOfGaussianFused fused = new DifferenceOfGaussianFused( imglib2img, sigma1, sigma2, K_MIN1_INV, Threads.numThreads() );
 
-		for ( final DifferenceOfGaussianPeak<FloatType> peak : peakListOld )
-		{
-			if ( peak.isValid() )
+			if ( localization == 0 )
 			{
-				final int[] location = new int[ n ];
-
-				for ( int d = 0; d < n; ++d )
-					location[ d ] = peak.getPosition( d );
+				// without subpixel localization only the peaks are needed, the DoG image is never stored
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Detecting peaks." );
+				peaks = fused.computePeaks( minInitialPeakValue );
+				dogImage = null;
+			}
+			else
+			{
+				dogImage = ImgLib2.wrapFloatToImgLib1( fused.computeDoG() );
 
-				peaks.add( new SimplePeak( location, peak.getValue().get(), peak.isMin(), peak.isMax() ) );
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Detecting peaks." );
+				peaks = InteractiveIntegral.findPeaks( dogImage, minInitialPeakValue );
 			}
 		}
-		*/
+		else
+		{
+			// compute difference of gaussian
+			if ( deviceList == null )
+				dog = new DifferenceOfGaussianNewPeakFinder( img, new OutOfBoundsStrategyMirrorFactory<FloatType>(), sigma1, sigma2, minInitialPeakValue, K_MIN1_INV );
+			else
+				dog = new DifferenceOfGaussianCUDA( cuda, percentGPUMem, deviceList, img, imglib2img, accurateCUDA, sigma1, sigma2, minInitialPeakValue, K_MIN1_INV );
+
+			dog.setComputeConvolutionsParalell( false );
+			dog.setNumThreads( Threads.numThreads() );
+
+			// do quadratic fit??
+			if ( localization == 1 )
+				dog.setKeepDoGImage( true );
+			else
+				dog.setKeepDoGImage( false );
+
+			if ( deviceList == null )
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing DoG image (CPU)." );
+			else
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing DoG image (GPU)." );
+
+			dog.process();
+
+			peaks = dog.getSimplePeaks();
+			dogImage = dog.getDoGImage();
+		}
 
 		final ArrayList< InterestPoint > finalPeaks;
 
@@ -181,8 +196,8 @@ public class ProcessDOG
 		}
 		else if ( localization == 1 )
 		{
-			finalPeaks = Localization.computeQuadraticLocalization( peaks, dog.getDoGImage(), findMin, findMax, minPeakValue, keepIntensity );
-			dog.getDoGImage().close();
+			finalPeaks = Localization.computeQuadraticLocalization( peaks, dogImage, findMin, findMax, minPeakValue, keepIntensity );
+			dogImage.close();
 		}
 		else
 		{
@@ -0,0 +1,765 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.imglib.wrapper.ImgLib2;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.registration.bead.laplace.LaPlaceFunctions;
+import mpicbg.spim.segmentation.SimplePeak;
+import mpicbg.spim.simulation.SimulateBeadImage;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.Threads;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointValue;
+import spim.process.fusion.FusionHelper;
+
+/**
+ * Difference-of-Gaussian detection that processes the image in blocks, so neither the input nor the
+ * Gaussian and DoG images have to be held in memory as a whole. Each block is loaded with a halo that is
+ * large enough for the Gaussian kernels (3 sigma) plus a small border for the peak neighborhood and the
+ * quadratic fit. Peaks are only searched in the core of each block, so every peak is found exactly once.
+ *
+ * The input can be lazily loaded (e.g. a cached HDF5 image), it is only read and never modified. Normalization
+ * (using the min and max of the whole downsampled image) and the optional presmoothing are applied per block.
+ *
+ * Everything is computed on ImgLib2 {@link ArrayImg}s and their float arrays (separable convolution, non-maximum
+ * suppression and quadratic fit using index arithmetic), no ImgLib1 wrapping is involved.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ProcessDOGBlockwise
+{
+	/**
+	 * The size of the core of the blocks, the memory needed per thread is about 3 * (blockSize + 2 * halo) floats
+	 */
+	public static int[] blockSize = new int[]{ 256, 256, 128 };
+
+	/**
+	 * Additional pixels around each block in which the DoG is computed, for the peak neighborhood and the moves of the quadratic fit
+	 */
+	public static int localizationBorder = 3;
+
+	/**
+	 * How often the quadratic fit may move to a neighboring pixel
+	 */
+	public static int maxNumMoves = 10;
+
+	/**
+	 * @param input - the image (can be lazily loaded, will not be modified)
+	 * @param sigma
+	 * @param threshold
+	 * @param localization
+	 * @param imageSigmaX
+	 * @param imageSigmaY
+	 * @param imageSigmaZ
+	 * @param additionalSigma - presmoothing sigma per dimension (0 means no presmoothing), it is combined with the DoG sigmas
+	 * @param findMin
+	 * @param findMax
+	 * @param minIntensity
+	 * @param maxIntensity
+	 * @param keepIntensity
+	 * @return - the interest points in the coordinates of the input
+	 */
+	public static ArrayList< InterestPoint > compute(
+			final RandomAccessibleInterval< FloatType > input,
+			final float sigma,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final double[] additionalSigma,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final boolean keepIntensity )
+	{
+		return compute( input, null, sigma, threshold, localization, imageSigmaX, imageSigmaY, imageSigmaZ, additionalSigma, findMin, findMax, minIntensity, maxIntensity, keepIntensity );
+	}
+
+	/**
+	 * @param input - the image (can be lazily loaded, will not be modified)
+	 * @param downsampling - the downsampling (power of 2) per dimension that is applied to each block while it is loaded,
+	 * identical to {@link Downsample#simple2x(RandomAccessibleInterval, ImgFactory, boolean[])} of the whole input (null means none)
+	 * @param sigma
+	 * @param threshold
+	 * @param localization
+	 * @param imageSigmaX
+	 * @param imageSigmaY
+	 * @param imageSigmaZ
+	 * @param additionalSigma - presmoothing sigma per dimension (0 means no presmoothing), it is combined with the DoG sigmas
+	 * @param findMin
+	 * @param findMax
+	 * @param minIntensity
+	 * @param maxIntensity
+	 * @param keepIntensity
+	 * @return - the interest points in the coordinates of the downsampled input
+	 */
+	public static ArrayList< InterestPoint > compute(
+			final RandomAccessibleInterval< FloatType > input,
+			final int[] downsampling,
+			final float sigma,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final double[] additionalSigma,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final boolean keepIntensity )
+	{
+		if ( localization == 2 )
+			return Localization.computeGaussLocalization( new ArrayList< SimplePeak >(), null, sigma, findMin, findMax, threshold, keepIntensity );
+
+		final float initialSigma = sigma;
+
+		final float minPeakValue = threshold;
+		final float minInitialPeakValue;
+
+		if ( localization == 0 )
+			minInitialPeakValue = minPeakValue;
+		else
+			minInitialPeakValue = threshold/10.0f;
+
+		final float k = LaPlaceFunctions.computeK( 4 );
+		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight(k);
+		final int steps = 3;
+
+		//
+		// Compute the Sigmas for the gaussian convolution
+		//
+		final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, (float)imageSigmaX );
+
+		final float[] sigmaStepsY = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffY = LaPlaceFunctions.computeSigmaDiff( sigmaStepsY, (float)imageSigmaY );
+
+		final float[] sigmaStepsZ = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffZ = LaPlaceFunctions.computeSigmaDiff( sigmaStepsZ, (float)imageSigmaZ );
+
+		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
+		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing difference-of-gausian blockwise (sigma=" + initialSigma + ", " +
+				"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ")" );
+
+		// presmoothing followed by a gaussian is a single gaussian with the combined sigma
+		final double[] s1 = new double[ 3 ];
+		final double[] s2 = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double a = additionalSigma == null ? 0 : additionalSigma[ d ];
+			s1[ d ] = Math.sqrt( sigma1[ d ] * sigma1[ d ] + a * a );
+			s2[ d ] = Math.sqrt( sigma2[ d ] * sigma2[ d ] + a * a );
+		}
+
+		final RandomAccessibleInterval< FloatType > img = Views.zeroMin( input );
+		final RandomAccessible< FloatType > extended = Views.extendMirrorSingle( img );
+
+		// the dimensions of the (downsampled) image that is processed
+		final long[] dim = new long[ img.numDimensions() ];
+		img.dimensions( dim );
+
+		final int[] dsSteps = downsamplingSteps( downsampling );
+		final int[] blockSize = ProcessDOGBlockwise.blockSize.clone();
+
+		if ( dsSteps != null )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				dim[ d ] >>= dsSteps[ d ];
+
+				// keep the part of the input that is read per block at about the same size
+				blockSize[ d ] = Math.max( 32, blockSize[ d ] >> dsSteps[ d ] );
+			}
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Downsampling " + Util.printCoordinates( downsampling ) +
+					" per block while loading, downsampled size " + Util.printCoordinates( dim ) + " px." );
+		}
+
+		final int[] halo = new int[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			halo[ d ] = Math.max( 2, (int)( 3 * Math.max( s1[ d ], s2[ d ] ) + 0.5 ) + 1 ) + localizationBorder;
+
+		final Vector< FinalInterval > blocks = FusionHelper.divideIntoBlocks( dim, blockSize );
+
+		final float min, max;
+
+		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
+		{
+			// of the image that is processed, i.e. after downsampling (like ProcessDOG on the downsampled image)
+			final float[] minmax = minMax( img, dsSteps, blocks );
+
+			if ( minmax == null )
+				return null;
+
+			min = minmax[ 0 ];
+			max = minmax[ 1 ];
+		}
+		else
+		{
+			min = (float)minIntensity;
+			max = (float)maxIntensity;
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + min + ", max intensity = " + max );
+
+		if ( max - min == 0 || Float.isNaN( max - min ) || Float.isInfinite( max - min ) )
+		{
+			IOFunctions.println( "Cannot normalize image, min=" + min + "  + max=" + max );
+			return new ArrayList< InterestPoint >();
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Processing " + blocks.size() + " blocks of " + Util.printCoordinates( blockSize ) +
+				" px with a halo of " + Util.printCoordinates( halo ) + " px." );
+
+		final ExecutorService taskExecutor = Threads.createExecutor();
+		final ArrayList< Callable< ArrayList< InterestPoint > > > tasks = new ArrayList< Callable< ArrayList< InterestPoint > > >();
+
+		for ( final FinalInterval block : blocks )
+		{
+			tasks.add( new Callable< ArrayList< InterestPoint > >()
+			{
+				@Override
+				public ArrayList< InterestPoint > call() throws Exception
+				{
+					return processBlock(
+							img, extended, dsSteps, block, dim, halo, s1, s2, K_MIN1_INV, min, max,
+							minInitialPeakValue, minPeakValue, localization, findMin, findMax, keepIntensity );
+				}
+			});
+		}
+
+		final ArrayList< InterestPoint > finalPeaks = new ArrayList< InterestPoint >();
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			final List< Future< ArrayList< InterestPoint > > > futures = taskExecutor.invokeAll( tasks );
+
+			// assign unique ids and shift back to the coordinates of the input
+			final double[] offset = new double[ img.numDimensions() ];
+
+			for ( int d = 0; d < offset.length; ++d )
+				offset[ d ] = dsSteps == null ? input.min( d ) : (double)input.min( d ) / ( 1 << dsSteps[ d ] );
+
+			int id = 0;
+
+			for ( final Future< ArrayList< InterestPoint > > future : futures )
+				for ( final InterestPoint p : future.get() )
+				{
+					final double[] l = p.getL().clone();
+
+					for ( int d = 0; d < l.length; ++d )
+						l[ d ] += offset[ d ];
+
+					if ( keepIntensity )
+						finalPeaks.add( new InterestPointValue( id++, l, ((InterestPointValue)p).getIntensity() ) );
+					else
+						finalPeaks.add( new InterestPoint( id++, l ) );
+				}
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute blockwise difference-of-gaussian: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
+
+		return finalPeaks;
+	}
+
+	/**
+	 * Computes the min and max intensity of the image after downsampling, block by block so the downsampled image is never
+	 * stored as a whole.
+	 *
+	 * @param img - the (zero-min) image
+	 * @param steps - how often to downsample 2x in each dimension (null means none)
+	 * @param blocks - the blocks of the downsampled image
+	 * @return - { min, max } or null if the computation failed
+	 */
+	protected static float[] minMax( final RandomAccessibleInterval< FloatType > img, final int[] steps, final Vector< FinalInterval > blocks )
+	{
+		if ( steps == null )
+			return FusionHelper.minMax( img );
+
+		final ExecutorService taskExecutor = Threads.createExecutor();
+		final ArrayList< Callable< float[] > > tasks = new ArrayList< Callable< float[] > >();
+
+		for ( final FinalInterval block : blocks )
+		{
+			tasks.add( new Callable< float[] >()
+			{
+				@Override
+				public float[] call() throws Exception
+				{
+					final long[] blockMin = new long[ block.numDimensions() ];
+					final long[] blockMax = new long[ block.numDimensions() ];
+
+					block.min( blockMin );
+					block.max( blockMax );
+
+					float min = Float.MAX_VALUE;
+					float max = -Float.MAX_VALUE;
+
+					for ( final float v : Downsample.simple2xInterval( img, steps, blockMin, blockMax ) )
+					{
+						min = Math.min( min, v );
+						max = Math.max( max, v );
+					}
+
+					return new float[]{ min, max };
+				}
+			});
+		}
+
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< float[] > future : taskExecutor.invokeAll( tasks ) )
+			{
+				final float[] minmax = future.get();
+				min = Math.min( min, minmax[ 0 ] );
+				max = Math.max( max, minmax[ 1 ] );
+			}
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute min/max of the downsampled image: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return new float[]{ min, max };
+	}
+
+	/**
+	 * Computes the DoG for one block and returns all peaks whose integer position lies inside the block.
+	 *
+	 * @return - the localized peaks in the coordinates of the (zero-min) image, ids are not unique
+	 */
+	protected static ArrayList< InterestPoint > processBlock(
+			final RandomAccessibleInterval< FloatType > img,
+			final RandomAccessible< FloatType > extended,
+			final int[] steps,
+			final Interval block,
+			final long[] dim,
+			final int[] halo,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float normalization,
+			final float min,
+			final float max,
+			final float minInitialPeakValue,
+			final float minPeakValue,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final boolean keepIntensity ) throws Exception
+	{
+		final int n = block.numDimensions();
+		final int border = localizationBorder;
+
+		// the input including the halo
+		final long[] tileMin = new long[ n ];
+		final long[] tileMax = new long[ n ];
+		final long[] tileSize = new long[ n ];
+
+		// the area in which the DoG is computed
+		final long[] dogMin = new long[ n ];
+		final long[] dogMax = new long[ n ];
+		final long[] dogSize = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			tileMin[ d ] = block.min( d ) - halo[ d ];
+			tileMax[ d ] = block.max( d ) + halo[ d ];
+			tileSize[ d ] = tileMax[ d ] - tileMin[ d ] + 1;
+
+			dogMin[ d ] = block.min( d ) - border;
+			dogMax[ d ] = block.max( d ) + border;
+			dogSize[ d ] = dogMax[ d ] - dogMin[ d ] + 1;
+		}
+
+		// copy and normalize the tile, so the (lazily loaded) input is only read once per block
+		final ArrayImg< FloatType, FloatArray > tile = ArrayImgs.floats( tileSize );
+		final float diff = max - min;
+
+		if ( steps == null )
+		{
+			final Cursor< FloatType > in = Views.flatIterable( Views.interval( extended, tileMin, tileMax ) ).cursor();
+			final Cursor< FloatType > out = tile.cursor();
+
+			while ( out.hasNext() )
+				out.next().set( ( in.next().get() - min ) / diff );
+		}
+		else
+		{
+			// mirror the tile into the downsampled image and downsample only the part that is covered
+			final long[][] mirrored = new long[ n ][];
+			final long[] partMin = new long[ n ];
+			final long[] partMax = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				mirrored[ d ] = new long[ (int)tileSize[ d ] ];
+				partMin[ d ] = Long.MAX_VALUE;
+				partMax[ d ] = Long.MIN_VALUE;
+
+				for ( int t = 0; t < tileSize[ d ]; ++t )
+				{
+					final long m = mirror( tileMin[ d ] + t, dim[ d ] );
+					mirrored[ d ][ t ] = m;
+					partMin[ d ] = Math.min( partMin[ d ], m );
+					partMax[ d ] = Math.max( partMax[ d ], m );
+				}
+			}
+
+			final float[] part = Downsample.simple2xInterval( img, steps, partMin, partMax );
+			final float[] t = tile.update( null ).getCurrentStorageArray();
+
+			final long px = partMax[ 0 ] - partMin[ 0 ] + 1;
+			final long pxy = px * ( partMax[ 1 ] - partMin[ 1 ] + 1 );
+
+			int i = 0;
+
+			for ( int z = 0; z < tileSize[ 2 ]; ++z )
+				for ( int y = 0; y < tileSize[ 1 ]; ++y )
+				{
+					final long o = ( mirrored[ 2 ][ z ] - partMin[ 2 ] ) * pxy + ( mirrored[ 1 ][ y ] - partMin[ 1 ] ) * px - partMin[ 0 ];
+
+					for ( int x = 0; x < tileSize[ 0 ]; ++x )
+						t[ i++ ] = ( part[ (int)( o + mirrored[ 0 ][ x ] ) ] - min ) / diff;
+				}
+		}
+
+		final RandomAccessible< FloatType > source = Views.extendMirrorSingle( Views.translate( tile, tileMin ) );
+
+		final ArrayImg< FloatType, FloatArray > gauss1 = ArrayImgs.floats( dogSize );
+		final ArrayImg< FloatType, FloatArray > gauss2 = ArrayImgs.floats( dogSize );
+
+		Gauss3.gauss( sigma1, source, Views.translate( gauss1, dogMin ), 1 );
+		Gauss3.gauss( sigma2, source, Views.translate( gauss2, dogMin ), 1 );
+
+		// the DoG is stored in gauss2
+		final float[] g1 = gauss1.update( null ).getCurrentStorageArray();
+		final float[] dog = gauss2.update( null ).getCurrentStorageArray();
+
+		for ( int i = 0; i < dog.length; ++i )
+			dog[ i ] = ( dog[ i ] - g1[ i ] ) * normalization;
+
+		final ArrayList< SimplePeak > peaks = findPeaks( dog, dogSize, dogMin, block, dim, border, minInitialPeakValue );
+		final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >();
+
+		if ( peaks.size() == 0 )
+			return points;
+
+		if ( localization == 0 )
+		{
+			for ( final SimplePeak peak : peaks )
+			{
+				if ( ( peak.isMax && findMax ) || ( peak.isMin && findMin ) )
+				{
+					final double[] pos = new double[ n ];
+
+					for ( int d = 0; d < n; ++d )
+						pos[ d ] = peak.location[ d ] + dogMin[ d ];
+
+					if ( keepIntensity )
+						points.add( new InterestPointValue( 0, pos, peak.intensity ) );
+					else
+						points.add( new InterestPoint( 0, pos ) );
+				}
+			}
+		}
+		else
+		{
+			// quadratic fit directly on the DoG array of the block
+			for ( final SimplePeak peak : peaks )
+			{
+				if ( ( peak.isMax && findMax ) || ( peak.isMin && findMin ) )
+				{
+					final double[] fit = Localization.quadraticFit( dog, (int)dogSize[ 0 ], (int)dogSize[ 1 ], (int)dogSize[ 2 ], peak.location, maxNumMoves );
+
+					if ( Math.abs( fit[ 3 ] ) > minPeakValue )
+					{
+						final double[] pos = new double[ n ];
+
+						for ( int d = 0; d < n; ++d )
+							pos[ d ] = fit[ d ] + dogMin[ d ];
+
+						if ( keepIntensity )
+							points.add( new InterestPointValue( 0, pos, fit[ 3 ] ) );
+						else
+							points.add( new InterestPoint( 0, pos ) );
+					}
+				}
+			}
+		}
+
+		return points;
+	}
+
+	/**
+	 * @return - the number of 2x downsampling steps per dimension, or null if there is no downsampling
+	 */
+	protected static int[] downsamplingSteps( final int[] downsampling )
+	{
+		if ( downsampling == null )
+			return null;
+
+		final int[] steps = new int[ downsampling.length ];
+		boolean downsample = false;
+
+		for ( int d = 0; d < downsampling.length; ++d )
+		{
+			if ( downsampling[ d ] < 1 || Integer.bitCount( downsampling[ d ] ) != 1 )
+				throw new RuntimeException( "Downsampling must be a power of 2: " + Util.printCoordinates( downsampling ) );
+
+			steps[ d ] = Integer.numberOfTrailingZeros( downsampling[ d ] );
+			downsample |= steps[ d ] > 0;
+		}
+
+		return downsample ? steps : null;
+	}
+
+	/**
+	 * @return - the position mirrored (single) into 0...n-1, like {@link Views#extendMirrorSingle(RandomAccessibleInterval)}
+	 */
+	protected static long mirror( final long i, final long n )
+	{
+		if ( n == 1 )
+			return 0;
+
+		final long period = 2 * n - 2;
+		long j = i % period;
+
+		if ( j < 0 )
+			j += period;
+
+		return j < n ? j : period - j;
+	}
+
+	/**
+	 * Finds all local minima and maxima (26-neighborhood) in the core of a DoG block. Pixels at the border of
+	 * the image are not considered as their neighborhood is incomplete. The rules are the same as in
+	 * {@link mpicbg.spim.segmentation.InteractiveIntegral#findPeaks(mpicbg.imglib.image.Image, float)}: neighbors may be equal, a minimum of
+	 * the DoG is a maximum in image space (and vice versa) and the intensity is the absolute DoG value.
+	 *
+	 * @param dog - the DoG values of the block (including the border)
+	 * @param size - the size of the DoG block
+	 * @param offset - the position of the DoG block in the image
+	 * @param core - the core of the block, only peaks inside are returned
+	 * @param dim - the dimensions of the image
+	 * @param border - the size of the border around the core
+	 * @param minPeakValue - the minimal absolute DoG value
+	 * @return - the peaks in coordinates of the DoG block
+	 */
+	protected static ArrayList< SimplePeak > findPeaks(
+			final float[] dog,
+			final long[] size,
+			final long[] offset,
+			final Interval core,
+			final long[] dim,
+			final int border,
+			final float minPeakValue )
+	{
+		final int sx = (int)size[ 0 ];
+		final int sxy = sx * (int)size[ 1 ];
+
+		final int x0 = border + ( core.min( 0 ) == 0 ? 1 : 0 );
+		final int y0 = border + ( core.min( 1 ) == 0 ? 1 : 0 );
+		final int z0 = border + ( core.min( 2 ) == 0 ? 1 : 0 );
+		final int x1 = border + (int)core.dimension( 0 ) - ( core.max( 0 ) == dim[ 0 ] - 1 ? 1 : 0 );
+		final int y1 = border + (int)core.dimension( 1 ) - ( core.max( 1 ) == dim[ 1 ] - 1 ? 1 : 0 );
+		final int z1 = border + (int)core.dimension( 2 ) - ( core.max( 2 ) == dim[ 2 ] - 1 ? 1 : 0 );
+
+		final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
+
+		for ( int z = z0; z < z1; ++z )
+			for ( int y = y0; y < y1; ++y )
+			{
+				int i = z * sxy + y * sx + x0;
+
+				for ( int x = x0; x < x1; ++x, ++i )
+				{
+					final float v = dog[ i ];
+
+					// it can never be a desired peak as it is too low
+					if ( Math.abs( v ) < minPeakValue )
+						continue;
+
+					boolean isMin = true;
+					boolean isMax = true;
+
+					for ( int dz = -sxy; dz <= sxy && ( isMin || isMax ); dz += sxy )
+						for ( int dy = -sx; dy <= sx; dy += sx )
+							for ( int dx = -1; dx <= 1; ++dx )
+							{
+								final int j = i + dz + dy + dx;
+
+								if ( j != i )
+								{
+									isMin &= dog[ j ] >= v;
+									isMax &= dog[ j ] <= v;
+								}
+							}
+
+					// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa
+					if ( isMin )
+						peaks.add( new SimplePeak( new int[]{ x, y, z }, Math.abs( v ), false, true ) );
+					else if ( isMax )
+						peaks.add( new SimplePeak( new int[]{ x, y, z }, Math.abs( v ), true, false ) );
+				}
+			}
+
+		return peaks;
+	}
+
+	/**
+	 * Benchmarks the ImgLib2 blockwise detection against the ImgLib1 based {@link ProcessDOG} on a synthetic bead volume,
+	 * usage: ProcessDOGBlockwise [sizeX sizeY sizeZ numBeads repetitions]
+	 */
+	public static void main( String[] args )
+	{
+		final int[] size = args.length >= 3 ?
+				new int[]{ Integer.parseInt( args[ 0 ] ), Integer.parseInt( args[ 1 ] ), Integer.parseInt( args[ 2 ] ) } :
+				new int[]{ 512, 512, 200 };
+		final int numBeads = args.length >= 4 ? Integer.parseInt( args[ 3 ] ) : 5000;
+		final int repetitions = args.length >= 5 ? Integer.parseInt( args[ 4 ] ) : 5;
+
+		final ArrayImg< FloatType, FloatArray > beads = SimulateBeadImage.simulateBeads( size, numBeads, new double[]{ 1.5, 1.5, 2.0 }, 100, 10, 4363456634634l );
+
+		final float sigma = 1.8f;
+		final float threshold = 0.008f;
+
+		System.out.println( "volume: " + Util.printCoordinates( size ) + ", beads: " + numBeads + ", threads: " + Threads.numThreads() );
+
+		// the ImgLib1 methods differ only in the global setting, restore it afterwards
+		final boolean fusedDoG = ProcessDOG.fusedDoG;
+
+		try
+		{
+			ArrayList< InterestPoint > reference = null;
+
+			for ( int method = 0; method < 3; ++method )
+			{
+				final String name = method == 0 ? "ImgLib1 DoG" : method == 1 ? "ImgLib1 peaks & fit, fused DoG" : "ImgLib2 blockwise";
+
+				final long[] times = new long[ repetitions ];
+				ArrayList< InterestPoint > points = null;
+
+				// the first run is warm-up
+				for ( int r = -1; r < repetitions; ++r )
+				{
+					final ArrayImg< FloatType, FloatArray > img = beads.copy();
+					final long time = System.currentTimeMillis();
+
+					if ( method == 2 )
+					{
+						points = compute( img, sigma, threshold, 1, 0.5, 0.5, 0.5, null, false, true, Double.NaN, Double.NaN, false );
+					}
+					else
+					{
+						ProcessDOG.fusedDoG = method == 1;
+
+						points = ProcessDOG.compute(
+								null, null, false, 0, ImgLib2.wrapFloatToImgLib1( img ), img,
+								sigma, threshold, 1, 0.5, 0.5, 0.5, false, true, Double.NaN, Double.NaN, false );
+					}
+
+					if ( r >= 0 )
+						times[ r ] = System.currentTimeMillis() - time;
+				}
+
+				Arrays.sort( times );
+
+				if ( reference == null )
+					reference = points;
+
+				// how many points are within 0.5 px of a point of the reference
+				int matching = 0;
+
+				for ( final InterestPoint p : points )
+					for ( final InterestPoint q : reference )
+					{
+						final double dx = p.getL()[ 0 ] - q.getL()[ 0 ];
+						final double dy = p.getL()[ 1 ] - q.getL()[ 1 ];
+						final double dz = p.getL()[ 2 ] - q.getL()[ 2 ];
+
+						if ( dx * dx + dy * dy + dz * dz < 0.25 )
+						{
+							++matching;
+							break;
+						}
+					}
+
+				System.out.println( name + ": median " + times[ repetitions / 2 ] + " ms (min " + times[ 0 ] + " ms), " +
+						points.size() + " points, " + matching + " within 0.5 px of " + reference.size() + " reference points" );
+			}
+		}
+		finally
+		{
+			ProcessDOG.fusedDoG = fusedDoG;
+		}
+	}
+}
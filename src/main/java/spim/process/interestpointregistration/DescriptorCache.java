@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+/**
+ * Caches per-view data structures (KDTrees, point descriptors) that are needed by every pairwise
+ * matching a view participates in, so they are computed only once per registration subset.
+ *
+ * Each entry is computed exactly once, even if several pairwise matchings request it at the same time.
+ * The cached objects are shared between threads and must only be read. As RANSAC modifies the world
+ * coordinates of the {@link Detection}s, the candidates have to be detached using
+ * {@link #detachCandidates(List)} before running RANSAC on them.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DescriptorCache
+{
+	final ConcurrentHashMap< String, FutureTask< ? > > cache = new ConcurrentHashMap< String, FutureTask< ? > >();
+
+	/**
+	 * @param key - the key, see {@link #key(ViewId, String, String)}
+	 * @param factory - computes the entry if it is not cached yet
+	 * @return - the cached entry
+	 */
+	@SuppressWarnings("unchecked")
+	public < T > T get( final String key, final Callable< T > factory )
+	{
+		final FutureTask< T > task = new FutureTask< T >( factory );
+		FutureTask< ? > existing = cache.putIfAbsent( key, task );
+
+		if ( existing == null )
+		{
+			task.run();
+			existing = task;
+		}
+
+		try
+		{
+			return (T)existing.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while waiting for descriptors of " + key, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			// do not keep the failed entry
+			cache.remove( key, existing );
+			throw new RuntimeException( "Failed to compute descriptors of " + key + ": " + e.getCause(), e.getCause() );
+		}
+	}
+
+	public int size() { return cache.size(); }
+
+	/**
+	 * Evicts all entries
+	 */
+	public void clear() { cache.clear(); }
+
+	/**
+	 * @param viewId - the view
+	 * @param label - the label of the interest points
+	 * @param parameters - all parameters that influence the cached structures
+	 * @return - a key for the cache
+	 */
+	public static String key( final ViewId viewId, final String label, final String parameters )
+	{
+		return "tp=" + viewId.getTimePointId() + ",setup=" + viewId.getViewSetupId() + ",label=" + label + "," + parameters;
+	}
+
+	/**
+	 * Replaces the (shared) {@link Detection}s of the candidates by copies that are only used by this pair,
+	 * the same {@link Detection} is replaced by the same copy. All candidates created by the matchers have a weight of 1.
+	 *
+	 * @param candidates - the correspondence candidates pointing to cached {@link Detection}s
+	 * @return - a new list of candidates that can be used for RANSAC and the global optimization
+	 */
+	public static ArrayList< PointMatchGeneric< Detection > > detachCandidates( final List< PointMatchGeneric< Detection > > candidates )
+	{
+		final HashMap< Detection, Detection > copies = new HashMap< Detection, Detection >();
+		final ArrayList< PointMatchGeneric< Detection > > detached = new ArrayList< PointMatchGeneric< Detection > >( candidates.size() );
+
+		for ( final PointMatchGeneric< Detection > pm : candidates )
+			detached.add( new PointMatchGeneric< Detection >( copy( pm.getPoint1(), copies ), copy( pm.getPoint2(), copies ) ) );
+
+		return detached;
+	}
+
+	protected static Detection copy( final Detection d, final HashMap< Detection, Detection > copies )
+	{
+		Detection copy = copies.get( d );
+
+		if ( copy == null )
+		{
+			copy = new Detection( d.getId(), d.getL().clone(), d.getWeight() );
+			copies.put( d, copy );
+		}
+
+		return copy;
+	}
+}
@@ -55,6 +55,9 @@ import spim.vecmath.Vector3f;
  */
 public class GlobalOpt
 {
+	public static String[] solverChoice = new String[]{ "Iterative (TileConfiguration)", "Sparse least-squares (translation, rigid & affine only)", "Iterative, multithreaded (all tiles updated in parallel)" };
+	public static final int ITERATIVE = 0, SPARSE = 1, PARALLEL = 2;
+
 	/**
 	 * Computes a global optimization based on the corresponding points
 	 * 
@@ -96,8 +99,36 @@ public class GlobalOpt
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
 			else
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
-			
-			tc.optimize( 10, 10000, 200 );
+
+			final double avgError, minError, maxError;
+
+			if ( registrationType.getGlobalOptSolver() == SPARSE && SparseGlobalOpt.isSupported( model ) )
+			{
+				final double[] errors = SparseGlobalOpt.optimize( tc, pairs, map );
+
+				avgError = errors[ 0 ];
+				minError = errors[ 1 ];
+				maxError = errors[ 2 ];
+			}
+			else if ( registrationType.getGlobalOptSolver() == PARALLEL )
+			{
+				final double[] errors = ParallelTileOptimizer.optimize( tc.getTiles(), tc.getFixedTiles(), 10, 10000, 200 );
+
+				avgError = errors[ 0 ];
+				minError = errors[ 1 ];
+				maxError = errors[ 2 ];
+			}
+			else
+			{
+				if ( registrationType.getGlobalOptSolver() == SPARSE )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Sparse solver does not support " + model.getClass().getSimpleName() + ", using iterative optimization." );
+
+				tc.optimize( 10, 10000, 200 );
+
+				avgError = tc.getError();
+				minError = tc.getMinError();
+				maxError = tc.getMaxError();
+			}
 			
 			if ( considerTimePointsAsUnit )
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
@@ -105,9 +136,9 @@ public class GlobalOpt
 			else
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
 					tc.getTiles().size() +  " view-tiles (Model=" + model.getClass().getSimpleName()  + "):" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + tc.getError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + tc.getMinError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + tc.getMaxError() + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + avgError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + minError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + maxError + "px" );
 		}
 		catch (NotEnoughDataPointsException e)
 		{
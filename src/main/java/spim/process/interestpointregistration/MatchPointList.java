@@ -21,9 +21,11 @@
  */
 package spim.process.interestpointregistration;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointArray;
 
 /**
  * The interestpoint list from a certain channel;
@@ -33,15 +35,43 @@ import spim.fiji.spimdata.interestpoints.InterestPoint;
  */
 public class MatchPointList
 {
-	final List< InterestPoint > interestpointList;
+	final InterestPointArray interestpoints;
 	final ChannelProcess channel;
-	
-	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
+
+	public MatchPointList( final InterestPointArray interestpoints, final ChannelProcess channel )
 	{
-		this.interestpointList = interestpointList;
+		this.interestpoints = interestpoints;
 		this.channel = channel;
 	}
-	
-	public List< InterestPoint > getInterestpointList() { return interestpointList; }
+
+	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
+	{
+		this( InterestPointArray.fromList( interestpointList ), channel );
+	}
+
+	/**
+	 * @return - a read-only view of the points, the {@link InterestPoint} instances are created on demand
+	 */
+	public List< InterestPoint > getInterestpointList() { return interestpoints.asList(); }
+	public InterestPointArray getInterestPointArray() { return interestpoints; }
+
+	/**
+	 * @return - a new list of {@link Detection}s for matching, created directly from the packed coordinates
+	 */
+	public ArrayList< Detection > createDetections()
+	{
+		final int n = interestpoints.size();
+		final ArrayList< Detection > detections = new ArrayList< Detection >( n );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] l = new double[ interestpoints.numDimensions() ];
+			interestpoints.localize( i, l );
+			detections.add( new Detection( interestpoints.getId( i ), l ) );
+		}
+
+		return detections;
+	}
+
 	public ChannelProcess getChannelProcessed() { return channel; }
 }
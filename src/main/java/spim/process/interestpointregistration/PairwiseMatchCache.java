@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+/**
+ * Stores the candidates and inliers of {@link PairwiseMatch}es on disk, so that running the registration again
+ * with the same matching parameters (e.g. only to change the global optimization) does not recompute them.
+ * 
+ * The key of a pair contains both ViewIds, labels, a hash of the interest points and all parameters of the matching,
+ * the file name encodes the ViewIds and a hash of the key, the file repeats the key and is validated when loading.
+ * Correspondences are stored as pairs of detection ids.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class PairwiseMatchCache
+{
+	final private static int VERSION = 1;
+
+	/**
+	 * where the matches are stored relative to the XML
+	 */
+	public static String defaultDirectory = "interestpoints/matches";
+
+	final File directory;
+
+	/**
+	 * @param directory - where to store the matches, will be created if necessary
+	 */
+	public PairwiseMatchCache( final File directory )
+	{
+		this.directory = directory;
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * @param pair - the pair of views
+	 * @param parameters - all parameters of the matching
+	 * @param hashA - hash of the interest points of view A
+	 * @param hashB - hash of the interest points of view B
+	 * @return - the key of this pair
+	 */
+	public static String key( final PairwiseMatch pair, final String parameters, final long hashA, final long hashB )
+	{
+		return
+			"A: tp=" + pair.getViewIdA().getTimePointId() + ",setup=" + pair.getViewIdA().getViewSetupId() + ",label=" + pair.getChannelProcessedA().getLabel() + ",points=" + Long.toHexString( hashA ) + "; " +
+			"B: tp=" + pair.getViewIdB().getTimePointId() + ",setup=" + pair.getViewIdB().getViewSetupId() + ",label=" + pair.getChannelProcessedB().getLabel() + ",points=" + Long.toHexString( hashB ) + "; " +
+			parameters;
+	}
+
+	/**
+	 * Sets the candidates and inliers of the pair if they are cached
+	 * 
+	 * @param pair - the pair of views
+	 * @param key - the key, see {@link #key(PairwiseMatch, String, long, long)}
+	 * @return - true if the pair was loaded
+	 */
+	public boolean load( final PairwiseMatch pair, final String key )
+	{
+		final File file = getFile( pair, key );
+
+		if ( !file.exists() )
+			return false;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1024*1024 ) );
+
+			if ( in.readInt() != VERSION )
+				return false;
+
+			// the hash in the file name might collide
+			if ( !in.readUTF().equals( key ) )
+				return false;
+
+			final double error = in.readDouble();
+
+			// candidates and inliers share the detections, just like after matching
+			final HashMap< Integer, Detection > detectionsA = index( pair.getMatchPointListA().createDetections() );
+			final HashMap< Integer, Detection > detectionsB = index( pair.getMatchPointListB().createDetections() );
+
+			final ArrayList< PointMatchGeneric< Detection > > candidates = readMatches( in, detectionsA, detectionsB );
+			final ArrayList< PointMatchGeneric< Detection > > inliers = readMatches( in, detectionsA, detectionsB );
+
+			if ( candidates == null || inliers == null )
+				return false;
+
+			pair.setCandidates( candidates );
+			pair.setInliers( inliers, error );
+
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to load cached pairwise matches from '" + file.getAbsolutePath() + "': " + e );
+			return false;
+		}
+		finally
+		{
+			if ( in != null )
+				try { in.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * @param pair - the pair of views, candidates and inliers must be set
+	 * @param key - the key, see {@link #key(PairwiseMatch, String, long, long)}
+	 * @return - true if the matches were stored
+	 */
+	public boolean save( final PairwiseMatch pair, final String key )
+	{
+		if ( pair.getCandidates() == null || pair.getInliers() == null )
+			return false;
+
+		if ( !directory.exists() && !directory.mkdirs() )
+		{
+			IOFunctions.println( "Failed to create directory for cached pairwise matches: '" + directory.getAbsolutePath() + "'" );
+			return false;
+		}
+
+		final File file = getFile( pair, key );
+		final File tmp = new File( file.getAbsolutePath() + ".tmp" );
+
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1024*1024 ) );
+
+			out.writeInt( VERSION );
+			out.writeUTF( key );
+			out.writeDouble( pair.getAvgError() );
+
+			writeMatches( out, pair.getCandidates() );
+			writeMatches( out, pair.getInliers() );
+
+			out.close();
+			out = null;
+
+			if ( ( file.exists() && !file.delete() ) || !tmp.renameTo( file ) )
+			{
+				IOFunctions.println( "Failed to move cached pairwise matches to '" + file.getAbsolutePath() + "'" );
+				return false;
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to save cached pairwise matches to '" + file.getAbsolutePath() + "': " + e );
+			return false;
+		}
+		finally
+		{
+			if ( out != null )
+				try { out.close(); } catch ( final IOException e ) {}
+		}
+
+		return true;
+	}
+
+	protected static void writeMatches( final DataOutputStream out, final List< PointMatchGeneric< Detection > > matches ) throws IOException
+	{
+		out.writeInt( matches.size() );
+
+		for ( final PointMatchGeneric< Detection > pm : matches )
+		{
+			out.writeInt( pm.getPoint1().getId() );
+			out.writeInt( pm.getPoint2().getId() );
+		}
+	}
+
+	/**
+	 * @return - the matches or null if a detection does not exist (anymore)
+	 */
+	protected static ArrayList< PointMatchGeneric< Detection > > readMatches(
+			final DataInputStream in,
+			final HashMap< Integer, Detection > detectionsA,
+			final HashMap< Integer, Detection > detectionsB ) throws IOException
+	{
+		final int n = in.readInt();
+		final ArrayList< PointMatchGeneric< Detection > > matches = new ArrayList< PointMatchGeneric< Detection > >( n );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final Detection a = detectionsA.get( in.readInt() );
+			final Detection b = detectionsB.get( in.readInt() );
+
+			if ( a == null || b == null )
+				return null;
+
+			matches.add( new PointMatchGeneric< Detection >( a, b ) );
+		}
+
+		return matches;
+	}
+
+	protected static HashMap< Integer, Detection > index( final List< Detection > detections )
+	{
+		final HashMap< Integer, Detection > map = new HashMap< Integer, Detection >();
+
+		for ( final Detection d : detections )
+			map.put( d.getId(), d );
+
+		return map;
+	}
+
+	protected File getFile( final PairwiseMatch pair, final String key )
+	{
+		final ViewId a = pair.getViewIdA();
+		final ViewId b = pair.getViewIdB();
+
+		return new File( directory,
+				"matches_tp" + a.getTimePointId() + "_vs" + a.getViewSetupId() +
+				"_tp" + b.getTimePointId() + "_vs" + b.getViewSetupId() +
+				"_" + Integer.toHexString( key.hashCode() ) + ".matches" );
+	}
+}
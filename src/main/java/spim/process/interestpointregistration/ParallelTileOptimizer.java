@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+
+/**
+ * Multithreaded version of TileConfiguration.optimize(). Instead of fitting one tile after the other
+ * (Gauss-Seidel), all tiles are fitted concurrently against a snapshot of the world coordinates of their
+ * neighbours (Jacobi). Every iteration consists of three phases separated by a barrier: fit the models,
+ * apply them to the local coordinates and compute the distances. This way no tile reads world coordinates
+ * of a neighbour while they are written.
+ *
+ * Plain Jacobi iterations can oscillate (e.g. two free tiles swapping their positions every iteration),
+ * so the tiles are fitted against targets that are moved only by {@link #relaxation} from their current
+ * world coordinates towards the ones of their neighbours. For affine models this is the same as blending
+ * the new model with the old one. Convergence is tested the same way as in TileConfiguration (slope of
+ * the error over a plateau).
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ParallelTileOptimizer
+{
+	/**
+	 * How far a tile moves towards the fit to its neighbours in each iteration (0...1], 1 is undamped Jacobi
+	 */
+	public static double relaxation = 0.5;
+
+	final static int FIT = 0, APPLY = 1, COST = 2;
+
+	/**
+	 * Minimize the displacement of all correspondences of all tiles
+	 * 
+	 * @param tiles - all tiles
+	 * @param fixedTiles - the tiles that are not fitted
+	 * @param maxAllowedError - do not accept convergence if error is &gt; maxAllowedError
+	 * @param maxIterations - stop after that many iterations even if there was no minimum found
+	 * @param maxPlateauwidth - convergence is reached if the average absolute slope in an interval of this size and half this size is smaller than 0.0001
+	 * @return - the average, minimal and maximal error of the tiles and the number of iterations
+	 */
+	public static double[] optimize(
+			final Collection< ? extends Tile< ? > > tiles,
+			final Collection< ? extends Tile< ? > > fixedTiles,
+			final double maxAllowedError,
+			final int maxIterations,
+			final int maxPlateauwidth ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final ArrayList< Tile< ? > > allTiles = new ArrayList< Tile< ? > >( tiles );
+		final ArrayList< Tile< ? > > freeTiles = new ArrayList< Tile< ? > >();
+
+		for ( final Tile< ? > tile : allTiles )
+			if ( !fixedTiles.contains( tile ) )
+				freeTiles.add( tile );
+
+		final ExecutorService taskExecutor = Threads.createExecutor();
+
+		// each tile is fitted, applied and evaluated by exactly one task per phase
+		final ArrayList< Callable< Void > > fitTasks = createTasks( freeTiles, FIT );
+		final ArrayList< Callable< Void > > applyTasks = createTasks( freeTiles, APPLY );
+		final ArrayList< Callable< Void > > costTasks = createTasks( allTiles, COST );
+
+		final ErrorStatistic observer = new ErrorStatistic( maxPlateauwidth + 1 );
+		final double[] errors = new double[ 4 ];
+
+		int i = 0;
+
+		try
+		{
+			// the world coordinates of all tiles (including the fixed ones) have to be up to date before the first fit
+			run( taskExecutor, createTasks( allTiles, APPLY ) );
+
+			boolean proceed = i < maxIterations;
+
+			while ( proceed )
+			{
+				// fit: reads the world coordinates of the tile and its neighbours, writes only the model
+				run( taskExecutor, fitTasks );
+
+				// apply: writes only the world coordinates of the tile
+				run( taskExecutor, applyTasks );
+
+				// cost: reads the world coordinates of the tile and its neighbours
+				run( taskExecutor, costTasks );
+
+				computeErrors( allTiles, errors );
+				observer.add( errors[ 0 ] );
+
+				if ( i > maxPlateauwidth )
+				{
+					proceed = errors[ 0 ] > maxAllowedError;
+
+					int d = maxPlateauwidth;
+					while ( !proceed && d >= 1 )
+					{
+						try
+						{
+							proceed |= Math.abs( observer.getWideSlope( d ) ) > 0.0001;
+						}
+						catch ( Exception e ) { e.printStackTrace(); }
+						d /= 2;
+					}
+				}
+
+				proceed &= ++i < maxIterations;
+			}
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Parallel optimization of " + allTiles.size() + " tiles converged after " + i + " iterations." );
+
+		errors[ 3 ] = i;
+
+		return errors;
+	}
+	protected static void computeErrors( final List< Tile< ? > > tiles, final double[] errors )
+	{
+		double cd = 0.0;
+		double minError = Double.MAX_VALUE;
+		double maxError = 0.0;
+
+		for ( final Tile< ? > t : tiles )
+		{
+			final double d = t.getDistance();
+			if ( d < minError ) minError = d;
+			if ( d > maxError ) maxError = d;
+			cd += d;
+		}
+
+		errors[ 0 ] = cd / tiles.size();
+		errors[ 1 ] = minError;
+		errors[ 2 ] = maxError;
+	}
+
+	protected static ArrayList< Callable< Void > > createTasks( final List< Tile< ? > > tiles, final int phase )
+	{
+		final int numTasks = Math.max( 1, Math.min( tiles.size(), Threads.numThreads() * 4 ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int from = (int)( (long)tiles.size() * t / numTasks );
+			final int to = (int)( (long)tiles.size() * ( t + 1 ) / numTasks );
+
+			// the relaxed targets are allocated once and reused in every iteration
+			final ArrayList< RelaxedMatches > relaxed = new ArrayList< RelaxedMatches >();
+
+			if ( phase == FIT )
+				for ( int i = from; i < to; ++i )
+					relaxed.add( new RelaxedMatches( tiles.get( i ) ) );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int i = from; i < to; ++i )
+					{
+						final Tile< ? > tile = tiles.get( i );
+
+						if ( phase == FIT )
+							relaxed.get( i - from ).fit( relaxation );
+						else if ( phase == APPLY )
+							for ( final PointMatch match : tile.getMatches() )
+								match.apply( tile.getModel() );
+						else
+							tile.updateCost();
+					}
+
+					return null;
+				}
+			});
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * The correspondences of one tile with targets between the current world coordinates of the tile and
+	 * the ones of its neighbours
+	 */
+	protected static class RelaxedMatches
+	{
+		final Tile< ? > tile;
+		final ArrayList< PointMatch > matches;
+		final ArrayList< PointMatch > targets;
+
+		public RelaxedMatches( final Tile< ? > tile )
+		{
+			this.tile = tile;
+			this.matches = new ArrayList< PointMatch >( tile.getMatches() );
+			this.targets = new ArrayList< PointMatch >( matches.size() );
+
+			for ( final PointMatch match : matches )
+				targets.add( new PointMatch( match.getP1(), new Point( match.getP2().getW().clone() ), match.getWeight() ) );
+		}
+
+		public void fit( final double relaxation ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+		{
+			for ( int j = 0; j < matches.size(); ++j )
+			{
+				final double[] w = matches.get( j ).getP1().getW();
+				final double[] q = matches.get( j ).getP2().getW();
+				final double[] target = targets.get( j ).getP2().getW();
+
+				for ( int d = 0; d < target.length; ++d )
+					target[ d ] = w[ d ] + relaxation * ( q[ d ] - w[ d ] );
+			}
+
+			tile.getModel().fit( targets );
+		}
+	}
+
+	protected static void run( final ExecutorService taskExecutor, final List< Callable< Void > > tasks ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		if ( tasks.size() == 0 )
+			return;
+
+		try
+		{
+			for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted during global optimization: " + e, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof NotEnoughDataPointsException )
+				throw (NotEnoughDataPointsException)e.getCause();
+			else if ( e.getCause() instanceof IllDefinedDataPointsException )
+				throw (IllDefinedDataPointsException)e.getCause();
+			else
+				throw new RuntimeException( "Global optimization failed: " + e.getCause(), e.getCause() );
+		}
+	}
+}
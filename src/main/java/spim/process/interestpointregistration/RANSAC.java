@@ -23,14 +23,24 @@ package spim.process.interestpointregistration;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
+import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.pointdescriptor.LinkedPoint;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import spim.Threads;
 
 /**
  * 
@@ -39,6 +49,24 @@ import mpicbg.spim.mpicbg.PointMatchGeneric;
  */
 public class RANSAC
 {
+	/**
+	 * Evaluate the RANSAC hypotheses in parallel on primitive coordinate arrays instead of calling Model.filterRansac()
+	 */
+	public static boolean parallelRANSAC = true;
+
+	/**
+	 * Stop drawing hypotheses once the best inlier ratio found so far makes it unlikely (1 - adaptiveConfidence)
+	 * that a better one is still missing, numIterations is then only the upper bound
+	 */
+	public static boolean adaptiveIterations = true;
+	public static double adaptiveConfidence = 0.999;
+	public static int minIterations = 100;
+
+	/**
+	 * The maximal trust used to filter the RANSAC inliers (same as Model.filterRansac())
+	 */
+	public static double maxTrust = 4.0;
+
 	public static Pair< String, Double > computeRANSAC( 
 			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates, 
 			final ArrayList< PointMatchGeneric < Detection > > inlierList, 
@@ -65,38 +93,16 @@ public class RANSAC
 		 * The ArrayList that stores the inliers after RANSAC, contains PointMatches of LinkedPoints
 		 * so that MultiThreading is possible
 		 */
-		//final ArrayList< PointMatchGeneric<LinkedPoint<T>> > candidates = new ArrayList<PointMatchGeneric<LinkedPoint<T>>>();		
-		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
 		final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
 		
-		// clone the beads for the RANSAC as we are working multithreaded and they will be modified
-		for ( final PointMatchGeneric< Detection > correspondence : correspondenceCandidates )
-		{
-			final Detection detectionA = correspondence.getPoint1();
-			final Detection detectionB = correspondence.getPoint2();
-			
-			final LinkedPoint< Detection > pA = new LinkedPoint< Detection >( detectionA.getL(), detectionA.getW(), detectionA );
-			final LinkedPoint< Detection > pB = new LinkedPoint< Detection >( detectionB.getL(), detectionB.getW(), detectionB );
-			final double weight = correspondence.getWeight(); 
-
-			candidates.add( new PointMatchGeneric< LinkedPoint< Detection > >( pA, pB, weight ) );
-		}
-		
 		boolean modelFound = false;
 		
 		try
 		{
-			/*modelFound = m.ransac(
-  					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio );*/
-		
-			modelFound = model.filterRansac(
-					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio ); 
+			if ( parallelRANSAC )
+				modelFound = parallelFilterRansac( correspondenceCandidates, inliers, model, numIterations, maxEpsilon, minInlierRatio );
+			else
+				modelFound = filterRansac( correspondenceCandidates, inliers, model, numIterations, maxEpsilon, minInlierRatio );
 		}
 		catch ( NotEnoughDataPointsException e )
 		{
@@ -104,7 +110,7 @@ public class RANSAC
 		}
 			
 		final NumberFormat nf = NumberFormat.getPercentInstance();
-		final double ratio = ( (double)inliers.size() / (double)candidates.size() );
+		final double ratio = ( (double)inliers.size() / (double)numCorrespondences );
 		
 		if ( modelFound && inliers.size() >= minNumCorrespondences )
 		{			
@@ -119,14 +125,339 @@ public class RANSAC
 				inlierList.add( new PointMatchGeneric< Detection >( detectionA, detectionB ) );
 			}
 
-			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.size() + " of " + candidates.size() + " (" + nf.format(ratio) + ") with average error " + model.getCost(), model.getCost() );
+			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.size() + " of " + numCorrespondences + " (" + nf.format(ratio) + ") with average error " + model.getCost(), model.getCost() );
 		}
 		else
 		{
 			if ( modelFound )
-				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.size() + "/" + minNumCorrespondences + ") after RANSAC of " + candidates.size(), Double.NaN );
+				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.size() + "/" + minNumCorrespondences + ") after RANSAC of " + numCorrespondences, Double.NaN );
 			else
-				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + candidates.size(), Double.NaN );
+				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + numCorrespondences, Double.NaN );
 		}
 	}
+
+	/**
+	 * The original implementation, clones all candidates and runs Model.filterRansac() single-threaded
+	 */
+	protected static boolean filterRansac(
+			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates,
+			final ArrayList< PointMatch > inliers,
+			final Model<?> model,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio ) throws NotEnoughDataPointsException
+	{
+		//final ArrayList< PointMatchGeneric<LinkedPoint<T>> > candidates = new ArrayList<PointMatchGeneric<LinkedPoint<T>>>();		
+		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
+
+		// clone the beads for the RANSAC as we are working multithreaded and they will be modified
+		for ( final PointMatchGeneric< Detection > correspondence : correspondenceCandidates )
+			candidates.add( link( correspondence ) );
+
+		/*modelFound = m.ransac(
+				candidates,
+				inliers,
+				numIterations,
+				maxEpsilon, minInlierRatio );*/
+
+		return model.filterRansac(
+				candidates,
+				inliers,
+				numIterations,
+				maxEpsilon, minInlierRatio ); 
+	}
+
+	/**
+	 * Same result as Model.filterRansac( candidates, inliers, numIterations, maxEpsilon, minInlierRatio ), but the
+	 * hypotheses are evaluated in parallel on primitive copies of the coordinates. Only the (few) hypothesis samples
+	 * and the final RANSAC inliers are represented as {@link PointMatch}es. If {@link #adaptiveIterations} is set, the
+	 * number of hypotheses is reduced according to the best inlier ratio found so far.
+	 *
+	 * @param correspondenceCandidates - the candidates, they are not modified
+	 * @param inliers - the inliers after filtering, PointMatchGeneric of {@link LinkedPoint}s pointing to the {@link Detection}s
+	 * @param model - the model, will be set to the solution
+	 * @param numIterations - maximal number of hypotheses
+	 * @param maxEpsilon - maximal distance of an inlier
+	 * @param minInlierRatio - minimal ratio of inliers of a valid hypothesis
+	 * @return - true if a model was found
+	 * @throws NotEnoughDataPointsException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static boolean parallelFilterRansac(
+			final List< PointMatchGeneric < Detection > > correspondenceCandidates,
+			final ArrayList< PointMatch > inliers,
+			final Model model,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio ) throws NotEnoughDataPointsException
+	{
+		final int n = correspondenceCandidates.size();
+		final int minNumMatches = model.getMinNumMatches();
+
+		if ( n < minNumMatches )
+			throw new NotEnoughDataPointsException( n + " data points are not enough to solve the Model, at least " + minNumMatches + " data points required." );
+
+		// the model is fitted from the local coordinates of the first to the world coordinates of the second point
+		final int numDimensions = correspondenceCandidates.get( 0 ).getPoint1().getL().length;
+		final double[] p = new double[ n * numDimensions ];
+		final double[] q = new double[ n * numDimensions ];
+		final double[] weights = new double[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final PointMatchGeneric< Detection > pm = correspondenceCandidates.get( i );
+			System.arraycopy( pm.getPoint1().getL(), 0, p, i * numDimensions, numDimensions );
+			System.arraycopy( pm.getPoint2().getW(), 0, q, i * numDimensions, numDimensions );
+			weights[ i ] = pm.getWeight();
+		}
+
+		final int numTasks = Math.max( 1, Math.min( Threads.numThreads(), numIterations / Math.max( 1, minIterations ) ) );
+
+		final AtomicInteger iteration = new AtomicInteger( 0 );
+		final AtomicInteger requiredIterations = new AtomicInteger( numIterations );
+		final AtomicInteger bestNumInliers = new AtomicInteger( 0 );
+
+		final ArrayList< Callable< Hypothesis > > tasks = new ArrayList< Callable< Hypothesis > >();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int seed = 69997 + t;
+
+			tasks.add( new Callable< Hypothesis >()
+			{
+				@Override
+				public Hypothesis call()
+				{
+					final Random rnd = new Random( seed );
+					final Model m = model.copy();
+					final Hypothesis best = new Hypothesis( model.copy() );
+
+					final Point[] sampleP = new Point[ minNumMatches ];
+					final Point[] sampleQ = new Point[ minNumMatches ];
+					final int[] sampleIndices = new int[ minNumMatches ];
+					final ArrayList< PointMatch > sample = new ArrayList< PointMatch >( minNumMatches );
+					final double[] tmp = new double[ numDimensions ];
+					final double maxEpsilonSquared = maxEpsilon * maxEpsilon;
+
+					for ( int k = 0; k < minNumMatches; ++k )
+					{
+						sampleP[ k ] = new Point( new double[ numDimensions ] );
+						sampleQ[ k ] = new Point( new double[ numDimensions ] );
+					}
+
+					while ( iteration.getAndIncrement() < requiredIterations.get() )
+					{
+						sample.clear();
+
+						for ( int k = 0; k < minNumMatches; ++k )
+						{
+							int index;
+							boolean contained;
+
+							do
+							{
+								index = rnd.nextInt( n );
+								contained = false;
+
+								for ( int j = 0; j < k; ++j )
+									if ( sampleIndices[ j ] == index )
+										contained = true;
+							}
+							while ( contained );
+
+							sampleIndices[ k ] = index;
+							System.arraycopy( p, index * numDimensions, sampleP[ k ].getL(), 0, numDimensions );
+							System.arraycopy( q, index * numDimensions, sampleQ[ k ].getW(), 0, numDimensions );
+							sample.add( new PointMatch( sampleP[ k ], sampleQ[ k ], weights[ index ] ) );
+						}
+
+						try
+						{
+							m.fit( sample );
+						}
+						catch ( NotEnoughDataPointsException e )
+						{
+							continue;
+						}
+						catch ( IllDefinedDataPointsException e )
+						{
+							continue;
+						}
+
+						// a hypothesis has to beat the best one of all threads to be of any use
+						final int bound = Math.max( best.numInliers, bestNumInliers.get() );
+						final int numInliers = countInliers( m, p, q, n, numDimensions, maxEpsilonSquared, tmp, bound );
+
+						// same test as Model.test(), ratio > minInlierRatio and numInliers >= minNumMatches
+						if ( numInliers > bound && numInliers >= minNumMatches && (double)numInliers / (double)n > minInlierRatio )
+						{
+							best.numInliers = numInliers;
+							best.model.set( m );
+
+							updateMax( bestNumInliers, numInliers );
+
+							if ( adaptiveIterations )
+								updateMin( requiredIterations, Math.max( Math.min( minIterations, numIterations ), adaptiveIterationCount( numInliers, n, minNumMatches, numIterations ) ) );
+						}
+					}
+
+					return best;
+				}
+			});
+		}
+
+		// select the best hypothesis of all threads, on ties the one of the lower thread index
+		Hypothesis best = null;
+
+		try
+		{
+			if ( numTasks == 1 )
+			{
+				best = tasks.get( 0 ).call();
+			}
+			else
+			{
+				final ExecutorService taskExecutor = Threads.createExecutor( numTasks );
+
+				try
+				{
+					for ( final Future< Hypothesis > future : taskExecutor.invokeAll( tasks ) )
+					{
+						final Hypothesis h = future.get();
+
+						if ( best == null || h.numInliers > best.numInliers )
+							best = h;
+					}
+				}
+				finally
+				{
+					taskExecutor.shutdown();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted during RANSAC: " + e, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to compute RANSAC: " + e.getCause(), e.getCause() );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to compute RANSAC: " + e, e );
+		}
+
+		inliers.clear();
+
+		if ( best.numInliers == 0 )
+			return false;
+
+		model.set( best.model );
+
+		// only the inliers of the best hypothesis are linked to their detections and filtered
+		final ArrayList< PointMatch > ransacInliers = new ArrayList< PointMatch >( best.numInliers );
+		final double[] tmp = new double[ numDimensions ];
+		final double maxEpsilonSquared = maxEpsilon * maxEpsilon;
+
+		for ( int i = 0; i < n; ++i )
+			if ( isInlier( model, p, q, i, numDimensions, maxEpsilonSquared, tmp ) )
+				ransacInliers.add( link( correspondenceCandidates.get( i ) ) );
+
+		if ( model.filter( ransacInliers, inliers, maxTrust, minNumMatches ) )
+			return true;
+
+		inliers.clear();
+		return false;
+	}
+
+	/**
+	 * @return - the number of hypotheses necessary to draw an all-inlier sample with probability {@link #adaptiveConfidence}
+	 */
+	public static int adaptiveIterationCount( final int numInliers, final int numCandidates, final int sampleSize, final int maxIterations )
+	{
+		final double allInliers = Math.pow( (double)numInliers / (double)numCandidates, sampleSize );
+
+		if ( allInliers >= 1.0 )
+			return 1;
+		else if ( allInliers <= 0.0 )
+			return maxIterations;
+
+		final double k = Math.ceil( Math.log( 1.0 - adaptiveConfidence ) / Math.log( 1.0 - allInliers ) );
+
+		return (int)Math.max( 1, Math.min( maxIterations, k ) );
+	}
+
+	/**
+	 * Counts the inliers of a model, stops as soon as it cannot exceed bound anymore
+	 */
+	@SuppressWarnings("rawtypes")
+	protected static int countInliers( final Model model, final double[] p, final double[] q, final int n, final int numDimensions, final double maxEpsilonSquared, final double[] tmp, final int bound )
+	{
+		int numInliers = 0;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( isInlier( model, p, q, i, numDimensions, maxEpsilonSquared, tmp ) )
+				++numInliers;
+			else if ( numInliers + ( n - i - 1 ) <= bound )
+				return numInliers;
+		}
+
+		return numInliers;
+	}
+
+	@SuppressWarnings("rawtypes")
+	protected static boolean isInlier( final Model model, final double[] p, final double[] q, final int i, final int numDimensions, final double maxEpsilonSquared, final double[] tmp )
+	{
+		final int o = i * numDimensions;
+
+		System.arraycopy( p, o, tmp, 0, numDimensions );
+		model.applyInPlace( tmp );
+
+		double distance = 0;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final double diff = tmp[ d ] - q[ o + d ];
+			distance += diff * diff;
+		}
+
+		return distance < maxEpsilonSquared;
+	}
+
+	protected static PointMatchGeneric< LinkedPoint< Detection > > link( final PointMatchGeneric< Detection > correspondence )
+	{
+		final Detection detectionA = correspondence.getPoint1();
+		final Detection detectionB = correspondence.getPoint2();
+
+		final LinkedPoint< Detection > pA = new LinkedPoint< Detection >( detectionA.getL(), detectionA.getW(), detectionA );
+		final LinkedPoint< Detection > pB = new LinkedPoint< Detection >( detectionB.getL(), detectionB.getW(), detectionB );
+
+		return new PointMatchGeneric< LinkedPoint< Detection > >( pA, pB, correspondence.getWeight() );
+	}
+
+	protected static void updateMax( final AtomicInteger value, final int newValue )
+	{
+		int current;
+
+		while ( newValue > ( current = value.get() ) && !value.compareAndSet( current, newValue ) );
+	}
+
+	protected static void updateMin( final AtomicInteger value, final int newValue )
+	{
+		int current;
+
+		while ( newValue < ( current = value.get() ) && !value.compareAndSet( current, newValue ) );
+	}
+
+	@SuppressWarnings("rawtypes")
+	protected static class Hypothesis
+	{
+		final Model model;
+		int numInliers = 0;
+
+		public Hypothesis( final Model model ) { this.model = model; }
+	}
 }
@@ -56,4 +56,12 @@ public class RANSACParameters
     public float getMinInlierRatio() { return minInlierRatio; }
     public float getMinInlierFactor() { return minInlierFactor; }
     public int getNumIterations() { return numIterations; }
+
+    /**
+     * @return - all parameters as String, e.g. as part of a cache key
+     */
+    public String getDescription()
+    {
+    	return "ransac,epsilon=" + maxEpsilon + ",minInlierRatio=" + minInlierRatio + ",minInlierFactor=" + minInlierFactor + ",iterations=" + numIterations;
+    }
 }
@@ -0,0 +1,720 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+/**
+ * Global optimization that assembles the residuals of all corresponding points into one sparse
+ * least-squares system instead of relaxing the tiles one by one (TileConfiguration.optimize()).
+ * 
+ * Each Gauss-Newton step linearizes the residuals qA - qB of all correspondences with respect to an
+ * update of every tile that is not fixed (translation: 3, rigid: 6 (small rotation about the tile
+ * center and translation), affine: 12 parameters), solves the normal equations with block-Jacobi
+ * preconditioned conjugate gradients and fits each tile's model to the updated positions of its points.
+ * For translation and affine models a single step is the exact least-squares solution, rigid models
+ * are iterated until the error converges.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class SparseGlobalOpt
+{
+	public static int maxIterations = 50;
+	public static int maxCGIterations = 10000;
+	public static double cgTolerance = 1e-10;
+	public static double convergenceThreshold = 1e-6;
+
+	// relative Levenberg damping of the diagonal, keeps the system positive definite for unconstrained tiles
+	public static double damping = 1e-9;
+
+	final static int TRANSLATION = 3, RIGID = 6, AFFINE = 12;
+
+	/**
+	 * @param model - the transformation model
+	 * @return - true if the model can be solved by the sparse solver (translation, rigid and affine)
+	 */
+	@SuppressWarnings("rawtypes")
+	public static boolean isSupported( final Model model )
+	{
+		return numParameters( model ) > 0;
+	}
+
+	@SuppressWarnings("rawtypes")
+	protected static int numParameters( final Model model )
+	{
+		if ( model instanceof TranslationModel3D )
+			return TRANSLATION;
+		else if ( model instanceof RigidModel3D )
+			return RIGID;
+		else if ( model instanceof AffineModel3D )
+			return AFFINE;
+		else
+			return -1;
+	}
+
+	/**
+	 * Optimizes all tiles of the {@link TileConfiguration} (which should be pre-aligned) and sets their models
+	 * 
+	 * @param tc - the tiles and fixed tiles
+	 * @param pairs - the pairwise matches that connect the tiles
+	 * @param map - which tile belongs to which view
+	 * @return - the average, minimal and maximal error of the tiles (same definition as TileConfiguration)
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static < M extends Model< M > > double[] optimize(
+			final TileConfiguration tc,
+			final List< PairwiseMatch > pairs,
+			final HashMap< ViewId, Tile< M > > map )
+	{
+		// index all tiles, fixed tiles are part of the residuals but not of the system
+		final ArrayList< Tile< M > > tiles = new ArrayList< Tile< M > >();
+		final HashMap< Tile< M >, Integer > tileIndex = new HashMap< Tile< M >, Integer >();
+
+		for ( final Tile< ? > tile : tc.getTiles() )
+		{
+			tileIndex.put( (Tile< M >)tile, tiles.size() );
+			tiles.add( (Tile< M >)tile );
+		}
+
+		final int numTiles = tiles.size();
+		final int b = numParameters( tiles.get( 0 ).getModel() );
+
+		final int[] unknown = new int[ numTiles ];
+		int numUnknowns = 0;
+
+		for ( int t = 0; t < numTiles; ++t )
+			unknown[ t ] = tc.getFixedTiles().contains( tiles.get( t ) ) ? -1 : numUnknowns++;
+
+		if ( numUnknowns == numTiles )
+		{
+			// without a fixed tile the system is only defined up to a global transformation (an affine could even collapse)
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): No fixed tile, fixing the first tile for the sparse global optimization." );
+
+			unknown[ 0 ] = -1;
+			--numUnknowns;
+
+			for ( int t = 1; t < numTiles; ++t )
+				--unknown[ t ];
+		}
+
+		// collect all correspondences as primitive arrays
+		int numMatches = 0;
+
+		for ( final PairwiseMatch pair : pairs )
+			if ( tileIndex.containsKey( map.get( pair.getViewIdA() ) ) && tileIndex.containsKey( map.get( pair.getViewIdB() ) ) )
+				numMatches += pair.getInliers().size();
+
+		final int[] tileA = new int[ numMatches ];
+		final int[] tileB = new int[ numMatches ];
+		final double[] lA = new double[ numMatches * 3 ];
+		final double[] lB = new double[ numMatches * 3 ];
+		final double[] weights = new double[ numMatches ];
+
+		int k = 0;
+
+		for ( final PairwiseMatch pair : pairs )
+		{
+			final Integer a = tileIndex.get( map.get( pair.getViewIdA() ) );
+			final Integer bIndex = tileIndex.get( map.get( pair.getViewIdB() ) );
+
+			if ( a == null || bIndex == null )
+				continue;
+
+			for ( final PointMatchGeneric< Detection > pm : pair.getInliers() )
+			{
+				tileA[ k ] = a;
+				tileB[ k ] = bIndex;
+				System.arraycopy( pm.getPoint1().getL(), 0, lA, k * 3, 3 );
+				System.arraycopy( pm.getPoint2().getL(), 0, lB, k * 3, 3 );
+				weights[ k ] = pm.getWeight();
+				++k;
+			}
+		}
+
+		final double[] qA = new double[ numMatches * 3 ];
+		final double[] qB = new double[ numMatches * 3 ];
+
+		updateWorldCoordinates( tiles, tileA, tileB, lA, lB, qA, qB );
+		double[] errors = computeErrors( numTiles, tileA, tileB, qA, qB, weights );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Sparse global optimization of " + numUnknowns + " tiles (" +
+				( numUnknowns * b ) + " unknowns, " + numMatches + " correspondences), initial avg error: " + errors[ 0 ] + "px" );
+
+		final double[] center = new double[ numTiles * 3 ];
+
+		for ( int iteration = 0; iteration < maxIterations && numUnknowns > 0; ++iteration )
+		{
+			if ( b == RIGID )
+				computeCenters( numTiles, tileA, tileB, qA, qB, center );
+
+			// assemble the normal equations H x = g
+			final ArrayList< HashMap< Integer, double[] > > h = new ArrayList< HashMap< Integer, double[] > >( numUnknowns );
+			for ( int i = 0; i < numUnknowns; ++i )
+				h.add( new HashMap< Integer, double[] >() );
+
+			final double[] g = new double[ numUnknowns * b ];
+			final double[] jA = new double[ 3 * b ];
+			final double[] jB = new double[ 3 * b ];
+			final double[] r = new double[ 3 ];
+
+			for ( int m = 0; m < numMatches; ++m )
+			{
+				final int ua = unknown[ tileA[ m ] ];
+				final int ub = unknown[ tileB[ m ] ];
+
+				if ( ua < 0 && ub < 0 )
+					continue;
+
+				jacobian( b, lA, qA, center, m, tileA[ m ], jA );
+				jacobian( b, lB, qB, center, m, tileB[ m ], jB );
+
+				for ( int d = 0; d < 3; ++d )
+					r[ d ] = qA[ m * 3 + d ] - qB[ m * 3 + d ];
+
+				final double w = weights[ m ];
+
+				if ( ua >= 0 )
+				{
+					accumulate( h, ua, ua, jA, jA, w, b );
+					accumulateGradient( g, ua, jA, r, -w, b );
+				}
+
+				if ( ub >= 0 )
+				{
+					accumulate( h, ub, ub, jB, jB, w, b );
+					accumulateGradient( g, ub, jB, r, w, b );
+				}
+
+				if ( ua >= 0 && ub >= 0 )
+				{
+					accumulate( h, ua, ub, jA, jB, -w, b );
+					accumulate( h, ub, ua, jB, jA, -w, b );
+				}
+			}
+
+			final BlockSparseMatrix matrix = new BlockSparseMatrix( h, b );
+			final double[] x = new double[ numUnknowns * b ];
+			final int cgIterations = matrix.solvePCG( g, x, cgTolerance, maxCGIterations );
+
+			// move all points of each tile according to the update and fit the models to them
+			final ArrayList< ArrayList< PointMatch > > targets = new ArrayList< ArrayList< PointMatch > >( numTiles );
+			for ( int t = 0; t < numTiles; ++t )
+				targets.add( unknown[ t ] >= 0 ? new ArrayList< PointMatch >() : null );
+
+			for ( int m = 0; m < numMatches; ++m )
+			{
+				addTarget( targets.get( tileA[ m ] ), unknown[ tileA[ m ] ], b, x, lA, qA, center, m, tileA[ m ], weights[ m ], jA );
+				addTarget( targets.get( tileB[ m ] ), unknown[ tileB[ m ] ], b, x, lB, qB, center, m, tileB[ m ], weights[ m ], jB );
+			}
+
+			final ArrayList< M > previousModels = new ArrayList< M >( numTiles );
+
+			for ( int t = 0; t < numTiles; ++t )
+			{
+				final M model = tiles.get( t ).getModel();
+				previousModels.add( model.copy() );
+
+				if ( unknown[ t ] >= 0 )
+				{
+					try
+					{
+						model.fit( (List)targets.get( t ) );
+					}
+					catch ( NotEnoughDataPointsException e )
+					{
+						IOFunctions.println( "Could not update tile " + t + ": " + e );
+					}
+					catch ( IllDefinedDataPointsException e )
+					{
+						IOFunctions.println( "Could not update tile " + t + ": " + e );
+					}
+				}
+			}
+
+			updateWorldCoordinates( tiles, tileA, tileB, lA, lB, qA, qB );
+			final double[] newErrors = computeErrors( numTiles, tileA, tileB, qA, qB, weights );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Iteration " + ( iteration + 1 ) + ": avg error " + newErrors[ 0 ] + "px (" + cgIterations + " CG iterations)" );
+
+			// index 3 is the least-squares objective, which is not necessarily minimal for the mean distance
+			if ( newErrors[ 3 ] > errors[ 3 ] )
+			{
+				// the linearization overshot, keep the previous solution
+				for ( int t = 0; t < numTiles; ++t )
+					tiles.get( t ).getModel().set( previousModels.get( t ) );
+
+				updateWorldCoordinates( tiles, tileA, tileB, lA, lB, qA, qB );
+				break;
+			}
+
+			final double improvement = errors[ 3 ] - newErrors[ 3 ];
+			errors = newErrors;
+
+			// translation and affine are linear, one step is the least-squares solution
+			if ( b != RIGID || improvement <= convergenceThreshold * Math.max( newErrors[ 3 ], 1e-12 ) )
+				break;
+		}
+
+		return computeErrors( numTiles, tileA, tileB, qA, qB, weights );
+	}
+
+	@SuppressWarnings({ "rawtypes" })
+	protected static < M extends Model< M > > void updateWorldCoordinates(
+			final ArrayList< Tile< M > > tiles,
+			final int[] tileA, final int[] tileB,
+			final double[] lA, final double[] lB,
+			final double[] qA, final double[] qB )
+	{
+		final double[] tmp = new double[ 3 ];
+
+		for ( int m = 0; m < tileA.length; ++m )
+		{
+			System.arraycopy( lA, m * 3, tmp, 0, 3 );
+			( (Model)tiles.get( tileA[ m ] ).getModel() ).applyInPlace( tmp );
+			System.arraycopy( tmp, 0, qA, m * 3, 3 );
+
+			System.arraycopy( lB, m * 3, tmp, 0, 3 );
+			( (Model)tiles.get( tileB[ m ] ).getModel() ).applyInPlace( tmp );
+			System.arraycopy( tmp, 0, qB, m * 3, 3 );
+		}
+	}
+
+	/**
+	 * The error of a tile is the weighted mean distance of its correspondences, the error of the
+	 * configuration the mean error of all tiles (see TileConfiguration)
+	 * 
+	 * @return - avg, min and max error, and the weighted sum of squared distances
+	 */
+	protected static double[] computeErrors( final int numTiles, final int[] tileA, final int[] tileB, final double[] qA, final double[] qB, final double[] weights )
+	{
+		final double[] sum = new double[ numTiles ];
+		final double[] sumWeights = new double[ numTiles ];
+		double sumSquared = 0;
+
+		for ( int m = 0; m < tileA.length; ++m )
+		{
+			final double dx = qA[ m * 3 ] - qB[ m * 3 ];
+			final double dy = qA[ m * 3 + 1 ] - qB[ m * 3 + 1 ];
+			final double dz = qA[ m * 3 + 2 ] - qB[ m * 3 + 2 ];
+			final double distance = Math.sqrt( dx * dx + dy * dy + dz * dz );
+
+			sumSquared += weights[ m ] * distance * distance;
+
+			sum[ tileA[ m ] ] += distance * weights[ m ];
+			sumWeights[ tileA[ m ] ] += weights[ m ];
+			sum[ tileB[ m ] ] += distance * weights[ m ];
+			sumWeights[ tileB[ m ] ] += weights[ m ];
+		}
+
+		double avg = 0, min = Double.MAX_VALUE, max = 0;
+
+		for ( int t = 0; t < numTiles; ++t )
+		{
+			final double error = sumWeights[ t ] > 0 ? sum[ t ] / sumWeights[ t ] : 0;
+
+			avg += error;
+			min = Math.min( min, error );
+			max = Math.max( max, error );
+		}
+
+		return new double[]{ avg / numTiles, min, max, sumSquared };
+	}
+
+	protected static void computeCenters( final int numTiles, final int[] tileA, final int[] tileB, final double[] qA, final double[] qB, final double[] center )
+	{
+		final int[] count = new int[ numTiles ];
+		Arrays.fill( center, 0 );
+
+		for ( int m = 0; m < tileA.length; ++m )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				center[ tileA[ m ] * 3 + d ] += qA[ m * 3 + d ];
+				center[ tileB[ m ] * 3 + d ] += qB[ m * 3 + d ];
+			}
+
+			++count[ tileA[ m ] ];
+			++count[ tileB[ m ] ];
+		}
+
+		for ( int t = 0; t < numTiles; ++t )
+			for ( int d = 0; d < 3; ++d )
+				center[ t * 3 + d ] /= Math.max( 1, count[ t ] );
+	}
+
+	/**
+	 * Derivative of the world coordinate of point m (3 rows) with respect to the b parameters of its tile
+	 */
+	protected static void jacobian( final int b, final double[] l, final double[] q, final double[] center, final int m, final int tile, final double[] j )
+	{
+		Arrays.fill( j, 0 );
+
+		if ( b == TRANSLATION )
+		{
+			j[ 0 ] = j[ 4 ] = j[ 8 ] = 1;
+		}
+		else if ( b == RIGID )
+		{
+			// small rotation w about the tile center: w x (q - c) + t
+			final double x = q[ m * 3 ] - center[ tile * 3 ];
+			final double y = q[ m * 3 + 1 ] - center[ tile * 3 + 1 ];
+			final double z = q[ m * 3 + 2 ] - center[ tile * 3 + 2 ];
+
+			j[ 1 ] = z;  j[ 2 ] = -y; j[ 3 ] = 1;
+			j[ 6 ] = -z; j[ 8 ] = x;  j[ 10 ] = 1;
+			j[ 12 ] = y; j[ 13 ] = -x; j[ 17 ] = 1;
+		}
+		else
+		{
+			// update of the row-packed 3x4 matrix, applied to the local coordinate
+			for ( int r = 0; r < 3; ++r )
+			{
+				final int o = r * b + r * 4;
+				j[ o ] = l[ m * 3 ];
+				j[ o + 1 ] = l[ m * 3 + 1 ];
+				j[ o + 2 ] = l[ m * 3 + 2 ];
+				j[ o + 3 ] = 1;
+			}
+		}
+	}
+
+	/**
+	 * H[ row, col ] += w * ju^T jv
+	 */
+	protected static void accumulate( final ArrayList< HashMap< Integer, double[] > > h, final int row, final int col, final double[] ju, final double[] jv, final double w, final int b )
+	{
+		double[] block = h.get( row ).get( col );
+
+		if ( block == null )
+		{
+			block = new double[ b * b ];
+			h.get( row ).put( col, block );
+		}
+
+		for ( int i = 0; i < b; ++i )
+			for ( int j = 0; j < b; ++j )
+			{
+				final double v = ju[ i ] * jv[ j ] + ju[ b + i ] * jv[ b + j ] + ju[ 2 * b + i ] * jv[ 2 * b + j ];
+
+				if ( v != 0 )
+					block[ i * b + j ] += w * v;
+			}
+	}
+
+	/**
+	 * g[ row ] += w * j^T r
+	 */
+	protected static void accumulateGradient( final double[] g, final int row, final double[] j, final double[] r, final double w, final int b )
+	{
+		for ( int i = 0; i < b; ++i )
+			g[ row * b + i ] += w * ( j[ i ] * r[ 0 ] + j[ b + i ] * r[ 1 ] + j[ 2 * b + i ] * r[ 2 ] );
+	}
+
+	protected static void addTarget(
+			final ArrayList< PointMatch > targets, final int unknown, final int b, final double[] x,
+			final double[] l, final double[] q, final double[] center, final int m, final int tile, final double weight, final double[] j )
+	{
+		if ( unknown < 0 )
+			return;
+
+		jacobian( b, l, q, center, m, tile, j );
+
+		final double[] target = new double[ 3 ];
+
+		for ( int r = 0; r < 3; ++r )
+		{
+			double v = q[ m * 3 + r ];
+
+			for ( int i = 0; i < b; ++i )
+				v += j[ r * b + i ] * x[ unknown * b + i ];
+
+			target[ r ] = v;
+		}
+
+		targets.add( new PointMatch( new Point( new double[]{ l[ m * 3 ], l[ m * 3 + 1 ], l[ m * 3 + 2 ] } ), new Point( target ), weight ) );
+	}
+
+	/**
+	 * A symmetric matrix of b x b blocks stored row-wise
+	 */
+	public static class BlockSparseMatrix
+	{
+		final int n, b;
+		final int[][] columns;
+		final double[][][] blocks;
+		final double[][] preconditioner;
+
+		public BlockSparseMatrix( final ArrayList< HashMap< Integer, double[] > > rows, final int b )
+		{
+			this.n = rows.size();
+			this.b = b;
+			this.columns = new int[ n ][];
+			this.blocks = new double[ n ][][];
+			this.preconditioner = new double[ n ][];
+
+			for ( int i = 0; i < n; ++i )
+			{
+				final HashMap< Integer, double[] > row = rows.get( i );
+
+				columns[ i ] = new int[ row.size() ];
+				blocks[ i ] = new double[ row.size() ][];
+
+				int c = 0;
+
+				for ( final Entry< Integer, double[] > entry : row.entrySet() )
+				{
+					columns[ i ][ c ] = entry.getKey();
+					blocks[ i ][ c ] = entry.getValue();
+					++c;
+				}
+
+				double[] diagonal = row.get( i );
+
+				if ( diagonal == null )
+				{
+					diagonal = new double[ b * b ];
+					row.put( i, diagonal );
+				}
+
+				// damping
+				double trace = 0;
+				for ( int d = 0; d < b; ++d )
+					trace += diagonal[ d * b + d ];
+
+				for ( int d = 0; d < b; ++d )
+					diagonal[ d * b + d ] += damping * ( diagonal[ d * b + d ] + trace / b ) + 1e-12;
+
+				preconditioner[ i ] = invert( diagonal, b );
+			}
+		}
+
+		public void multiply( final double[] x, final double[] y )
+		{
+			Arrays.fill( y, 0 );
+
+			for ( int i = 0; i < n; ++i )
+				for ( int c = 0; c < columns[ i ].length; ++c )
+				{
+					final double[] block = blocks[ i ][ c ];
+					final int xo = columns[ i ][ c ] * b;
+
+					for ( int r = 0; r < b; ++r )
+					{
+						double v = 0;
+
+						for ( int s = 0; s < b; ++s )
+							v += block[ r * b + s ] * x[ xo + s ];
+
+						y[ i * b + r ] += v;
+					}
+				}
+		}
+
+		public void precondition( final double[] r, final double[] z )
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				final double[] inverse = preconditioner[ i ];
+
+				for ( int u = 0; u < b; ++u )
+				{
+					double v = 0;
+
+					for ( int s = 0; s < b; ++s )
+						v += inverse[ u * b + s ] * r[ i * b + s ];
+
+					z[ i * b + u ] = v;
+				}
+			}
+		}
+
+		/**
+		 * Preconditioned conjugate gradients
+		 * 
+		 * @param rhs - right hand side
+		 * @param x - the solution (initialized with zero)
+		 * @param tolerance - relative residual norm
+		 * @param maxIterations - maximal number of iterations
+		 * @return - the number of iterations
+		 */
+		public int solvePCG( final double[] rhs, final double[] x, final double tolerance, final int maxIterations )
+		{
+			final int size = n * b;
+			final double[] r = rhs.clone();
+			final double[] z = new double[ size ];
+			final double[] p = new double[ size ];
+			final double[] ap = new double[ size ];
+
+			Arrays.fill( x, 0 );
+
+			final double normRHS = Math.sqrt( dot( rhs, rhs ) );
+
+			if ( normRHS == 0 )
+				return 0;
+
+			precondition( r, z );
+			System.arraycopy( z, 0, p, 0, size );
+			double rz = dot( r, z );
+
+			int i = 0;
+
+			for ( ; i < maxIterations; ++i )
+			{
+				multiply( p, ap );
+
+				final double pap = dot( p, ap );
+
+				if ( pap <= 0 )
+					break;
+
+				final double alpha = rz / pap;
+
+				for ( int j = 0; j < size; ++j )
+				{
+					x[ j ] += alpha * p[ j ];
+					r[ j ] -= alpha * ap[ j ];
+				}
+
+				if ( Math.sqrt( dot( r, r ) ) <= tolerance * normRHS )
+				{
+					++i;
+					break;
+				}
+
+				precondition( r, z );
+
+				final double rzNew = dot( r, z );
+				final double beta = rzNew / rz;
+				rz = rzNew;
+
+				for ( int j = 0; j < size; ++j )
+					p[ j ] = z[ j ] + beta * p[ j ];
+			}
+
+			return i;
+		}
+
+		protected static double dot( final double[] a, final double[] b )
+		{
+			double sum = 0;
+
+			for ( int i = 0; i < a.length; ++i )
+				sum += a[ i ] * b[ i ];
+
+			return sum;
+		}
+
+		/**
+		 * Gauss-Jordan inversion of a small dense block with partial pivoting, falls back to the
+		 * inverse of the diagonal if the block is singular
+		 */
+		protected static double[] invert( final double[] block, final int b )
+		{
+			final double[] a = block.clone();
+			final double[] inv = new double[ b * b ];
+
+			for ( int i = 0; i < b; ++i )
+				inv[ i * b + i ] = 1;
+
+			for ( int c = 0; c < b; ++c )
+			{
+				int pivot = c;
+
+				for ( int r = c + 1; r < b; ++r )
+					if ( Math.abs( a[ r * b + c ] ) > Math.abs( a[ pivot * b + c ] ) )
+						pivot = r;
+
+				if ( Math.abs( a[ pivot * b + c ] ) < 1e-300 )
+				{
+					Arrays.fill( inv, 0 );
+
+					for ( int i = 0; i < b; ++i )
+						inv[ i * b + i ] = block[ i * b + i ] != 0 ? 1.0 / block[ i * b + i ] : 1.0;
+
+					return inv;
+				}
+
+				if ( pivot != c )
+				{
+					swapRows( a, c, pivot, b );
+					swapRows( inv, c, pivot, b );
+				}
+
+				final double f = 1.0 / a[ c * b + c ];
+
+				for ( int s = 0; s < b; ++s )
+				{
+					a[ c * b + s ] *= f;
+					inv[ c * b + s ] *= f;
+				}
+
+				for ( int r = 0; r < b; ++r )
+				{
+					if ( r == c )
+						continue;
+
+					final double factor = a[ r * b + c ];
+
+					if ( factor == 0 )
+						continue;
+
+					for ( int s = 0; s < b; ++s )
+					{
+						a[ r * b + s ] -= factor * a[ c * b + s ];
+						inv[ r * b + s ] -= factor * inv[ c * b + s ];
+					}
+				}
+			}
+
+			return inv;
+		}
+
+		protected static void swapRows( final double[] a, final int r0, final int r1, final int b )
+		{
+			for ( int s = 0; s < b; ++s )
+			{
+				final double tmp = a[ r0 * b + s ];
+				a[ r0 * b + s ] = a[ r1 * b + s ];
+				a[ r1 * b + s ] = tmp;
+			}
+		}
+	}
+}
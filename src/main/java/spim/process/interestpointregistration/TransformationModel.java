@@ -81,6 +81,15 @@ public class TransformationModel
 		return model;
 	}
 
+	/**
+	 * @return - true if the model (including the regularization) can map a rotated point set just as well, i.e. the
+	 * inliers found with it do not change if one of the point sets is rotated
+	 */
+	public boolean isRotationInvariant()
+	{
+		return modelIndex > 0 && ( !regularize || regularizedModelIndex > 1 );
+	}
+
 	public boolean queryRegularizedModel()
 	{
 		final GenericDialog gd = new GenericDialog( "Regularization Parameters" );
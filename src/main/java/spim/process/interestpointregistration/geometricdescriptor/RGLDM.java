@@ -60,12 +60,21 @@ public class RGLDM extends InterestPointRegistration
 	@Override
 	protected RGLDMPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description )
 	{
-		return new RGLDMPairwise( pair, model, description, ransacParams, parameters );
+		return new RGLDMPairwise( pair, model, description, ransacParams, parameters, getDescriptorCache() );
 	}
 
 	@Override
 	protected TransformationModel getTransformationModel() { return model; }
 
+	@Override
+	protected String getMatchingParameters()
+	{
+		return "rgldm,model=" + model.getDescription() +
+				",neighbors=" + parameters.getNumNeighbors() + ",redundancy=" + parameters.getRedundancy() +
+				",significance=" + parameters.getRatioOfDistance() + ",difference=" + parameters.getDifferenceThreshold() +
+				"," + ransacParams.getDescription();
+	}
+
 	@Override
 	public RGLDM newInstance(
 			final SpimData2 spimData,
@@ -23,8 +23,11 @@ package spim.process.interestpointregistration.geometricdescriptor;
 
 import fiji.util.KDTree;
 import fiji.util.NNearestNeighborSearch;
+import fiji.util.node.Leaf;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
 
 import mpicbg.pointdescriptor.AbstractPointDescriptor;
 import mpicbg.pointdescriptor.SimplePointDescriptor;
@@ -36,6 +39,16 @@ import mpicbg.pointdescriptor.similarity.SquareDistance;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.process.interestpointregistration.Detection;
 
+/**
+ * Matches redundant geometric local descriptors (RGLDM) of two views.
+ * 
+ * The descriptor distance is the minimal square distance between all subsets of numNeighbors out of
+ * numNeighbors + redundancy neighbors. Every subset of a descriptor is therefore embedded as a point in a
+ * 3*numNeighbors-dimensional KDTree, so the best and second best descriptor can be found in O(log m) instead of
+ * comparing against all m descriptors. The descriptors found this way are verified using the exact descriptor distance.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
 public class RGLDMMatcher
 {
 	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
@@ -46,22 +59,260 @@ public class RGLDMMatcher
 			final double ratioOfDistance,
 			final double differenceThreshold ) 
 	{
-		/* create KDTrees */	
-		final KDTree< Detection > treeA = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > treeB = new KDTree< Detection >( nodeListB );
-		
+		return extractCorrespondenceCandidates( nodeListA, nodeListB, numNeighbors, redundancy, ratioOfDistance, differenceThreshold, RGLDMParameters.descriptorKDTree );
+	}
+
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ArrayList< Detection > nodeListA, 
+			final ArrayList< Detection > nodeListB, 
+			final int numNeighbors,
+			final int redundancy,
+			final double ratioOfDistance,
+			final double differenceThreshold,
+			final boolean useKDTree ) 
+	{
+		final ViewDescriptors viewA = createViewDescriptors( nodeListA, numNeighbors, redundancy );
+		final ViewDescriptors viewB = createViewDescriptors( nodeListB, numNeighbors, redundancy );
+
+		return findCorrespondingDescriptors( viewA, viewB, ratioOfDistance, differenceThreshold, useKDTree );
+	}
+
+	/**
+	 * @param viewA - the descriptors of the first view
+	 * @param viewB - the descriptors of the second view (must be created with the same numNeighbors and redundancy)
+	 * @param nTimesBetter - how much better the best match has to be compared to the second best
+	 * @param differenceThreshold - the maximal descriptor distance
+	 * @param useKDTree - use the KDTree in descriptor space (true) or compare all descriptors (false)
+	 * @return - the correspondence candidates
+	 */
+	public static ArrayList< PointMatchGeneric< Detection > > findCorrespondingDescriptors(
+			final ViewDescriptors viewA,
+			final ViewDescriptors viewB,
+			final double nTimesBetter,
+			final double differenceThreshold,
+			final boolean useKDTree )
+	{
+		if ( !useKDTree || viewB.descriptors.size() < 2 )
+			return findCorrespondingDescriptors( viewA.descriptors, viewB.descriptors, nTimesBetter, differenceThreshold );
+
+		final ArrayList< PointMatchGeneric< Detection > > correspondenceCandidates = new ArrayList< PointMatchGeneric< Detection > >();
+
+		final int[][] subsets = viewA.subsets;
+		final NNearestNeighborSearch< SubsetVector > nnsearch = new NNearestNeighborSearch< SubsetVector >( viewB.getDescriptorTree() );
+
+		// the n closest vectors contain at least two different descriptors, as each descriptor contributes subsets.length vectors
+		final int numResults = subsets.length + 1;
+
+		final SubsetVector query = new SubsetVector( new float[ viewA.numNeighbors * 3 ], -1 );
+		final HashSet< Integer > owners = new HashSet< Integer >();
+
+		for ( int i = 0; i < viewA.descriptors.size(); ++i )
+		{
+			final SimplePointDescriptor< Detection > descriptorA = viewA.descriptors.get( i );
+
+			// collect all descriptors that are among the closest for any subset of descriptorA
+			owners.clear();
+
+			for ( final int[] subset : subsets )
+			{
+				viewA.fill( i, subset, query.v );
+
+				for ( final SubsetVector v : nnsearch.findNNearestNeighbors( query, numResults ) )
+					owners.add( v.owner );
+			}
+
+			// verify using the exact descriptor distance
+			double bestDifference = Double.MAX_VALUE;
+			double secondBestDifference = Double.MAX_VALUE;
+			SimplePointDescriptor< Detection > bestMatch = null;
+
+			for ( final int owner : owners )
+			{
+				final SimplePointDescriptor< Detection > descriptorB = viewB.descriptors.get( owner );
+				final double difference = descriptorA.descriptorDistance( descriptorB );
+
+				if ( difference < bestDifference )
+				{
+					secondBestDifference = bestDifference;
+					bestDifference = difference;
+					bestMatch = descriptorB;
+				}
+				else if ( difference < secondBestDifference )
+				{
+					secondBestDifference = difference;
+				}
+			}
+
+			if ( bestDifference < differenceThreshold && bestDifference * nTimesBetter < secondBestDifference )
+				correspondenceCandidates.add( new PointMatchGeneric< Detection >( descriptorA.getBasisPoint(), bestMatch.getBasisPoint() ) );
+		}
+
+		return correspondenceCandidates;
+	}
+
+	/**
+	 * Creates the KDTree and the descriptors for one list of detections, the result only depends on the detections,
+	 * numNeighbors and redundancy and can therefore be reused for all pairs the list is part of
+	 * 
+	 * @param nodeList - the detections
+	 * @param numNeighbors - number of neighbors for each descriptor
+	 * @param redundancy - redundancy of the descriptor matching
+	 * @return - one descriptor per detection
+	 */
+	public static ViewDescriptors createViewDescriptors(
+			final ArrayList< Detection > nodeList,
+			final int numNeighbors,
+			final int redundancy )
+	{
+		/* create KDTree */
+		final KDTree< Detection > tree = new KDTree< Detection >( nodeList );
+
 		/* extract point descriptors */
 		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
 		final int numRequiredNeighbors = matcher.getRequiredNumNeighbors();
 		
 		final SimilarityMeasure similarityMeasure = new SquareDistance();
-		
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsA = createSimplePointDescriptors( treeA, nodeListA, numRequiredNeighbors, matcher, similarityMeasure );
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsB = createSimplePointDescriptors( treeB, nodeListB, numRequiredNeighbors, matcher, similarityMeasure );
 
-		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
+		final ArrayList< double[] > neighbors = new ArrayList< double[] >();
+		final ArrayList< SimplePointDescriptor< Detection > > descriptors =
+				createSimplePointDescriptors( tree, nodeList, numRequiredNeighbors, matcher, similarityMeasure, neighbors );
+
+		return new ViewDescriptors( descriptors, neighbors, numNeighbors, numRequiredNeighbors );
 	}
-	
+
+	/**
+	 * The descriptors of one view and the local coordinates of their neighbors (ordered by distance). The KDTree
+	 * over all subsets of neighbors is only built if the view is matched as second view of a pair.
+	 */
+	public static class ViewDescriptors
+	{
+		final ArrayList< SimplePointDescriptor< Detection > > descriptors;
+		final ArrayList< double[] > neighbors;
+		final int numNeighbors;
+		final int[][] subsets;
+
+		KDTree< SubsetVector > descriptorTree;
+
+		public ViewDescriptors(
+				final ArrayList< SimplePointDescriptor< Detection > > descriptors,
+				final ArrayList< double[] > neighbors,
+				final int numNeighbors,
+				final int numRequiredNeighbors )
+		{
+			this.descriptors = descriptors;
+			this.neighbors = neighbors;
+			this.numNeighbors = numNeighbors;
+			this.subsets = subsets( numRequiredNeighbors, numNeighbors );
+		}
+
+		public ArrayList< SimplePointDescriptor< Detection > > getDescriptors() { return descriptors; }
+
+		public synchronized KDTree< SubsetVector > getDescriptorTree()
+		{
+			if ( descriptorTree == null )
+			{
+				final ArrayList< SubsetVector > vectors = new ArrayList< SubsetVector >( descriptors.size() * subsets.length );
+
+				for ( int i = 0; i < descriptors.size(); ++i )
+					for ( final int[] subset : subsets )
+					{
+						final float[] v = new float[ numNeighbors * 3 ];
+						fill( i, subset, v );
+						vectors.add( new SubsetVector( v, i ) );
+					}
+
+				descriptorTree = new KDTree< SubsetVector >( vectors );
+			}
+
+			return descriptorTree;
+		}
+
+		/**
+		 * Writes the local coordinates of a subset of neighbors of descriptor i into v
+		 */
+		protected void fill( final int i, final int[] subset, final float[] v )
+		{
+			final double[] n = neighbors.get( i );
+
+			for ( int j = 0; j < subset.length; ++j )
+				for ( int d = 0; d < 3; ++d )
+					v[ j * 3 + d ] = (float)n[ subset[ j ] * 3 + d ];
+		}
+	}
+
+	/**
+	 * One subset of neighbors of a descriptor as point in descriptor space
+	 */
+	public static class SubsetVector implements Leaf< SubsetVector >
+	{
+		final float[] v;
+		final int owner;
+
+		public SubsetVector( final float[] v, final int owner )
+		{
+			this.v = v;
+			this.owner = owner;
+		}
+
+		@Override
+		public boolean isLeaf() { return true; }
+
+		@Override
+		public float distanceTo( final SubsetVector o )
+		{
+			double sum = 0;
+
+			for ( int d = 0; d < v.length; ++d )
+			{
+				final double diff = o.v[ d ] - v[ d ];
+				sum += diff * diff;
+			}
+
+			return (float)Math.sqrt( sum );
+		}
+
+		@Override
+		public float get( final int k ) { return v[ k ]; }
+
+		@Override
+		public int getNumDimensions() { return v.length; }
+
+		@Override
+		public SubsetVector[] createArray( final int n ) { return new SubsetVector[ n ]; }
+	}
+
+	/**
+	 * @return - all subsets of size k of the indices 0...n-1, each ordered ascending
+	 */
+	protected static int[][] subsets( final int n, final int k )
+	{
+		final ArrayList< int[] > subsets = new ArrayList< int[] >();
+		final int[] subset = new int[ k ];
+
+		for ( int i = 0; i < k; ++i )
+			subset[ i ] = i;
+
+		while ( true )
+		{
+			subsets.add( subset.clone() );
+
+			// find the rightmost index that can be increased
+			int i = k - 1;
+			while ( i >= 0 && subset[ i ] == n - k + i )
+				--i;
+
+			if ( i < 0 )
+				break;
+
+			++subset[ i ];
+
+			for ( int j = i + 1; j < k; ++j )
+				subset[ j ] = subset[ j - 1 ] + 1;
+		}
+
+		return subsets.toArray( new int[ subsets.size() ][] );
+	}
+
 	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
 			final ArrayList<D> descriptorsA,
 			final ArrayList<D> descriptorsB,
@@ -117,6 +368,15 @@ public class RGLDMMatcher
 
 	protected static ArrayList< SimplePointDescriptor<Detection> > createSimplePointDescriptors( final KDTree< Detection > tree, final ArrayList< Detection > basisPoints, 
 			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure )
+	{
+		return createSimplePointDescriptors( tree, basisPoints, numNeighbors, matcher, similarityMeasure, null );
+	}
+
+	/**
+	 * @param localNeighbors - if not null, the local coordinates of the neighbors of each descriptor are added (ordered by distance)
+	 */
+	protected static ArrayList< SimplePointDescriptor<Detection> > createSimplePointDescriptors( final KDTree< Detection > tree, final ArrayList< Detection > basisPoints, 
+			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure, final ArrayList< double[] > localNeighbors )
 	{
 		final NNearestNeighborSearch< Detection > nnsearch = new NNearestNeighborSearch< Detection >( tree );
 		final ArrayList< SimplePointDescriptor<Detection> > descriptors = new ArrayList< SimplePointDescriptor<Detection> > ( );
@@ -133,6 +393,17 @@ public class RGLDMMatcher
 			try
 			{
 				descriptors.add( new SimplePointDescriptor<Detection>( p, neighbors, similarityMeasure, matcher ) );
+
+				if ( localNeighbors != null )
+				{
+					final double[] local = new double[ neighbors.size() * 3 ];
+
+					for ( int n = 0; n < neighbors.size(); ++n )
+						for ( int d = 0; d < 3; ++d )
+							local[ n * 3 + d ] = neighbors.get( n ).getL()[ d ] - p.getL()[ d ];
+
+					localNeighbors.add( local );
+				}
 			}
 			catch ( NoSuitablePointsException e )
 			{
@@ -143,4 +414,70 @@ public class RGLDMMatcher
 		return descriptors;
 	}
 
+	/**
+	 * Compares the candidates found using the KDTree in descriptor space with the brute force comparison
+	 * on a random point cloud and a rigidly transformed, noisy copy of it
+	 */
+	public static void main( String[] args )
+	{
+		final int numPoints = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 20000;
+		final Random rnd = new Random( 3457 );
+
+		// rotation of 10 degrees around z, plus a translation
+		final double cos = Math.cos( Math.toRadians( 10 ) );
+		final double sin = Math.sin( Math.toRadians( 10 ) );
+
+		final ArrayList< Detection > listA = new ArrayList< Detection >();
+		final ArrayList< Detection > listB = new ArrayList< Detection >();
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final double[] l = new double[]{ rnd.nextDouble() * 1000, rnd.nextDouble() * 1000, rnd.nextDouble() * 200 };
+			listA.add( new Detection( i, l.clone() ) );
+
+			// 10% of the points are missing in the second view
+			if ( rnd.nextDouble() < 0.9 )
+			{
+				final double[] t = new double[]{
+						cos * l[ 0 ] - sin * l[ 1 ] + 50,
+						sin * l[ 0 ] + cos * l[ 1 ] - 20,
+						l[ 2 ] + 10 };
+
+				for ( int d = 0; d < 3; ++d )
+					t[ d ] += rnd.nextGaussian() * 0.2;
+
+				listB.add( new Detection( i, t ) );
+			}
+		}
+
+		final ViewDescriptors viewA = createViewDescriptors( listA, RGLDMParameters.numNeighbors, RGLDMParameters.redundancy );
+		final ViewDescriptors viewB = createViewDescriptors( listB, RGLDMParameters.numNeighbors, RGLDMParameters.redundancy );
+
+		long time = System.currentTimeMillis();
+		final ArrayList< PointMatchGeneric< Detection > > bruteForce = findCorrespondingDescriptors( viewA, viewB, RGLDMParameters.ratioOfDistance, RGLDMParameters.differenceThreshold, false );
+		final long timeBruteForce = System.currentTimeMillis() - time;
+
+		time = System.currentTimeMillis();
+		final ArrayList< PointMatchGeneric< Detection > > kdTree = findCorrespondingDescriptors( viewA, viewB, RGLDMParameters.ratioOfDistance, RGLDMParameters.differenceThreshold, true );
+		final long timeKDTree = System.currentTimeMillis() - time;
+
+		final HashSet< String > setBruteForce = new HashSet< String >();
+		for ( final PointMatchGeneric< Detection > pm : bruteForce )
+			setBruteForce.add( pm.getPoint1().getId() + "-" + pm.getPoint2().getId() );
+
+		int same = 0, correct = 0;
+		for ( final PointMatchGeneric< Detection > pm : kdTree )
+		{
+			if ( setBruteForce.contains( pm.getPoint1().getId() + "-" + pm.getPoint2().getId() ) )
+				++same;
+
+			if ( pm.getPoint1().getId() == pm.getPoint2().getId() )
+				++correct;
+		}
+
+		System.out.println( "points: " + listA.size() + " / " + listB.size() );
+		System.out.println( "brute force: " + bruteForce.size() + " candidates in " + timeBruteForce + " ms" );
+		System.out.println( "kd-tree: " + kdTree.size() + " candidates (" + correct + " correct) in " + timeKDTree + " ms" );
+		System.out.println( "identical candidates: " + same + " (" + ( 100.0 * same / Math.max( 1, bruteForce.size() ) ) + "% of brute force)" );
+	}
 }
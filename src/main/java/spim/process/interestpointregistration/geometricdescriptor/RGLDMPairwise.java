@@ -25,15 +25,18 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.concurrent.Callable;
 
+import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import net.imglib2.util.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.geometricdescriptor.RGLDMMatcher.ViewDescriptors;
 
 public class RGLDMPairwise implements Callable< PairwiseMatch >
 {	
@@ -42,46 +45,66 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 	final RANSACParameters rp;
 	final RGLDMParameters dp;
 	final String comparison;
+	final DescriptorCache cache;
 
-	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp  )
+	/**
+	 * @param cache - shares the descriptors of each view between all pairs, can be null
+	 */
+	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp, final DescriptorCache cache )
 	{
 		this.pair = pair;
 		this.rp = rp;
 		this.dp = dp;
 		this.model = model;
 		this.comparison = comparison;
+		this.cache = cache;
+	}
+
+	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp  )
+	{
+		this( pair, model, comparison, rp, dp, null );
 	}
 	
 	@Override
 	public PairwiseMatch call()
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final int sizeA = pair.getMatchPointListA().getInterestPointArray().size();
+		final int sizeB = pair.getMatchPointListB().getInterestPointArray().size();
 
-		if ( listA.size() < dp.getNumNeighbors() + dp.getRedundancy() + 1 || listB.size() < dp.getNumNeighbors() + dp.getRedundancy() + 1 )
+		if ( sizeA < dp.getNumNeighbors() + dp.getRedundancy() + 1 || sizeB < dp.getNumNeighbors() + dp.getRedundancy() + 1 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": "
 					+ "Not enough detections to match (" + (dp.getNumNeighbors() + dp.getRedundancy() + 1) +
-					" required per list, |listA|= " + listA.size() + ", |listB|= " + listB.size() + ")" );
+					" required per list, |listA|= " + sizeA + ", |listB|= " + sizeB + ")" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
 			pair.setInliers( new ArrayList< PointMatchGeneric< Detection > >(), Double.NaN );
 			return pair;
 		}
 
-		final RGLDMMatcher matcher = new RGLDMMatcher();
-		final ArrayList< PointMatchGeneric< Detection > > candidates = matcher.extractCorrespondenceCandidates( 
-				listA, 
-				listB,
-				dp.getNumNeighbors(),
-				dp.getRedundancy(),
-				dp.getRatioOfDistance(),
-				dp.getDifferenceThreshold() );
+		final ArrayList< PointMatchGeneric< Detection > > candidates;
+
+		if ( cache == null )
+		{
+			final RGLDMMatcher matcher = new RGLDMMatcher();
+			candidates = matcher.extractCorrespondenceCandidates( 
+					pair.getMatchPointListA().createDetections(), 
+					pair.getMatchPointListB().createDetections(),
+					dp.getNumNeighbors(),
+					dp.getRedundancy(),
+					dp.getRatioOfDistance(),
+					dp.getDifferenceThreshold(),
+					dp.useDescriptorKDTree() );
+		}
+		else
+		{
+			// the descriptors are shared with all other pairs of these views, RANSAC needs its own detections
+			candidates = DescriptorCache.detachCandidates( RGLDMMatcher.findCorrespondingDescriptors(
+					getDescriptors( pair.getMatchPointListA(), pair.getViewIdA() ),
+					getDescriptors( pair.getMatchPointListB(), pair.getViewIdB() ),
+					dp.getRatioOfDistance(),
+					dp.getDifferenceThreshold(),
+					dp.useDescriptorKDTree() ) );
+		}
 
 		pair.setCandidates( candidates );
 
@@ -97,4 +120,17 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 		return pair;
 	}
 
+	protected ViewDescriptors getDescriptors( final MatchPointList list, final ViewId viewId )
+	{
+		return cache.get(
+				DescriptorCache.key( viewId, list.getChannelProcessed().getLabel(), "rgldm,neighbors=" + dp.getNumNeighbors() + ",redundancy=" + dp.getRedundancy() ),
+				new Callable< ViewDescriptors >()
+				{
+					@Override
+					public ViewDescriptors call()
+					{
+						return RGLDMMatcher.createViewDescriptors( list.createDetections(), dp.getNumNeighbors(), dp.getRedundancy() );
+					}
+				} );
+	}
 }
@@ -28,9 +28,15 @@ public class RGLDMParameters
 
 	public static int numNeighbors = 3;
 	public static int redundancy = 1;
+
+	/**
+	 * find the best and second best descriptor using a KDTree in descriptor space instead of comparing all descriptors
+	 */
+	public static boolean descriptorKDTree = true;
 	
 	protected final float dt, rod;
 	protected final int nn, re;
+	protected final boolean kd;
 	
 	public RGLDMParameters()
 	{
@@ -38,6 +44,7 @@ public class RGLDMParameters
 		this.rod = ratioOfDistance;
 		this.nn = numNeighbors;
 		this.re = redundancy;
+		this.kd = descriptorKDTree;
 	}
 	
 	public RGLDMParameters( final float differenceThreshold, final float ratioOfDistance, final int numNeighbors, final int redundancy )
@@ -46,10 +53,12 @@ public class RGLDMParameters
 		this.rod = ratioOfDistance;
 		this.nn = numNeighbors;
 		this.re = redundancy;
+		this.kd = descriptorKDTree;
 	}
 	
 	public float getDifferenceThreshold() { return dt; }
 	public float getRatioOfDistance() { return rod; }
 	public int getNumNeighbors() { return nn; }
 	public int getRedundancy() { return re; }
+	public boolean useDescriptorKDTree() { return kd; }
 }
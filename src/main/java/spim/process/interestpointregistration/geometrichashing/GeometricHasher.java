@@ -48,30 +48,68 @@ public class GeometricHasher
 			double ratioOfDistance, 
 			final boolean useAssociatedBeads ) 
 	{
-		final int numNeighbors = 3;
-		
-		final KDTree< Detection > tree1 = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > tree2 = new KDTree< Detection >( nodeListB );
+		final ViewDescriptors viewA = createViewDescriptors( nodeListA );
+		final ViewDescriptors viewB = createViewDescriptors( nodeListB );
 
-		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1 = 
-			createLocalCoordinateSystemPointDescriptors( tree1, nodeListA, numNeighbors, false );
-		
-		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors2 = 
-			createLocalCoordinateSystemPointDescriptors( tree2, nodeListB, numNeighbors, false );
-		
-		// create lookup tree for descriptors2		
-		final KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree2 = new KDTree< LocalCoordinateSystemPointDescriptor< Detection > >( descriptors2 );
-		final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch = new NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > >( lookUpTree2 );
+		return extractCorrespondenceCandidates( viewA, viewB, differenceThreshold, ratioOfDistance );
+	}
+
+	/**
+	 * Matches the descriptors of two views, the {@link ViewDescriptors} are only read and can be shared between threads
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ViewDescriptors viewA, 
+			final ViewDescriptors viewB, 
+			final double differenceThreshold, 
+			final double ratioOfDistance ) 
+	{
+		final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch = new NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > >( viewB.getLookUpTree() );
 	
 		// store the candidates for corresponding beads
 		final ArrayList<PointMatchGeneric< Detection >> correspondences = new ArrayList<PointMatchGeneric<Detection>>();
 		
 		/* compute matching */
-		computeMatching( descriptors1, nnsearch, correspondences, differenceThreshold, ratioOfDistance );
+		computeMatching( viewA.descriptors, nnsearch, correspondences, differenceThreshold, ratioOfDistance );
 		
 		return correspondences;
 	}
-	
+
+	/**
+	 * The descriptors of one view and the lookup tree for them, only depend on the detections of the view
+	 */
+	public static class ViewDescriptors
+	{
+		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors;
+		KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree;
+
+		public ViewDescriptors( final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors )
+		{
+			this.descriptors = descriptors;
+		}
+
+		public ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > getDescriptors() { return descriptors; }
+
+		/**
+		 * @return - the lookup tree for the descriptors, only built if the view is matched as second view of a pair
+		 */
+		public synchronized KDTree< LocalCoordinateSystemPointDescriptor< Detection > > getLookUpTree()
+		{
+			if ( lookUpTree == null )
+				lookUpTree = new KDTree< LocalCoordinateSystemPointDescriptor< Detection > >( descriptors );
+
+			return lookUpTree;
+		}
+	}
+
+	public static ViewDescriptors createViewDescriptors( final ArrayList< Detection > nodeList )
+	{
+		final int numNeighbors = 3;
+
+		final KDTree< Detection > tree = new KDTree< Detection >( nodeList );
+
+		return new ViewDescriptors( createLocalCoordinateSystemPointDescriptors( tree, nodeList, numNeighbors, false ) );
+	}
+
 	protected void computeMatching( 
 			final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1, 
 			final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch2,
@@ -54,12 +54,23 @@ public class GeometricHashing extends InterestPointRegistration
 	@Override
 	protected GeometricHashingPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description )
 	{
-		return new GeometricHashingPairwise( pair, model, description, ransacParams, ghParams );
+		return new GeometricHashingPairwise( pair, model, description, ransacParams, ghParams, getDescriptorCache() );
 	}
 
 	@Override
 	protected TransformationModel getTransformationModel() { return model; }
 
+	@Override
+	protected String getMatchingParameters()
+	{
+		return "geometrichashing,model=" + model.getDescription() +
+				",significance=" + ghParams.getRatioOfDistance() + ",difference=" + ghParams.getDifferenceThreshold() +
+				",associated=" + ghParams.getUseAssociatedBeads() + "," + ransacParams.getDescription();
+	}
+
+	@Override
+	protected boolean matchingIsRotationInvariant() { return model.isRotationInvariant(); }
+
 	@Override
 	public GeometricHashing newInstance(
 			final SpimData2 spimData,
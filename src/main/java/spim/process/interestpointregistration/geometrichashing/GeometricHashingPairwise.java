@@ -25,15 +25,18 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.concurrent.Callable;
 
+import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import net.imglib2.util.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.geometrichashing.GeometricHasher.ViewDescriptors;
 
 public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 {
@@ -42,14 +45,24 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	final RANSACParameters rp;
 	final GeometricHashingParameters gp;
 	final String comparison;
-	
-	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp )
+	final DescriptorCache cache;
+
+	/**
+	 * @param cache - shares the descriptors of each view between all pairs, can be null
+	 */
+	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp, final DescriptorCache cache )
 	{ 
 		this.pair = pair;
 		this.rp = rp;
 		this.gp = gp;
 		this.model = model;
 		this.comparison = comparison;
+		this.cache = cache;
+	}
+
+	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp )
+	{
+		this( pair, model, comparison, rp, gp, null );
 	}
 
 	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp )
@@ -67,30 +80,38 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	{
 		final GeometricHasher hasher = new GeometricHasher();
 		
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final int sizeA = pair.getMatchPointListA().getInterestPointArray().size();
+		final int sizeB = pair.getMatchPointListB().getInterestPointArray().size();
 
-		if ( listA.size() < 4 || listB.size() < 4 )
+		if ( sizeA < 4 || sizeB < 4 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": "
-					+ "Not enough detections to match (4 required per list, |listA|= " + listA.size() + ", |listB|= " + listB.size() + ")" );
+					+ "Not enough detections to match (4 required per list, |listA|= " + sizeA + ", |listB|= " + sizeB + ")" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
 			pair.setInliers( new ArrayList<PointMatchGeneric< Detection > >(), Double.NaN );
 			return pair;
 		}
 
-		final ArrayList< PointMatchGeneric< Detection > > candidates = hasher.extractCorrespondenceCandidates( 
-				listA,
-				listB,
-				gp.getDifferenceThreshold(), 
-				gp.getRatioOfDistance(), 
-				gp.getUseAssociatedBeads() );
+		final ArrayList< PointMatchGeneric< Detection > > candidates;
+
+		if ( cache == null )
+		{
+			candidates = hasher.extractCorrespondenceCandidates( 
+					pair.getMatchPointListA().createDetections(),
+					pair.getMatchPointListB().createDetections(),
+					gp.getDifferenceThreshold(), 
+					gp.getRatioOfDistance(), 
+					gp.getUseAssociatedBeads() );
+		}
+		else
+		{
+			// the descriptors are shared with all other pairs of these views, RANSAC needs its own detections
+			candidates = DescriptorCache.detachCandidates( hasher.extractCorrespondenceCandidates(
+					getDescriptors( pair.getMatchPointListA(), pair.getViewIdA() ),
+					getDescriptors( pair.getMatchPointListB(), pair.getViewIdB() ),
+					gp.getDifferenceThreshold(),
+					gp.getRatioOfDistance() ) );
+		}
 
 		pair.setCandidates( candidates );
 
@@ -105,4 +126,18 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 
 		return pair;
 	}
+
+	protected ViewDescriptors getDescriptors( final MatchPointList list, final ViewId viewId )
+	{
+		return cache.get(
+				DescriptorCache.key( viewId, list.getChannelProcessed().getLabel(), "geometrichashing" ),
+				new Callable< ViewDescriptors >()
+				{
+					@Override
+					public ViewDescriptors call()
+					{
+						return GeometricHasher.createViewDescriptors( list.createDetections() );
+					}
+				} );
+	}
 }
@@ -64,6 +64,16 @@ public class IterativeClosestPoint extends InterestPointRegistration
 	@Override
 	protected TransformationModel getTransformationModel() { return model; }
 
+	@Override
+	protected String getMatchingParameters()
+	{
+		return "icp,model=" + model.getDescription() +
+				",maxDistance=" + parameters.getMaxDistance() + ",maxIterations=" + parameters.getMaxNumIterations();
+	}
+
+	@Override
+	protected boolean matchingDependsOnTransformations() { return true; }
+
 	@Override
 	public void addQuery( final GenericDialog gd, final RegistrationType registrationType )
 	{
@@ -37,7 +37,6 @@ import mpicbg.models.TranslationModel3D;
 import mpicbg.pointdescriptor.exception.NoSuitablePointsException;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.TransformationModel;
@@ -60,14 +59,8 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 	@Override
 	public PairwiseMatch call()
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final ArrayList< Detection > listA = pair.getMatchPointListA().createDetections();
+		final ArrayList< Detection > listB = pair.getMatchPointListB().createDetections();
 
 		// identity transform
 		Model<?> model = this.model.getModel();
@@ -23,11 +23,13 @@ package spim.process.interestpointregistration.optimizationtypes;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.MatchPointList;
@@ -63,7 +65,8 @@ public class AllToAllRegistration extends GlobalOptimizationType
 		Collections.sort( views );
 
 		// all pairs that need to be compared
-		final ArrayList< PairwiseMatch > viewPairs = new ArrayList< PairwiseMatch >();		
+		final ArrayList< PairwiseMatch > viewPairs = new ArrayList< PairwiseMatch >();
+		int nonOverlapping = 0;
 
 		for ( int a = 0; a < views.size() - 1; ++a )
 			for ( int b = a + 1; b < views.size(); ++b )
@@ -86,10 +89,20 @@ public class AllToAllRegistration extends GlobalOptimizationType
 					// in case we consider timepoints as units and the pair has the same timepoint, do not add;
 					// i.e. add the pair always if the above statement is false
 					if ( !( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) ) )
-						viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
+					{
+						// do not match views that cannot overlap given their current transformations
+						if ( overlaps( viewIdA, viewIdB ) )
+							viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
+						else
+							++nonOverlapping;
+					}
 				}
 			}
 
+		if ( nonOverlapping > 0 )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Skipped " + nonOverlapping + " of " + ( viewPairs.size() + nonOverlapping ) +
+					" view pairs that do not overlap (margin=" + getOverlapMargin() + "px)." );
+
 		final ArrayList< GlobalOptimizationSubset > list = new ArrayList< GlobalOptimizationSubset >();
 		list.add( new GlobalOptimizationSubset( viewPairs, "all-to-all matching over all timepoints" ) );
 		
@@ -23,11 +23,13 @@ package spim.process.interestpointregistration.optimizationtypes;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.MatchPointList;
@@ -49,13 +51,37 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 		this.range = range;
 	}
 
+	public int getRange() { return range; }
+
 	@Override
 	public List< GlobalOptimizationSubset > assembleAllViewPairs()
+	{
+		return assembleAllViewPairs( SpimData2.getAllTimePointsSorted( spimData, viewIdsToProcess ), "all-to-all matching with range " + range + " over all timepoints" );
+	}
+
+	/**
+	 * @param viewIdA
+	 * @param viewIdB
+	 * @return - true if the pair of views should be matched
+	 */
+	protected boolean matchViews( final ViewId viewIdA, final ViewId viewIdB )
+	{
+		return
+			!isFixedTile( viewIdA ) && !isFixedTile( viewIdB ) &&
+			Math.abs( viewIdA.getTimePointId() - viewIdB.getTimePointId() ) <= range;
+	}
+
+	/**
+	 * @param timepoints - the timepoints whose views are matched within the range
+	 * @param description - the description of the subset
+	 * @return - one subset containing all pairs
+	 */
+	protected List< GlobalOptimizationSubset > assembleAllViewPairs( final List< TimePoint > timepoints, final String description )
 	{
 		final HashMap< ViewId, MatchPointList > allPointLists = new HashMap< ViewId, MatchPointList >();
 		
 		// collect all point lists from all timepoints
-		for ( final TimePoint timepoint : SpimData2.getAllTimePointsSorted( spimData, viewIdsToProcess ) )
+		for ( final TimePoint timepoint : timepoints )
 		{
 			final HashMap< ViewId, MatchPointList > pointLists = this.getInterestPoints( timepoint );
 			
@@ -68,7 +94,8 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 		Collections.sort( views );
 
 		// all pairs that need to be compared
-		final ArrayList< PairwiseMatch > viewPairs = new ArrayList< PairwiseMatch >();		
+		final ArrayList< PairwiseMatch > viewPairs = new ArrayList< PairwiseMatch >();
+		int nonOverlapping = 0;
 
 		for ( int a = 0; a < views.size() - 1; ++a )
 			for ( int b = a + 1; b < views.size(); ++b )
@@ -77,9 +104,7 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 				final ViewId viewIdB = views.get( b );
 				
 				// only compare those to views if not both are fixed and timepoints are within range
-				if (
-					!isFixedTile( viewIdA ) && !isFixedTile( viewIdB ) &&
-					Math.abs( viewIdA.getTimePointId() - viewIdB.getTimePointId() ) <= range )
+				if ( matchViews( viewIdA, viewIdB ) )
 				{
 					final MatchPointList listA = allPointLists.get( viewIdA );
 					final MatchPointList listB = allPointLists.get( viewIdB );
@@ -93,13 +118,22 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 					// in case we consider timepoints as units and the pair has the same timepoint, do not add;
 					// i.e. add the pair always if the above statement is false
 					if ( !( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) ) )
-						viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
+					{
+						// do not match views that cannot overlap given their current transformations
+						if ( overlaps( viewIdA, viewIdB ) )
+							viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
+						else
+							++nonOverlapping;
+					}
 				}
 			}
 
+		if ( nonOverlapping > 0 )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Skipped " + nonOverlapping + " of " + ( viewPairs.size() + nonOverlapping ) +
+					" view pairs that do not overlap (margin=" + getOverlapMargin() + "px)." );
+
 		final ArrayList< GlobalOptimizationSubset > list = new ArrayList< GlobalOptimizationSubset >();
-		list.add( new GlobalOptimizationSubset( viewPairs, "all-to-all matching with range " + range + 
-				" over all timepoints" ) );
+		list.add( new GlobalOptimizationSubset( viewPairs, description ) );
 		
 		return list;
 	}
@@ -39,15 +39,20 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import net.imglib2.Dimensions;
+import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointArray;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
+import spim.process.fusion.FusionHelper;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.GlobalOpt;
 import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
 
@@ -70,7 +75,14 @@ public abstract class GlobalOptimizationType
 	Set< ViewId > fixedTiles;
 	Map< GlobalOptimizationSubset, ViewId > referenceTiles;
 	AbstractModel<?> mapBackModel;
-	
+
+	// a negative margin disables the overlap test
+	double overlapMargin = -1;
+	HashMap< ViewId, RealInterval > worldBounds;
+
+	// which solver GlobalOpt uses, see GlobalOpt.solverChoice
+	int globalOptSolver = GlobalOpt.ITERATIVE;
+
 	public GlobalOptimizationType(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -170,10 +182,70 @@ public abstract class GlobalOptimizationType
 
 	public SpimData2 getSpimData() { return spimData; }
 
+	/**
+	 * @param overlapMargin - only match pairs of views whose transformed bounding boxes overlap or are closer than this margin (in world coordinates), negative to match all pairs
+	 */
+	public void setOverlapMargin( final double overlapMargin ) { this.overlapMargin = overlapMargin; }
+	public double getOverlapMargin() { return overlapMargin; }
+
+	/**
+	 * @param globalOptSolver - the solver used for the global optimization, see GlobalOpt.solverChoice
+	 */
+	public void setGlobalOptSolver( final int globalOptSolver ) { this.globalOptSolver = globalOptSolver; }
+	public int getGlobalOptSolver() { return globalOptSolver; }
+
+	/**
+	 * Tests if two views can overlap given their current registrations
+	 * 
+	 * @param viewIdA
+	 * @param viewIdB
+	 * @return - true if the transformed bounding boxes are within the margin, or if the test is disabled
+	 */
+	protected boolean overlaps( final ViewId viewIdA, final ViewId viewIdB )
+	{
+		if ( overlapMargin < 0 )
+			return true;
+
+		final RealInterval a = getWorldBounds( viewIdA );
+		final RealInterval b = getWorldBounds( viewIdB );
+
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.realMin( d ) > b.realMax( d ) + overlapMargin || a.realMax( d ) + overlapMargin < b.realMin( d ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param viewId
+	 * @return - the bounding box of the view in world coordinates using its current registration
+	 */
+	protected RealInterval getWorldBounds( final ViewId viewId )
+	{
+		if ( worldBounds == null )
+			worldBounds = new HashMap< ViewId, RealInterval >();
+
+		RealInterval bounds = worldBounds.get( viewId );
+
+		if ( bounds == null )
+		{
+			final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+			final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+
+			final ViewRegistration r = spimData.getViewRegistrations().getViewRegistration( viewId );
+			r.updateModel();
+
+			bounds = FusionHelper.transformedBoundingBox( r.getModel(), size );
+			worldBounds.put( viewId, bounds );
+		}
+
+		return bounds;
+	}
+
 	/**
 	 * Creates lists of input points for the registration, based on the current transformation of the views
 	 * 
-	 * Note: this always duplicates the location array from the input List&gt; InterestPoint &lt; !!!
+	 * Note: the world coordinates are cached by the {@link InterestPointArray} of each view until its transformation changes
 	 * 
 	 * @param timepoint
 	 */
@@ -197,9 +269,6 @@ public abstract class GlobalOptimizationType
 			final Angle a = vd.getViewSetup().getAngle();
 			final Illumination i = vd.getViewSetup().getIllumination();
 
-			// assemble a new list
-			final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >();
-
 			// check the existing lists of points
 			final ViewInterestPointLists lists = interestpoints.getViewInterestPointLists( vd );
 
@@ -211,7 +280,7 @@ public abstract class GlobalOptimizationType
 				continue;
 			}
 			
-			if ( lists.getInterestPointList( c.getLabel() ).getInterestPoints() == null )
+			if ( !lists.getInterestPointList( c.getLabel() ).hasInterestPoints() )
 			{
 				if ( !lists.getInterestPointList( c.getLabel() ).loadInterestPoints() )
 				{
@@ -222,21 +291,14 @@ public abstract class GlobalOptimizationType
 				}
 			}
 			
-			final List< InterestPoint > ptList = lists.getInterestPointList( c.getLabel() ).getInterestPoints();
+			final InterestPointArray ptList = lists.getInterestPointList( c.getLabel() ).getInterestPointArray();
 			
 			final ViewRegistration r = registrations.getViewRegistration( vd );
 			r.updateModel();
 			final AffineTransform3D m = r.getModel();
-			
-			for ( final InterestPoint p : ptList )
-			{
-				final double[] l = new double[ 3 ];
-				m.apply( p.getL(), l );
-				
-				list.add( new InterestPoint( p.getId(), l ) );
-			}
-			
-			interestPoints.put( vd, new MatchPointList( list, c ) );
+
+			// world coordinates are computed once per transformation and share the ids with the local points
+			interestPoints.put( vd, new MatchPointList( ptList.transformed( m ), c ) );
 		}
 
 		return interestPoints;
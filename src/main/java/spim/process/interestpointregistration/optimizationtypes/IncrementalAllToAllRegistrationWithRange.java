@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration.optimizationtypes;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
+import spim.process.interestpointregistration.ChannelProcess;
+
+/**
+ * All-to-all registration with range for time series that grow while they are acquired. Only the timepoints
+ * that were added since the last registration are matched (against each other and against the previously
+ * registered timepoints within the range) and optimized.
+ * 
+ * A timepoint counts as registered if one of its views has stored correspondences to another timepoint, the
+ * new timepoints are the ones after the last registered timepoint. The registered timepoints within the range
+ * keep their transformations (they are fixed), their stored correspondences to each other are kept, so the
+ * cost only depends on the number of new timepoints and the range, not on the length of the series.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class IncrementalAllToAllRegistrationWithRange extends AllToAllRegistrationWithRange
+{
+	// the views of the previously registered timepoints that are matched against the new ones
+	final HashSet< ViewId > registeredViews = new HashSet< ViewId >();
+
+	public IncrementalAllToAllRegistrationWithRange(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final List< ChannelProcess > channelsToProcess,
+			final int range,
+			final boolean considerTimePointsAsUnit )
+	{
+		super( spimData, viewIdsToProcess, channelsToProcess, range, considerTimePointsAsUnit );
+	}
+
+	@Override
+	public List< GlobalOptimizationSubset > assembleAllViewPairs()
+	{
+		final ArrayList< TimePoint > timepoints = SpimData2.getAllTimePointsSorted( spimData, viewIdsToProcess );
+
+		// the registered timepoints precede the new ones, so only the newest ones have to be tested
+		int firstNew = timepoints.size();
+
+		while ( firstNew > 0 && !isRegistered( timepoints.get( firstNew - 1 ) ) )
+			--firstNew;
+
+		if ( firstNew == 0 )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): No previously registered timepoints found, registering all timepoints." );
+			return super.assembleAllViewPairs();
+		}
+
+		if ( firstNew == timepoints.size() )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): All timepoints are registered already, nothing to do." );
+			return new ArrayList< GlobalOptimizationSubset >();
+		}
+
+		// the registered timepoints within the range of the first new timepoint
+		final int minTimepointId = timepoints.get( firstNew ).getId() - getRange();
+		final ArrayList< TimePoint > window = new ArrayList< TimePoint >();
+
+		for ( int t = 0; t < timepoints.size(); ++t )
+		{
+			final TimePoint timepoint = timepoints.get( t );
+
+			if ( t >= firstNew || timepoint.getId() >= minTimepointId )
+				window.add( timepoint );
+
+			if ( t < firstNew && timepoint.getId() >= minTimepointId )
+				for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, timepoint ) )
+					registeredViews.add( new ViewId( vd.getTimePointId(), vd.getViewSetupId() ) );
+		}
+
+		final int numNew = timepoints.size() - firstNew;
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Registering " + numNew + " new timepoints (starting at id=" +
+				timepoints.get( firstNew ).getId() + ") against " + ( window.size() - numNew ) + " previously registered timepoints." );
+
+		return assembleAllViewPairs( window, "incremental all-to-all matching with range " + getRange() + " of " + numNew + " new timepoints" );
+	}
+
+	/**
+	 * Pairs of previously registered views were matched before
+	 */
+	@Override
+	protected boolean matchViews( final ViewId viewIdA, final ViewId viewIdB )
+	{
+		return
+			!( isFixedTile( viewIdA ) && isFixedTile( viewIdB ) ) &&
+			Math.abs( viewIdA.getTimePointId() - viewIdB.getTimePointId() ) <= getRange();
+	}
+
+	/**
+	 * The previously registered views keep their transformations
+	 */
+	@Override
+	public boolean isFixedTile( final ViewId viewId )
+	{
+		return super.isFixedTile( viewId ) || registeredViews.contains( viewId );
+	}
+
+	/**
+	 * @return - the fixed tiles including the previously registered views (once the view pairs were assembled)
+	 */
+	@Override
+	public Set< ViewId > getFixedTiles()
+	{
+		final HashSet< ViewId > fixedTiles = new HashSet< ViewId >( super.getFixedTiles() );
+		fixedTiles.addAll( registeredViews );
+
+		return fixedTiles;
+	}
+
+	/**
+	 * Only removes the correspondences of the new views, the registered views only lose their correspondences to new
+	 * views (in case they were registered before)
+	 */
+	@Override
+	public void clearExistingCorrespondences( final GlobalOptimizationSubset set )
+	{
+		final HashSet< ViewId > views = new HashSet< ViewId >( set.getViews() );
+
+		for ( final ViewId id : set.getViews() )
+			for ( final ChannelProcess c : channelsToProcess )
+				if ( spimData.getSequenceDescription().getViewDescription( id ).getViewSetup().getChannel().getId() == c.getChannel().getId() )
+				{
+					final InterestPointList list = spimData.getViewInterestPoints().getViewInterestPointLists( id ).getInterestPointList( c.getLabel() );
+
+					if ( !registeredViews.contains( id ) )
+					{
+						list.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
+						continue;
+					}
+
+					// the new correspondences are added to the existing ones
+					if ( list.getCorrespondingInterestPoints() == null )
+						list.loadCorrespondingInterestPoints();
+
+					final Iterator< CorrespondingInterestPoints > it = list.getCorrespondingInterestPoints().iterator();
+
+					while ( it.hasNext() )
+					{
+						final ViewId correspondingViewId = it.next().getCorrespondingViewId();
+
+						if ( !registeredViews.contains( correspondingViewId ) && views.contains( correspondingViewId ) )
+							it.remove();
+					}
+				}
+	}
+
+	/**
+	 * @param timepoint
+	 * @return - true if any view of the timepoint has stored correspondences to another timepoint
+	 */
+	protected boolean isRegistered( final TimePoint timepoint )
+	{
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, timepoint ) )
+		{
+			if ( !vd.isPresent() )
+				continue;
+
+			final ChannelProcess c = getChannelProcessForChannel( channelsToProcess, vd.getViewSetup().getChannel() );
+
+			if ( c == null )
+				continue;
+
+			final ViewInterestPointLists lists = spimData.getViewInterestPoints().getViewInterestPointLists( vd );
+
+			if ( !lists.contains( c.getLabel() ) )
+				continue;
+
+			final InterestPointList list = lists.getInterestPointList( c.getLabel() );
+
+			if ( list.getCorrespondingInterestPoints() == null && !list.loadCorrespondingInterestPoints() )
+				continue;
+
+			for ( final CorrespondingInterestPoints cip : list.getCorrespondingInterestPoints() )
+				if ( cip.getCorrespondingViewId().getTimePointId() != timepoint.getId() )
+					return true;
+		}
+
+		return false;
+	}
+}